@@ -15,8 +15,13 @@
  *******************************************************************************/
 package com.google.research.ic.ferret;
 
+import com.google.research.ic.ferret.StandingQueryRegistry.StandingQuery;
 import com.google.research.ic.ferret.comm.DeviceEventReceiver;
 import com.google.research.ic.ferret.data.DemoManager;
+import com.google.research.ic.ferret.data.Event;
+import com.google.research.ic.ferret.data.EventSource;
+import com.google.research.ic.ferret.data.IndexFile;
+import com.google.research.ic.ferret.data.LogFileEventSource;
 import com.google.research.ic.ferret.data.LogLoader;
 import com.google.research.ic.ferret.data.SearchEngine;
 import com.google.research.ic.ferret.data.Snippet;
@@ -26,12 +31,14 @@ import com.google.research.ic.ferret.data.attributes.UserNameAttributeHandler;
 import com.google.research.ic.ferret.test.Debug;
 import com.google.research.ic.ferret.uiserver.UIServer;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
 public class AppMain {
 
+  private static final int NGRAM_LENGTH = 4;
  
   public static void main(String[] args) {
     
@@ -46,6 +53,21 @@ public class AppMain {
     if (Config.startDeviceServer) {
       Debug.log("Starting device server...");
       DeviceEventReceiver.startServer();
+      if (Config.liveIndexing) {
+        DeviceEventReceiver.getReceiver().addDemoEventListener(LiveIndexer.getIndexer());
+      }
+      if (Config.standingQueryDir != null) {
+        StandingQueryRegistry registry = StandingQueryRegistry.getRegistry();
+        Debug.log("Loaded " + registry.loadQueries(Config.standingQueryDir) + " standing queries");
+        registry.addListener(new StandingQueryListener() {
+          @Override
+          public void onStandingQueryMatched(StandingQuery query, Event event, double distance) {
+            Debug.log("Device " + event.getDeviceId() + " matched standing query " 
+                + query.getName() + " at distance " + distance);
+          }
+        });
+        DeviceEventReceiver.getReceiver().addDemoEventListener(registry);
+      }
     } else {
       Session.getCurrentSession().setDeviceMode(false);
     }
@@ -61,20 +83,59 @@ public class AppMain {
       }
     }
     
+    // a shard coordinator summarizes attributes of results without loading logs
+    AttributeManager.getManager().addHandler(new UserNameAttributeHandler());
+    AttributeManager.getManager().addHandler(new DurationAttributeHandler());
+
     if(Config.loadLogs) {
       Debug.log("Loading logs...");
-      AttributeManager.getManager().addHandler(new UserNameAttributeHandler());
-      AttributeManager.getManager().addHandler(new DurationAttributeHandler());
 
       long t = System.currentTimeMillis();
-      List<Snippet> snippets = LogLoader.getLogLoader().loadLogs(Config.logDir); // null arg: use default dir
-      Debug.log("Loaded logs in " + (System.currentTimeMillis() - t) + " ms");
+      List<Snippet> snippets = null;
+      File indexFile = (Config.indexFile != null) ? new File(Config.indexFile) 
+          : IndexFile.getDefaultIndexFile(Config.logDir);
+
+      if (Config.indexLogs && Config.useIndexFile) {
+        try {
+          snippets = IndexFile.load(indexFile, Config.logDir, SearchEngine.getSearchEngine(), NGRAM_LENGTH);
+        } catch (IOException e) {
+          Debug.log("Couldn't read index file " + indexFile + ": " + e);
+        }
+        if (snippets != null) {
+          Debug.log("Loaded index of " + snippets.size() + " logs from " + indexFile + " in " 
+              + (System.currentTimeMillis() - t) + " ms");
+        }
+      }
+      
+      if (snippets == null) {
+        snippets = LogLoader.getLogLoader().loadLogs(Config.logDir); // null arg: use default dir
+        Debug.log("Loaded logs in " + (System.currentTimeMillis() - t) + " ms");
 
-      if (Config.indexLogs) {
-        Debug.log("Indexing logs...");
-        t = System.currentTimeMillis();    
-        SearchEngine.getSearchEngine().indexLogs(snippets, 4);
-        Debug.log("Indexed logs in " + (System.currentTimeMillis() - t) + " ms.");
+        if (Config.indexLogs) {
+          Debug.log("Indexing logs...");
+          t = System.currentTimeMillis();    
+          SearchEngine.getSearchEngine().indexLogs(snippets, NGRAM_LENGTH);
+          Debug.log("Indexed logs in " + (System.currentTimeMillis() - t) + " ms.");
+          
+          if (Config.useIndexFile) {
+            try {
+              IndexFile.write(indexFile, Config.logDir, SearchEngine.getSearchEngine(), NGRAM_LENGTH);
+              Debug.log("Wrote index file " + indexFile);
+            } catch (IOException e) {
+              Debug.log("Couldn't write index file " + indexFile + ": " + e);
+            }
+          }
+          
+          if (!Config.keepParsedEvents) {
+            // search only needs the columns; results reload events from the log files
+            EventSource eventSource = new LogFileEventSource(LogLoader.getLogDirectory(Config.logDir));
+            for (Snippet s : snippets) {
+              if (s.getSourceFilename() != null) {
+                s.releaseEvents(eventSource);
+              }
+            }
+          }
+        }
       }
     }
     
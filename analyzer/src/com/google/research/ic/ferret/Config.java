@@ -46,13 +46,35 @@ public class Config {
   public static final String ARG_ADMITTANCETHRESHHOLD = "--admittanceThreshold";
   public static final String ARG_ELONGATIONFACTOR = "--elongationFactor";
   public static final String ARG_FRACTIONTOMATCH = "--fractionToMatch";
+  public static final String ARG_PARALLELSEARCH = "--parallelSearch";
+  public static final String ARG_DPEDITDISTANCE = "--dpEditDistance";
+  public static final String ARG_SUFFIXARRAYSEEDS = "--suffixArraySeeds";
+  public static final String ARG_WEIGHTEDEDITDISTANCE = "--weightedEditDistance";
+  public static final String ARG_SUBSTITUTIONCOSTSCALE = "--substitutionCostScale";
+  public static final String ARG_DISTANCECACHESIZE = "--distanceCacheSize";
+  public static final String ARG_CANDIDATES = "--candidates";
+  public static final String ARG_CANDIDATES_NGRAM = "ngram";
+  public static final String ARG_CANDIDATES_LSH = "lsh";
+  public static final String ARG_LSHWINDOWSIZE = "--lshWindowSize";
+  public static final String ARG_LSHBANDS = "--lshBands";
+  public static final String ARG_LSHROWS = "--lshRows";
+  public static final String ARG_RESULTCACHESIZE = "--resultCacheSize";
+  public static final String ARG_RESULTCACHEMEMORY = "--resultCacheMemory";
 
   // Analyzer arguments
   public static final String ARG_LOADDEMOS = "--loaddemos";
   public static final String ARG_DONTLOAD = "--dontload";
   public static final String ARG_DONTINDEX = "--dontindex";
+  public static final String ARG_INDEXFILE = "--indexFile";
+  public static final String ARG_NOINDEXFILE = "--noIndexFile";
+  public static final String ARG_KEEPPARSEDEVENTS = "--keepParsedEvents";
   public static final String ARG_NODEVICESERVER = "--nodeviceserver";
   public static final String ARG_NOUISERVER = "--nouiserver";
+  public static final String ARG_UIPORT = "--uiPort";
+  public static final String ARG_SHARD = "--shard";
+  public static final String ARG_SHARDS = "--shards";
+  public static final String ARG_LIVEINDEX = "--liveIndex";
+  public static final String ARG_STANDINGQUERIES = "--standingQueries";
   
   // Eval Framework arguments
   public static final String ARG_TAGLIST = "--tags";
@@ -64,6 +86,7 @@ public class Config {
   public static final String DEFAULT_LOG_DIR = "logs";
   public static final String DEFAULT_LOG_TYPE = ARG_LOGTYPE_ACCESSIBILITY;
   public static final String DEFAULT_DEMO_DIR = "demos";
+  public static final int DEFAULT_UI_PORT = 8080;
   
   // Search Algorithm defaults
   public static final int DEFAULT_NGRAM_SIZE = 3;
@@ -71,6 +94,14 @@ public class Config {
   public static final double DEFAULT_ADMITTANCE_THRESHHOLD = 0.5;
   public static final int DEFAULT_ELONGATION_FACTOR = 6;
   public static final double DEFAULT_FRACTION_TO_MATCH = 0.25;
+  public static final int DEFAULT_RESULT_CACHE_SIZE = 64;
+  public static final int DEFAULT_RESULT_CACHE_MEMORY = 64;
+  public static final String DEFAULT_CANDIDATES = ARG_CANDIDATES_NGRAM;
+  public static final int DEFAULT_LSH_WINDOW_SIZE = 16;
+  public static final int DEFAULT_LSH_BANDS = 30;
+  public static final int DEFAULT_LSH_ROWS = 3;
+  public static final double DEFAULT_SUBSTITUTION_COST_SCALE = 200.0;
+  public static final int DEFAULT_DISTANCE_CACHE_SIZE = 1 << 18;
   
   // PARAMETERS
 
@@ -85,6 +116,19 @@ public class Config {
   public static boolean loadLogs = true;
   public static boolean indexLogs = true;
   public static boolean loadDemos = false;
+  public static boolean useIndexFile = true;
+  public static String indexFile = null; // if unspecified, an index file in logDir is used
+  public static boolean keepParsedEvents = false; // else parsed logs reload events from their files
+  public static boolean liveIndexing = false; // add events from devices to the searchable logs
+  public static String standingQueryDir = null; // queries to match against events from devices
+  public static int uiPort = DEFAULT_UI_PORT;
+  
+  /* --shard=i/n: this process only loads and indexes the i-th of n partitions of logDir */
+  public static int shardIndex = 0;
+  public static int shardCount = 1;
+  
+  /* --shards=url,url,...: coordinate searches over the shard servers at these base urls */
+  public static String shardUrls = null;
  
   // Eval Framework params
   public static String queryDir = null; // if unspecified, EvalFramework will do crossvalidation
@@ -109,6 +153,40 @@ public class Config {
   
   /* which filtering strategy to use */
   public static boolean useAggressiveFiltering = false;
+  
+  /* search ranges of logs concurrently */
+  public static boolean parallelSearch = false;
+  
+  /* compute edit distances with the bit-parallel kernel rather than the banded DP */
+  public static boolean useBitParallelEditDistance = true;
+  
+  /* find ngram hits in indexed logs as exact-match runs from a suffix array, rather than one per ngram */
+  public static boolean useSuffixArraySeeds = false;
+  
+  /* align events with graded substitution costs (see SubstitutionCostMatrix) rather than 0/1 */
+  public static boolean useWeightedEditDistance = false;
+  
+  /* the event distance at which a substitution costs as much as an insertion or deletion */
+  public static double substitutionCostScale = DEFAULT_SUBSTITUTION_COST_SCALE;
+  
+  /* how many event distances to memoize; 0 turns the cache off */
+  public static int distanceCacheSize = DEFAULT_DISTANCE_CACHE_SIZE;
+  
+  /* where strong match candidates come from: ngram density, or similar windows in the LSH index */
+  public static String candidateGenerator = DEFAULT_CANDIDATES;
+  
+  /* LSH index windows, in events; queries shorter than this use ngram candidates */
+  public static int lshWindowSize = DEFAULT_LSH_WINDOW_SIZE;
+  
+  /* MinHash bands, and rows per band, of the LSH index */
+  public static int lshBands = DEFAULT_LSH_BANDS;
+  public static int lshRows = DEFAULT_LSH_ROWS;
+  
+  /* how many searches to keep results for; 0 turns the result cache off */
+  public static int resultCacheSize = DEFAULT_RESULT_CACHE_SIZE;
+  
+  /* rough upper bound on the memory held by cached results, in megabytes */
+  public static int resultCacheMemory = DEFAULT_RESULT_CACHE_MEMORY;
 
   
   public static void parseArgs(String[] args) {
@@ -131,10 +209,61 @@ public class Config {
         loadLogs = false;
       } else if (s.equals(ARG_DONTINDEX)) {
         indexLogs = false;
+      } else if (s.startsWith(ARG_INDEXFILE)) {
+        indexFile = s.split("=")[1];
+      } else if (s.equals(ARG_NOINDEXFILE)) {
+        useIndexFile = false;
+      } else if (s.equals(ARG_KEEPPARSEDEVENTS)) {
+        keepParsedEvents = true;
+      } else if (s.startsWith(ARG_UIPORT)) {
+        uiPort = Integer.parseInt(s.split("=")[1]);
+      } else if (s.startsWith(ARG_SHARDS)) { // check before ARG_SHARD, which is a prefix
+        shardUrls = s.split("=")[1];
+        loadLogs = false; // the shards have the logs
+      } else if (s.startsWith(ARG_SHARD)) {
+        String[] shard = s.split("=")[1].split("/");
+        shardIndex = Integer.parseInt(shard[0]);
+        shardCount = Integer.parseInt(shard[1]);
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+          throw new IllegalArgumentException("Bad shard " + s + ", expected --shard=i/n with 0 <= i < n");
+        }
+      } else if (s.equals(ARG_LIVEINDEX)) {
+        liveIndexing = true;
+      } else if (s.startsWith(ARG_STANDINGQUERIES)) {
+        standingQueryDir = s.split("=")[1];
       } else if (s.equals(ARG_LOADDEMOS)) {
         loadDemos = true;
       } else if (s.equals(ARG_AGGFILTER)) {
         useAggressiveFiltering = true;
+      } else if (s.equals(ARG_PARALLELSEARCH)) {
+        parallelSearch = true;
+      } else if (s.equals(ARG_DPEDITDISTANCE)) {
+        useBitParallelEditDistance = false;
+      } else if (s.equals(ARG_SUFFIXARRAYSEEDS)) {
+        useSuffixArraySeeds = true;
+      } else if (s.equals(ARG_WEIGHTEDEDITDISTANCE)) {
+        useWeightedEditDistance = true;
+      } else if (s.startsWith(ARG_SUBSTITUTIONCOSTSCALE)) {
+        substitutionCostScale = Double.parseDouble(s.split("=")[1]);
+      } else if (s.startsWith(ARG_DISTANCECACHESIZE)) {
+        distanceCacheSize = Integer.parseInt(s.split("=")[1]);
+      } else if (s.startsWith(ARG_CANDIDATES)) {
+        candidateGenerator = s.split("=")[1];
+        if (!candidateGenerator.equals(ARG_CANDIDATES_NGRAM) 
+            && !candidateGenerator.equals(ARG_CANDIDATES_LSH)) {
+          throw new IllegalArgumentException("Candidate generator " + candidateGenerator 
+              + " is not supported.");
+        }
+      } else if (s.startsWith(ARG_LSHWINDOWSIZE)) {
+        lshWindowSize = Integer.parseInt(s.split("=")[1]);
+      } else if (s.startsWith(ARG_LSHBANDS)) {
+        lshBands = Integer.parseInt(s.split("=")[1]);
+      } else if (s.startsWith(ARG_LSHROWS)) {
+        lshRows = Integer.parseInt(s.split("=")[1]);
+      } else if (s.startsWith(ARG_RESULTCACHESIZE)) {
+        resultCacheSize = Integer.parseInt(s.split("=")[1]);
+      } else if (s.startsWith(ARG_RESULTCACHEMEMORY)) {
+        resultCacheMemory = Integer.parseInt(s.split("=")[1]);
       } else if (s.startsWith(ARG_NGRAMSIZE)) {
         int i = Integer.parseInt(s.split("=")[1]);
         nGramSize = i;
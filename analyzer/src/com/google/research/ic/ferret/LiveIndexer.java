@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret;
+
+import com.google.research.ic.ferret.data.Event;
+import com.google.research.ic.ferret.data.SearchEngine;
+import com.google.research.ic.ferret.data.Snippet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Appends events arriving from devices to the search corpus as they come in,
+ * one live log per user, so they can be found without reloading the logs.
+ */
+public class LiveIndexer implements DemoEventListener {
+
+  public static final String LIVE_SOURCE_FILENAME = "live";
+
+  private static LiveIndexer theIndexer = null;
+
+  private Map<String, Snippet> liveLogs = new HashMap<String, Snippet>();
+
+  private LiveIndexer() {}
+
+  public static LiveIndexer getIndexer() {
+    if (theIndexer == null) {
+      theIndexer = new LiveIndexer();
+    }
+    return theIndexer;
+  }
+
+  @Override
+  public synchronized void onEventReceived(Event event) {
+    Snippet log = liveLogs.get(event.getUserId());
+    if (log == null) {
+      log = new Snippet();
+      log.setSourceFilename(LIVE_SOURCE_FILENAME);
+      liveLogs.put(event.getUserId(), log);
+    }
+    SearchEngine.getSearchEngine().appendEvent(log, event);
+  }
+
+  /**
+   * @return the live log of a user, or null if no events came in from them
+   */
+  public synchronized Snippet getLiveLog(String userId) {
+    return liveLogs.get(userId);
+  }
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret;
+
+import com.google.research.ic.ferret.StandingQueryRegistry.StandingQuery;
+import com.google.research.ic.ferret.data.Event;
+
+/**
+ * Gets told when a device performs the pattern of a standing query.
+ */
+public interface StandingQueryListener {
+
+  /**
+   * @param event the event that completed the match; its device and user
+   * ids say who performed it
+   * @param distance the edit distance of the match divided by the query size
+   */
+  public void onStandingQueryMatched(StandingQuery query, Event event, double distance);
+}
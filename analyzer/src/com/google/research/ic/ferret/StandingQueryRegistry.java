@@ -0,0 +1,451 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret;
+
+import com.google.research.ic.ferret.data.BitParallelEditDistance;
+import com.google.research.ic.ferret.data.BitParallelEditDistance.SearchState;
+import com.google.research.ic.ferret.data.Event;
+import com.google.research.ic.ferret.data.LogLoader;
+import com.google.research.ic.ferret.data.NGramTable;
+import com.google.research.ic.ferret.data.SearchEngine;
+import com.google.research.ic.ferret.data.Snippet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Standing queries are saved patterns that are matched against the events
+ * arriving from devices as they come in, instead of when someone searches.
+ * A device matches when its latest events are within the query's threshold
+ * of the pattern, like a strong match of SearchEngine.findMatches().
+ *
+ * Each device keeps a ring of its recent identifier ids and the edit
+ * distance state of the patterns that could match there (see
+ * BitParallelEditDistance.startSearch()). Each edit breaks at most n of a
+ * pattern's n-grams, so a match needs a minimum number of them among its
+ * events. A pattern's state is only advanced while the device produced that
+ * many within the last window of events; when it's needed again, it's
+ * rebuilt from the ring. Patterns too loose for any n are always advanced.
+ */
+public class StandingQueryRegistry implements DemoEventListener {
+
+  public static class StandingQuery {
+    private final int number;
+    private final String name;
+    private final Snippet query;
+    private final double threshold;
+    private final int maxDistance;
+    /* longest range of events that can match */
+    private final int window;
+    /* length of the n-grams used to tell whether a match is possible, and how many it needs */
+    private final int nGramLength;
+    private final int minHits;
+    private final long[] nGramKeys;
+    private final BitParallelEditDistance kernel;
+
+    private StandingQuery(int number, String name, Snippet query, double threshold,
+        int maxNGramLength) {
+      int[] ids = query.getIdentifierIds().clone();
+      if (ids.length == 0) {
+        throw new IllegalArgumentException("Standing query " + name + " has no events");
+      }
+      this.number = number;
+      this.name = name;
+      this.query = query;
+      this.threshold = threshold;
+      maxDistance = Math.min(SearchEngine.maxDistanceAtMost(threshold, ids.length), ids.length);
+      window = ids.length + maxDistance;
+      // the longest n-grams that a match still has to share with the pattern
+      int n = Math.min(maxNGramLength, ids.length);
+      while (n > 1 && (ids.length - n + 1) - n * maxDistance <= 0) {
+        n--;
+      }
+      nGramLength = n;
+      minHits = (ids.length - n + 1) - n * maxDistance;
+      nGramKeys = NGramTable.computeKeys(ids, n);
+      kernel = new BitParallelEditDistance(ids);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Snippet getQuery() {
+      return query;
+    }
+
+    public double getThreshold() {
+      return threshold;
+    }
+
+    boolean isAlwaysActive() {
+      return minHits <= 0;
+    }
+  }
+
+  private static class PatternState {
+    final StandingQuery sq;
+    /* positions of the latest events that ended one of the pattern's n-grams, a ring */
+    long[] hits = null;
+    int firstHit = 0;
+    int numHits = 0;
+    SearchState search = null;
+    long lastStep = -1; // position the search state is up to date with
+    boolean active = false;
+    boolean matching = false;
+
+    PatternState(StandingQuery sq) {
+      this.sq = sq;
+    }
+
+    void addHit(long position) {
+      if (hits == null) {
+        hits = new long[Math.max(1, sq.minHits)];
+      }
+      dropHitsBefore(position - sq.window + 1);
+      if (numHits == hits.length) { // only the latest minHits matter
+        firstHit = (firstHit + 1) % hits.length;
+        numHits--;
+      }
+      hits[(firstHit + numHits) % hits.length] = position;
+      numHits++;
+    }
+
+    void dropHitsBefore(long position) {
+      while (numHits > 0 && hits[firstHit] < position) {
+        firstHit = (firstHit + 1) % hits.length;
+        numHits--;
+      }
+    }
+
+    /**
+     * @return whether a match could end at position
+     */
+    boolean canMatch(long position) {
+      if (sq.isAlwaysActive()) {
+        return true;
+      }
+      dropHitsBefore(position - sq.window + 1);
+      return numHits >= sq.minHits;
+    }
+  }
+
+  private static class DeviceState {
+    int[] recentIds = new int[16]; // ring, position p is at p % length
+    int numKept = 0; // the latest events still in the ring
+    long numEvents = 0;
+    Map<StandingQuery, PatternState> patterns = new HashMap<StandingQuery, PatternState>();
+    List<PatternState> active = new ArrayList<PatternState>();
+
+    void add(int id, int capacity) {
+      if (recentIds.length < capacity) {
+        int[] grown = new int[Math.max(capacity, recentIds.length * 2)];
+        for (long p = numEvents - numKept; p < numEvents; p++) {
+          grown[(int) (p % grown.length)] = idAt(p);
+        }
+        recentIds = grown;
+      }
+      recentIds[(int) (numEvents % recentIds.length)] = id;
+      numEvents++;
+      numKept = Math.min(numKept + 1, recentIds.length);
+    }
+
+    long oldestKept() {
+      return numEvents - numKept;
+    }
+
+    int idAt(long position) {
+      return recentIds[(int) (position % recentIds.length)];
+    }
+
+    /**
+     * @return the key of the n-gram ending at position, as
+     * NGramTable.computeKeys() would give it
+     */
+    long nGramKeyEndingAt(long position, int nGramLength, int[] scratch) {
+      for (int j = 0; j < nGramLength; j++) {
+        scratch[j] = idAt(position - nGramLength + 1 + j);
+      }
+      return NGramTable.computeKey(scratch, 0, nGramLength);
+    }
+
+    PatternState getPattern(StandingQuery sq) {
+      PatternState ps = patterns.get(sq);
+      if (ps == null) {
+        ps = new PatternState(sq);
+        patterns.put(sq, ps);
+      }
+      return ps;
+    }
+
+    void activate(PatternState ps) {
+      if (!ps.active) {
+        ps.active = true;
+        active.add(ps);
+      }
+    }
+  }
+
+  private static StandingQueryRegistry theRegistry = null;
+
+  private final int maxNGramLength;
+  private final List<StandingQuery> queries = new ArrayList<StandingQuery>();
+  /* registered queries by number, null once unregistered */
+  private final List<StandingQuery> queriesByNumber = new ArrayList<StandingQuery>();
+  /* for each n-gram length, the numbers of the queries that have each n-gram */
+  private NGramTable[] queryNGrams;
+  private final int[] nGramScratch;
+  private final Map<String, DeviceState> devices = new HashMap<String, DeviceState>();
+  private final ArrayList<StandingQueryListener> listeners = new ArrayList<StandingQueryListener>();
+  private int ringCapacity = 0;
+
+  private StandingQueryRegistry() {
+    maxNGramLength = Math.max(1, Config.nGramSize);
+    queryNGrams = new NGramTable[maxNGramLength + 1];
+    nGramScratch = new int[maxNGramLength];
+  }
+
+  public static synchronized StandingQueryRegistry getRegistry() {
+    if (theRegistry == null) {
+      theRegistry = new StandingQueryRegistry();
+    }
+    return theRegistry;
+  }
+
+  /**
+   * Registers a query that matches within Config.admittanceThreshold.
+   */
+  public StandingQuery register(String name, Snippet query) {
+    return register(name, query, Config.admittanceThreshold);
+  }
+
+  /**
+   * @param threshold the largest edit distance, divided by the query size,
+   * that counts as a match
+   */
+  public synchronized StandingQuery register(String name, Snippet query, double threshold) {
+    StandingQuery sq = new StandingQuery(queriesByNumber.size(), name, query, threshold,
+        maxNGramLength);
+    queries.add(sq);
+    queriesByNumber.add(sq);
+    addNGrams(sq);
+    ringCapacity = Math.max(ringCapacity, sq.window);
+    for (DeviceState device : devices.values()) {
+      addRecentHits(device, sq);
+    }
+    return sq;
+  }
+
+  public synchronized void unregister(StandingQuery sq) {
+    if (!queries.remove(sq)) {
+      return;
+    }
+    queriesByNumber.set(sq.number, null);
+    queryNGrams = new NGramTable[maxNGramLength + 1]; // n-gram tables can't remove postings
+    for (StandingQuery other : queries) {
+      addNGrams(other);
+    }
+    for (DeviceState device : devices.values()) {
+      PatternState ps = device.patterns.remove(sq);
+      if (ps != null && ps.active) {
+        device.active.remove(ps);
+      }
+    }
+  }
+
+  public synchronized List<StandingQuery> getQueries() {
+    return new ArrayList<StandingQuery>(queries);
+  }
+
+  /**
+   * Registers the first snippet of each .q and .log file in a directory
+   * (relative to user.dir), named after the file.
+   * @return the number of queries registered
+   */
+  public int loadQueries(String queryDirName) {
+    File queryDir = new File(System.getProperty("user.dir"), queryDirName);
+    File[] files = queryDir.listFiles();
+    if (files == null) {
+      throw new IllegalArgumentException("Not a directory: " + queryDir);
+    }
+    int count = 0;
+    for (File file : files) {
+      if (file.getName().endsWith(".q") || file.getName().endsWith(".log")) {
+        List<Snippet> snippets = LogLoader.getLogLoader().loadLogFile(file.getPath());
+        if (!snippets.isEmpty() && snippets.get(0).size() > 0) {
+          register(file.getName(), snippets.get(0));
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  public void addListener(StandingQueryListener listener) {
+    synchronized (listeners) {
+      listeners.add(listener);
+    }
+  }
+
+  public void removeListener(StandingQueryListener listener) {
+    synchronized (listeners) {
+      listeners.remove(listener);
+    }
+  }
+
+  @Override
+  public void onEventReceived(Event event) {
+    List<PatternState> matched = null;
+    List<Double> distances = null;
+
+    synchronized (this) {
+      if (queries.isEmpty()) {
+        return;
+      }
+      DeviceState device = getDevice(event);
+      int id = event.getIdentifierId();
+      long position = device.numEvents;
+      device.add(id, ringCapacity);
+
+      for (int n = 1; n <= maxNGramLength && n <= device.numEvents; n++) {
+        if (queryNGrams[n] == null) {
+          continue;
+        }
+        int slot = queryNGrams[n].find(device.nGramKeyEndingAt(position, n, nGramScratch));
+        if (slot < 0) {
+          continue;
+        }
+        int[] numbers = queryNGrams[n].getPostings(slot);
+        for (int i = 0; i < queryNGrams[n].getPostingCount(slot); i++) {
+          PatternState ps = device.getPattern(queriesByNumber.get(numbers[i]));
+          ps.addHit(position);
+          if (ps.numHits >= ps.sq.minHits) {
+            device.activate(ps);
+          }
+        }
+      }
+
+      Iterator<PatternState> it = device.active.iterator();
+      while (it.hasNext()) {
+        PatternState ps = it.next();
+        StandingQuery sq = ps.sq;
+        if (!ps.canMatch(position)) {
+          ps.active = false;
+          ps.matching = false;
+          it.remove();
+          continue;
+        }
+        int dist;
+        if (ps.search == null || ps.lastStep != position - 1) {
+          // catch up on the events this pattern skipped; only the last
+          // window of them can be part of a match
+          ps.search = sq.kernel.startSearch();
+          dist = sq.window;
+          long from = Math.max(position - sq.window + 1, device.oldestKept());
+          for (long p = Math.max(0, from); p <= position; p++) {
+            dist = sq.kernel.searchNext(ps.search, device.idAt(p));
+          }
+        } else {
+          dist = sq.kernel.searchNext(ps.search, id);
+        }
+        ps.lastStep = position;
+
+        if (dist <= sq.maxDistance) {
+          if (!ps.matching) { // report each run of matching events once
+            ps.matching = true;
+            if (matched == null) {
+              matched = new ArrayList<PatternState>();
+              distances = new ArrayList<Double>();
+            }
+            matched.add(ps);
+            distances.add((double) dist / (double) sq.kernel.getPatternLength());
+          }
+        } else {
+          ps.matching = false;
+        }
+      }
+    }
+
+    if (matched != null) {
+      synchronized (listeners) {
+        for (int i = 0; i < matched.size(); i++) {
+          for (StandingQueryListener listener : listeners) {
+            listener.onStandingQueryMatched(matched.get(i).sq, event, distances.get(i));
+          }
+        }
+      }
+    }
+  }
+
+  private void addNGrams(StandingQuery sq) {
+    if (sq.isAlwaysActive()) {
+      return;
+    }
+    if (queryNGrams[sq.nGramLength] == null) {
+      queryNGrams[sq.nGramLength] = new NGramTable(sq.nGramLength);
+    }
+    Set<Long> distinctKeys = new HashSet<Long>();
+    for (long key : sq.nGramKeys) {
+      if (distinctKeys.add(key)) {
+        queryNGrams[sq.nGramLength].add(key, sq.number);
+      }
+    }
+  }
+
+  /**
+   * Counts the n-grams a device recently had in common with a new query, so
+   * a match can include events from before the query was registered.
+   */
+  private void addRecentHits(DeviceState device, StandingQuery sq) {
+    PatternState ps = device.getPattern(sq);
+    if (!sq.isAlwaysActive()) {
+      Set<Long> keys = new HashSet<Long>();
+      for (long key : sq.nGramKeys) {
+        keys.add(key);
+      }
+      long from = Math.max(device.oldestKept() + sq.nGramLength - 1, device.numEvents - sq.window);
+      for (long p = Math.max(0, from); p < device.numEvents; p++) {
+        if (keys.contains(device.nGramKeyEndingAt(p, sq.nGramLength, nGramScratch))) {
+          ps.addHit(p);
+        }
+      }
+    }
+    if (ps.numHits >= sq.minHits) {
+      device.activate(ps);
+    }
+  }
+
+  private DeviceState getDevice(Event event) {
+    String deviceId = event.getDeviceId() != null ? event.getDeviceId() : event.getUserId();
+    DeviceState device = devices.get(deviceId);
+    if (device == null) {
+      device = new DeviceState();
+      devices.put(deviceId, device);
+      for (StandingQuery sq : queries) {
+        if (sq.isAlwaysActive()) {
+          device.activate(device.getPattern(sq));
+        }
+      }
+    }
+    return device;
+  }
+}
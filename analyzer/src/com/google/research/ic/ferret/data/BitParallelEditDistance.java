@@ -0,0 +1,312 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import java.util.Arrays;
+
+/**
+ * Computes the edit distance between a fixed pattern of identifier ids and
+ * ranges of other id arrays using Myers' bit-vector algorithm (in Hyyro's
+ * formulation for global distance). Patterns longer than 64 events are split
+ * into blocks of 64 that pass their horizontal deltas along, one word each.
+ *
+ * Build one instance per query and reuse it for every range of the log;
+ * instances keep no per-call state, but aren't meant to be shared across
+ * threads that build their own.
+ */
+public class BitParallelEditDistance {
+
+  private static final int WORD_SIZE = 64;
+
+  private final int[] pattern;
+  private final int patternLength;
+  private final int numBlocks;
+  private final long lastBlockHighBit;
+
+  /* distinct ids of the pattern, open addressing, stored as id + 1 so 0 marks an empty slot */
+  private final int[] symbols;
+  /* peq[slot * numBlocks + block] has bit i set if pattern[block * 64 + i] is symbols[slot] */
+  private final long[] peq;
+
+  private BitParallelEditDistance reversed = null;
+
+  public BitParallelEditDistance(int[] pattern) {
+    this.pattern = pattern.clone();
+    patternLength = pattern.length;
+    numBlocks = Math.max(1, (patternLength + WORD_SIZE - 1) / WORD_SIZE);
+    lastBlockHighBit = patternLength == 0 ? 0L : 1L << ((patternLength - 1) % WORD_SIZE);
+
+    int capacity = 4;
+    while (capacity < pattern.length * 2) {
+      capacity <<= 1;
+    }
+    symbols = new int[capacity];
+    peq = new long[capacity * numBlocks];
+    for (int i = 0; i < pattern.length; i++) {
+      if (pattern[i] < 0) {
+        throw new IllegalArgumentException("Identifier ids must not be negative: " + pattern[i]);
+      }
+      int slot = slotFor(pattern[i]);
+      symbols[slot] = pattern[i] + 1;
+      peq[slot * numBlocks + i / WORD_SIZE] |= 1L << (i % WORD_SIZE);
+    }
+  }
+
+  public int getPatternLength() {
+    return patternLength;
+  }
+
+  /**
+   * @param text identifier ids to compare against the pattern
+   * @param startIndex is inclusive
+   * @param endIndex is exclusive
+   * @return the edit distance between the pattern and text[startIndex, endIndex)
+   */
+  public int distance(int[] text, int startIndex, int endIndex) {
+    return distance(text, startIndex, endIndex, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Like distance(int[], int, int), but gives up as soon as the distance is 
+   * known to exceed maxDistance. Each remaining column can lower the score 
+   * by at most one, so that happens once the score exceeds maxDistance by 
+   * more than the number of columns left.
+   * @return the edit distance if it is at most maxDistance, maxDistance + 1 otherwise
+   */
+  public int distance(int[] text, int startIndex, int endIndex, int maxDistance) {
+    int textLength = Math.max(0, endIndex - startIndex);
+    int k = Math.min(maxDistance, Math.max(patternLength, textLength));
+    if (k < 0 || Math.abs(patternLength - textLength) > k) {
+      return k + 1;
+    }
+    if (textLength == 0) {
+      return patternLength;
+    }
+    if (patternLength == 0) {
+      return textLength;
+    }
+    int score;
+    if (numBlocks == 1) {
+      score = distanceSingleWord(text, startIndex, endIndex, k);
+    } else {
+      score = distanceMultiWord(text, startIndex, endIndex, k);
+    }
+    return score > k ? k + 1 : score;
+  }
+
+  private int distanceSingleWord(int[] text, int startIndex, int endIndex, int k) {
+    long pv = -1L;
+    long mv = 0L;
+    int score = patternLength;
+    for (int j = startIndex; j < endIndex; j++) {
+      int slot = find(text[j]);
+      long eq = slot < 0 ? 0L : peq[slot];
+      long xv = eq | mv;
+      long xh = (((eq & pv) + pv) ^ pv) | eq;
+      long ph = mv | ~(xh | pv);
+      long mh = pv & xh;
+      if ((ph & lastBlockHighBit) != 0) {
+        score++;
+      } else if ((mh & lastBlockHighBit) != 0) {
+        score--;
+      }
+      if (score - (endIndex - 1 - j) > k) {
+        return k + 1;
+      }
+      // the top row of the matrix grows by one per column, so +1 is shifted in
+      ph = (ph << 1) | 1L;
+      mh = mh << 1;
+      pv = mh | ~(xv | ph);
+      mv = ph & xv;
+    }
+    return score;
+  }
+
+  private int distanceMultiWord(int[] text, int startIndex, int endIndex, int k) {
+    EditDistanceScratch scratch = EditDistanceScratch.getScratch();
+    long[] pv = scratch.getPositiveVector(numBlocks);
+    long[] mv = scratch.getNegativeVector(numBlocks);
+    Arrays.fill(pv, 0, numBlocks, -1L);
+    Arrays.fill(mv, 0, numBlocks, 0L);
+    int score = patternLength;
+    for (int j = startIndex; j < endIndex; j++) {
+      int slot = find(text[j]);
+      int base = slot * numBlocks;
+      int hIn = 1;
+      for (int b = 0; b < numBlocks; b++) {
+        long eq = slot < 0 ? 0L : peq[base + b];
+        long p = pv[b];
+        long m = mv[b];
+        long xv = eq | m;
+        if (hIn < 0) {
+          eq |= 1L;
+        }
+        long xh = (((eq & p) + p) ^ p) | eq;
+        long ph = m | ~(xh | p);
+        long mh = p & xh;
+        long highBit = (b == numBlocks - 1) ? lastBlockHighBit : Long.MIN_VALUE;
+        int hOut = 0;
+        if ((ph & highBit) != 0) {
+          hOut = 1;
+        } else if ((mh & highBit) != 0) {
+          hOut = -1;
+        }
+        ph <<= 1;
+        mh <<= 1;
+        if (hIn < 0) {
+          mh |= 1L;
+        } else if (hIn > 0) {
+          ph |= 1L;
+        }
+        pv[b] = mh | ~(xv | ph);
+        mv[b] = ph & xv;
+        hIn = hOut;
+      }
+      score += hIn;
+      if (score - (endIndex - 1 - j) > k) {
+        return k + 1;
+      }
+    }
+    return score;
+  }
+
+  /**
+   * For every start position i in [startIndex, endIndex), computes the 
+   * smallest edit distance between the pattern and any range of text that 
+   * starts at i and ends at or before endIndex. This is a semi-global 
+   * alignment of the reversed pattern against the text read backwards, so all 
+   * of the starts take a single pass.
+   * @param distances receives the distance for start i at distances[i - startIndex]
+   */
+  public void bestDistancesByStart(int[] text, int startIndex, int endIndex, int[] distances) {
+    if (reversed == null) {
+      int[] reversedPattern = new int[patternLength];
+      for (int i = 0; i < patternLength; i++) {
+        reversedPattern[i] = pattern[patternLength - 1 - i];
+      }
+      reversed = new BitParallelEditDistance(reversedPattern);
+    }
+    reversed.searchBackwards(text, startIndex, endIndex, distances);
+  }
+
+  private void searchBackwards(int[] text, int startIndex, int endIndex, int[] distances) {
+    if (patternLength == 0) {
+      Arrays.fill(distances, 0, Math.max(0, endIndex - startIndex), 0);
+      return;
+    }
+    EditDistanceScratch scratch = EditDistanceScratch.getScratch();
+    long[] pv = scratch.getPositiveVector(numBlocks);
+    long[] mv = scratch.getNegativeVector(numBlocks);
+    Arrays.fill(pv, 0, numBlocks, -1L);
+    Arrays.fill(mv, 0, numBlocks, 0L);
+    int score = patternLength;
+    for (int j = endIndex - 1; j >= startIndex; j--) {
+      score += step(pv, mv, text[j]);
+      distances[j - startIndex] = score;
+    }
+  }
+
+  /**
+   * Where a search of a stream of ids has got to; see startSearch().
+   */
+  public static final class SearchState {
+    private final long[] pv;
+    private final long[] mv;
+    private int score;
+
+    private SearchState(int numBlocks, int score) {
+      pv = new long[numBlocks];
+      mv = new long[numBlocks];
+      Arrays.fill(pv, -1L);
+      this.score = score;
+    }
+  }
+
+  /**
+   * Starts a search for the pattern in ids that arrive one at a time, such
+   * as events from a device. Feed the ids to searchNext() in order.
+   */
+  public SearchState startSearch() {
+    return new SearchState(numBlocks, patternLength);
+  }
+
+  /**
+   * @return the smallest edit distance between the pattern and any range of
+   * the ids searched so far that ends with this one
+   */
+  public int searchNext(SearchState state, int id) {
+    if (patternLength == 0) {
+      return 0;
+    }
+    state.score += step(state.pv, state.mv, id);
+    return state.score;
+  }
+
+  /**
+   * Advances a semi-global search by one column, where a match may start 
+   * anywhere so the top row stays at zero.
+   * @return the change to the distance in the last row
+   */
+  private int step(long[] pv, long[] mv, int id) {
+    int slot = find(id);
+    int base = slot * numBlocks;
+    int hIn = 0;
+    for (int b = 0; b < numBlocks; b++) {
+      long eq = slot < 0 ? 0L : peq[base + b];
+      long p = pv[b];
+      long m = mv[b];
+      long xv = eq | m;
+      if (hIn < 0) {
+        eq |= 1L;
+      }
+      long xh = (((eq & p) + p) ^ p) | eq;
+      long ph = m | ~(xh | p);
+      long mh = p & xh;
+      long highBit = (b == numBlocks - 1) ? lastBlockHighBit : Long.MIN_VALUE;
+      int hOut = 0;
+      if ((ph & highBit) != 0) {
+        hOut = 1;
+      } else if ((mh & highBit) != 0) {
+        hOut = -1;
+      }
+      ph <<= 1;
+      mh <<= 1;
+      if (hIn < 0) {
+        mh |= 1L;
+      } else if (hIn > 0) {
+        ph |= 1L;
+      }
+      pv[b] = mh | ~(xv | ph);
+      mv[b] = ph & xv;
+      hIn = hOut;
+    }
+    return hIn;
+  }
+
+  private int find(int id) {
+    int slot = slotFor(id);
+    return symbols[slot] == 0 ? -1 : slot;
+  }
+
+  private int slotFor(int id) {
+    int mask = symbols.length - 1;
+    int slot = (int) NGramTable.mix(id) & mask;
+    while (symbols[slot] != 0 && symbols[slot] != id + 1) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+/**
+ * Per-thread scratch rows for the edit distance kernels. The DP kernels only
+ * need the previous and current rows of the matrix, so each thread keeps two
+ * flat int arrays (plus two long arrays for the bit-parallel kernel's block
+ * vectors, and two float rows for the weighted kernel) that grow to the largest size requested and are reused after that.
+ *
+ * A kernel must be done with its rows before it calls another kernel that
+ * uses the scratch of the same thread.
+ */
+public class EditDistanceScratch {
+
+  private static final int INITIAL_SIZE = 64;
+
+  private static final ThreadLocal<EditDistanceScratch> theScratch =
+      new ThreadLocal<EditDistanceScratch>() {
+        @Override
+        protected EditDistanceScratch initialValue() {
+          return new EditDistanceScratch();
+        }
+      };
+
+  private int[] previousRow = new int[INITIAL_SIZE];
+  private int[] currentRow = new int[INITIAL_SIZE];
+  private long[] positiveVector = new long[1];
+  private long[] negativeVector = new long[1];
+  private float[] previousWeightedRow = new float[INITIAL_SIZE];
+  private float[] currentWeightedRow = new float[INITIAL_SIZE];
+
+  private EditDistanceScratch() {}
+
+  public static EditDistanceScratch getScratch() {
+    return theScratch.get();
+  }
+
+  /**
+   * @return a row of at least length ints; its contents are undefined
+   */
+  public int[] getPreviousRow(int length) {
+    if (previousRow.length < length) {
+      previousRow = new int[grow(previousRow.length, length)];
+    }
+    return previousRow;
+  }
+
+  /**
+   * @return a row of at least length ints, distinct from getPreviousRow()
+   */
+  public int[] getCurrentRow(int length) {
+    if (currentRow.length < length) {
+      currentRow = new int[grow(currentRow.length, length)];
+    }
+    return currentRow;
+  }
+
+  public long[] getPositiveVector(int length) {
+    if (positiveVector.length < length) {
+      positiveVector = new long[grow(positiveVector.length, length)];
+    }
+    return positiveVector;
+  }
+
+  public long[] getNegativeVector(int length) {
+    if (negativeVector.length < length) {
+      negativeVector = new long[grow(negativeVector.length, length)];
+    }
+    return negativeVector;
+  }
+
+  public float[] getPreviousWeightedRow(int length) {
+    if (previousWeightedRow.length < length) {
+      previousWeightedRow = new float[grow(previousWeightedRow.length, length)];
+    }
+    return previousWeightedRow;
+  }
+
+  public float[] getCurrentWeightedRow(int length) {
+    if (currentWeightedRow.length < length) {
+      currentWeightedRow = new float[grow(currentWeightedRow.length, length)];
+    }
+    return currentWeightedRow;
+  }
+
+  private static int grow(int size, int length) {
+    while (size < length) {
+      size *= 2;
+    }
+    return size;
+  }
+}
@@ -34,7 +34,11 @@ public abstract class Event {
   protected String displayEvent = null;
   protected String displayExtra = null;
   protected String identifier = null;
-  protected int identifierId = -1;
+  /* not serialized, since ids are only meaningful within this process's IdentifierTable */
+  protected transient int identifierId = -1;
+  /* set by subclasses that memoize calculateDistance; -1 until the first comparison
+   * and after any change to the fields it covers */
+  protected transient int distanceFingerprint = -1;
   protected int repetitions = 0;
   
   protected HashMap<String, String> keyValuePairs = 
@@ -233,7 +237,14 @@ public abstract class Event {
   public void setIdentifierId(int id) {
     this.identifierId = id;
   }
+  
+  /**
+   * @return the id of getIdentifier() in the IdentifierTable, looked up once
+   */
   public int getIdentifierId() {
+    if (identifierId < 0) {
+      identifierId = IdentifierTable.getTable().getId(this);
+    }
     return identifierId;
   }
   
@@ -0,0 +1,438 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import com.google.research.ic.ferret.data.attributes.Attribute;
+import com.google.research.ic.ferret.data.attributes.AttributeColumn;
+import com.google.research.ic.ferret.data.attributes.CategoricalAttribute;
+import com.google.research.ic.ferret.data.attributes.DateTimeAttribute;
+import com.google.research.ic.ferret.data.attributes.NumericalAttribute;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A condition on search results: distance and length ranges and attribute 
+ * clauses, combined with and(), or() and not(). FilterSpec compiles itself 
+ * into one of these once (see FilterSpec.getPredicate()).
+ *
+ * Predicates can test one result at a time, or a whole range of a list: then
+ * the attribute values the clauses look at are first gathered into 
+ * AttributeColumns, one per attribute, and each clause is a loop over its 
+ * column. Numerical and date values are compared as doubles (dates as 
+ * milliseconds) and categories by dictionary codes.
+ *
+ * A clause on an attribute that a result's snippet doesn't have, or has with
+ * a value of another type, is false (so its NOT_EQUALS is true).
+ */
+public abstract class FilterPredicate {
+
+  /**
+   * @return true if the predicate accepts the result
+   */
+  public abstract boolean accepts(SubSequence subS);
+
+  /**
+   * Sets accepted[k] to whether the k-th result of the columns is accepted
+   */
+  abstract void evaluate(Columns columns, boolean[] accepted);
+
+  /**
+   * @return the clauses of the predicate, e.g. for logging the filters in use
+   */
+  @Override
+  public abstract String toString();
+
+  /**
+   * @param min the smallest distance accepted, or -1 for no minimum
+   * @param max the largest distance accepted, or -1 for no maximum
+   */
+  public static FilterPredicate distanceBetween(double min, double max) {
+    return new DistanceRange(min, max);
+  }
+
+  /**
+   * @param min the smallest length (in events) accepted, or -1 for no minimum
+   * @param max the largest length accepted, or -1 for no maximum
+   */
+  public static FilterPredicate lengthBetween(int min, int max) {
+    return new LengthRange(min, max);
+  }
+
+  /**
+   * A clause comparing the attribute of a result's snippet with value, using 
+   * one of FilterSpec's operators; value2 is the upper end for BETWEEN only
+   */
+  public static FilterPredicate attribute(String key, String operator, Object value, 
+      Object value2) {
+    return new AttributeClause(key, operator, value, value2);
+  }
+
+  public static FilterPredicate attribute(String key, String operator, Object value) {
+    return new AttributeClause(key, operator, value, null);
+  }
+
+  public static FilterPredicate and(FilterPredicate... terms) {
+    return new Conjunction(true, terms);
+  }
+
+  public static FilterPredicate or(FilterPredicate... terms) {
+    return new Conjunction(false, terms);
+  }
+
+  public static FilterPredicate not(FilterPredicate term) {
+    return new Negation(term);
+  }
+
+  /**
+   * Evaluates the predicate over results[start, end), resolving the attribute
+   * columns first
+   * @param accepted receives whether results.get(i) is accepted at accepted[i]
+   */
+  public void evaluate(List<SubSequence> results, int start, int end, boolean[] accepted) {
+    Columns columns = new Columns(results, start, end);
+    boolean[] rangeAccepted = new boolean[columns.size];
+    evaluate(columns, rangeAccepted);
+    System.arraycopy(rangeAccepted, 0, accepted, start, columns.size);
+  }
+
+  /**
+   * The distances, lengths and attribute values of a range of results, as 
+   * columns. Attribute columns are built the first time a clause asks for them.
+   */
+  static final class Columns {
+    final int size;
+    final double[] distances;
+    final int[] lengths;
+    private final List<SubSequence> results;
+    private final int start;
+    private final Map<String, Object> attributeColumns = new HashMap<String, Object>();
+
+    Columns(List<SubSequence> results, int start, int end) {
+      this.results = results;
+      this.start = start;
+      size = end - start;
+      distances = new double[size];
+      lengths = new int[size];
+      for (int k = 0; k < size; k++) {
+        SubSequence subS = results.get(start + k);
+        distances[k] = subS.getDistance();
+        lengths[k] = subS.getLength();
+      }
+    }
+
+    /**
+     * @param type the type of the attribute, one of the attribute classes' TYPE
+     */
+    AttributeColumn getAttributeColumn(String key, String type) {
+      String columnKey = type + ":" + key;
+      AttributeColumn column = (AttributeColumn) attributeColumns.get(columnKey);
+      if (column == null) {
+        column = AttributeColumn.build(results, start, start + size, key, type);
+        attributeColumns.put(columnKey, column);
+      }
+      return column;
+    }
+
+    /**
+     * @return the attribute's values, null where a snippet doesn't have it
+     */
+    Object[] getObjectColumn(String key) {
+      String columnKey = "object:" + key;
+      Object[] column = (Object[]) attributeColumns.get(columnKey);
+      if (column == null) {
+        column = new Object[size];
+        for (int k = 0; k < size; k++) {
+          column[k] = valueOf(results.get(start + k).getSnippet(), key);
+        }
+        attributeColumns.put(columnKey, column);
+      }
+      return column;
+    }
+  }
+
+  private static Object valueOf(Snippet snippet, String key) {
+    Attribute attr = snippet.getAttribute(key);
+    return attr == null ? null : attr.getValue();
+  }
+
+  private static final class DistanceRange extends FilterPredicate {
+    private final double min;
+    private final double max;
+
+    DistanceRange(double min, double max) {
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override
+    public boolean accepts(SubSequence subS) {
+      double d = subS.getDistance();
+      return !(min != -1.0 && d < min) && !(max != -1.0 && d > max);
+    }
+
+    @Override
+    void evaluate(Columns columns, boolean[] accepted) {
+      double lo = min == -1.0 ? Double.NEGATIVE_INFINITY : min;
+      double hi = max == -1.0 ? Double.POSITIVE_INFINITY : max;
+      double[] distances = columns.distances;
+      for (int k = 0; k < columns.size; k++) {
+        accepted[k] = !(distances[k] < lo) && !(distances[k] > hi);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "distance in [" + min + ", " + max + "]";
+    }
+  }
+
+  private static final class LengthRange extends FilterPredicate {
+    private final int min;
+    private final int max;
+
+    LengthRange(int min, int max) {
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override
+    public boolean accepts(SubSequence subS) {
+      int length = subS.getLength();
+      return !(min != -1 && length < min) && !(max != -1 && length > max);
+    }
+
+    @Override
+    void evaluate(Columns columns, boolean[] accepted) {
+      int lo = min == -1 ? Integer.MIN_VALUE : min;
+      int hi = max == -1 ? Integer.MAX_VALUE : max;
+      int[] lengths = columns.lengths;
+      for (int k = 0; k < columns.size; k++) {
+        accepted[k] = lengths[k] >= lo && lengths[k] <= hi;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "length in [" + min + ", " + max + "]";
+    }
+  }
+
+  private static final class AttributeClause extends FilterPredicate {
+    private static final int NUMERIC = 0;
+    private static final int DATE = 1;
+    private static final int CATEGORY = 2;
+    private static final int OBJECT = 3;
+
+    private final String key;
+    private final String operator;
+    private final Object value;
+    private final Object value2;
+    private final int kind;
+
+    AttributeClause(String key, String operator, Object value, Object value2) {
+      if (key == null || operator == null) {
+        throw new IllegalArgumentException("Attribute clauses need a key and an operator");
+      }
+      if (operator.equals(FilterSpec.BETWEEN) ? value2 == null : value2 != null) {
+        throw new IllegalArgumentException("Only BETWEEN takes a second value");
+      }
+      boolean ordered = !operator.equals(FilterSpec.EQUALS) 
+          && !operator.equals(FilterSpec.NOT_EQUALS);
+      if (ordered && !operator.equals(FilterSpec.GREATER_THAN) 
+          && !operator.equals(FilterSpec.LESS_THAN) && !operator.equals(FilterSpec.BETWEEN)) {
+        throw new IllegalArgumentException("Unknown operator " + operator);
+      }
+      if (ordered && !(value instanceof Comparable)) {
+        throw new IllegalArgumentException("Must supply a Comparable to use " + operator);
+      }
+      this.key = key;
+      this.operator = operator.intern(); // so it can be compared with the constants by ==
+      this.value = value;
+      this.value2 = value2;
+      if (value instanceof Double && (value2 == null || value2 instanceof Double)) {
+        kind = NUMERIC;
+      } else if (value instanceof Date && (value2 == null || value2 instanceof Date)) {
+        kind = DATE;
+      } else if (value instanceof String && !ordered) {
+        kind = CATEGORY;
+      } else {
+        kind = OBJECT;
+      }
+    }
+
+    @Override
+    public boolean accepts(SubSequence subS) {
+      Object attrValue = valueOf(subS.getSnippet(), key);
+      if (kind == NUMERIC || kind == DATE) {
+        boolean present = kind == NUMERIC ? attrValue instanceof Double : attrValue instanceof Date;
+        double x = !present ? Double.NaN 
+            : kind == NUMERIC ? (Double) attrValue : ((Date) attrValue).getTime();
+        return matches(present, x, toDouble(value), value2 == null ? 0.0 : toDouble(value2));
+      }
+      return matchesObject(attrValue);
+    }
+
+    @Override
+    void evaluate(Columns columns, boolean[] accepted) {
+      if (kind == NUMERIC || kind == DATE) {
+        AttributeColumn column = columns.getAttributeColumn(key, 
+            kind == NUMERIC ? NumericalAttribute.TYPE : DateTimeAttribute.TYPE);
+        boolean[] present = column.getPresent();
+        double v = toDouble(value);
+        double v2 = value2 == null ? 0.0 : toDouble(value2);
+        if (kind == NUMERIC) {
+          double[] numbers = column.getNumbers();
+          for (int k = 0; k < columns.size; k++) {
+            accepted[k] = matches(present[k], numbers[k], v, v2);
+          }
+        } else {
+          long[] times = column.getTimes();
+          for (int k = 0; k < columns.size; k++) {
+            accepted[k] = matches(present[k], times[k], v, v2);
+          }
+        }
+      } else if (kind == CATEGORY) {
+        AttributeColumn column = columns.getAttributeColumn(key, CategoricalAttribute.TYPE);
+        int code = column.getCode((String) value);
+        int c = code == -1 ? -2 : code; // -2 matches no result, not even missing ones
+        int[] codes = column.getCodes();
+        boolean equals = operator.equals(FilterSpec.EQUALS);
+        for (int k = 0; k < columns.size; k++) {
+          accepted[k] = (codes[k] == c) == equals;
+        }
+      } else {
+        Object[] column = columns.getObjectColumn(key);
+        for (int k = 0; k < columns.size; k++) {
+          accepted[k] = matchesObject(column[k]);
+        }
+      }
+    }
+
+    private double toDouble(Object v) {
+      return kind == NUMERIC ? (Double) v : ((Date) v).getTime();
+    }
+
+    private boolean matches(boolean present, double x, double v, double v2) {
+      // Double.compare, like Double.equals and compareTo, orders NaN and -0.0
+      if (operator == FilterSpec.EQUALS) {
+        return present && Double.compare(x, v) == 0;
+      } else if (operator == FilterSpec.NOT_EQUALS) {
+        return !(present && Double.compare(x, v) == 0);
+      } else if (operator == FilterSpec.GREATER_THAN) {
+        return present && Double.compare(x, v) > 0;
+      } else if (operator == FilterSpec.LESS_THAN) {
+        return present && Double.compare(x, v) < 0;
+      } else {
+        return present && Double.compare(x, v) >= 0 && Double.compare(x, v2) <= 0;
+      }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private boolean matchesObject(Object attrValue) {
+      if (operator == FilterSpec.EQUALS) {
+        return attrValue != null && attrValue.equals(value);
+      } else if (operator == FilterSpec.NOT_EQUALS) {
+        return !(attrValue != null && attrValue.equals(value));
+      } else if (attrValue == null) {
+        return false;
+      } else if (operator == FilterSpec.GREATER_THAN) {
+        return ((Comparable) attrValue).compareTo(value) > 0;
+      } else if (operator == FilterSpec.LESS_THAN) {
+        return ((Comparable) attrValue).compareTo(value) < 0;
+      } else {
+        return ((Comparable) attrValue).compareTo(value) >= 0 
+            && ((Comparable) attrValue).compareTo(value2) <= 0;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return key + " " + operator + " " + value + (value2 == null ? "" : " and " + value2);
+    }
+  }
+
+  private static final class Conjunction extends FilterPredicate {
+    private final boolean and;
+    private final List<FilterPredicate> terms;
+
+    Conjunction(boolean and, FilterPredicate... terms) {
+      this.and = and;
+      this.terms = new ArrayList<FilterPredicate>(Arrays.asList(terms));
+    }
+
+    @Override
+    public boolean accepts(SubSequence subS) {
+      for (FilterPredicate term : terms) {
+        if (term.accepts(subS) != and) {
+          return !and;
+        }
+      }
+      return and;
+    }
+
+    @Override
+    void evaluate(Columns columns, boolean[] accepted) {
+      Arrays.fill(accepted, 0, columns.size, and);
+      boolean[] termAccepted = new boolean[columns.size];
+      for (FilterPredicate term : terms) {
+        term.evaluate(columns, termAccepted);
+        for (int k = 0; k < columns.size; k++) {
+          accepted[k] = and ? accepted[k] & termAccepted[k] : accepted[k] | termAccepted[k];
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("(");
+      for (int i = 0; i < terms.size(); i++) {
+        sb.append(i == 0 ? "" : and ? " AND " : " OR ").append(terms.get(i));
+      }
+      return sb.append(")").toString();
+    }
+  }
+
+  private static final class Negation extends FilterPredicate {
+    private final FilterPredicate term;
+
+    Negation(FilterPredicate term) {
+      this.term = term;
+    }
+
+    @Override
+    public boolean accepts(SubSequence subS) {
+      return !term.accepts(subS);
+    }
+
+    @Override
+    void evaluate(Columns columns, boolean[] accepted) {
+      term.evaluate(columns, accepted);
+      for (int k = 0; k < columns.size; k++) {
+        accepted[k] = !accepted[k];
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "NOT " + term;
+    }
+  }
+}
@@ -15,9 +15,9 @@
  *******************************************************************************/
 package com.google.research.ic.ferret.data;
 
-import com.google.research.ic.ferret.test.Debug;
-
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * TODO: Insert description here. (generated by marknewman)
@@ -40,6 +40,13 @@ public class FilterSpec {
   private Object value = null;
   private Object value2 = null; // used only for BETWEEN
   
+  /* further clauses, and-ed with the ones above. Transient because Gson can't 
+   * rebuild an abstract type; specs sent to the UI carry the fields above only. */
+  private transient FilterPredicate condition = null;
+  
+  /* everything above as one predicate; built by getPredicate(), reset by the setters */
+  private transient volatile FilterPredicate predicate = null;
+  
   public FilterSpec(double minDist,
       double maxDist,
       int limit) {
@@ -48,6 +55,18 @@ public class FilterSpec {
     this.limit = limit;
   }
 
+  /**
+   * @param condition further clauses that results must satisfy, for filters 
+   * that need more than one attribute clause (see FilterPredicate.and() etc.)
+   */
+  public FilterSpec(double minDist,
+      double maxDist,
+      int limit,
+      FilterPredicate condition) {
+    this(minDist, maxDist, limit);
+    this.condition = condition;
+  }
+
   public FilterSpec(double minDist,
       double maxDist,
       int limit,
@@ -108,6 +127,7 @@ public class FilterSpec {
    */
   public void setMinDist(double minDist) {
     this.minDist = minDist;
+    predicate = null;
   }
 
   /**
@@ -122,6 +142,7 @@ public class FilterSpec {
    */
   public void setMaxDist(double maxDist) {
     this.maxDist = maxDist;
+    predicate = null;
   }
 
   /**
@@ -150,6 +171,7 @@ public class FilterSpec {
    */
   public void setAttributeKey(String attributeKey) {
     this.attributeKey = attributeKey;
+    predicate = null;
   }
 
   /**
@@ -164,6 +186,7 @@ public class FilterSpec {
    */
   public void setOperator(String operator) {
     this.operator = operator;
+    predicate = null;
   }
 
   /**
@@ -178,6 +201,7 @@ public class FilterSpec {
    */
   public void setValue(Object value) {
     this.value = value;
+    predicate = null;
   }
 
   /**
@@ -192,6 +216,7 @@ public class FilterSpec {
    */
   public void setValue2(Object value2) {
     this.value2 = value2;
+    predicate = null;
   }
 
   /**
@@ -206,6 +231,7 @@ public class FilterSpec {
    */
   public void setMaxSubSequenceSize(int maxSubSequenceSize) {
     this.maxSubSequenceSize = maxSubSequenceSize;
+    predicate = null;
   }
 
   /**
@@ -220,41 +246,69 @@ public class FilterSpec {
    */
   public void setMinSubSequenceSize(int minSubSequenceSize) {
     this.minSubSequenceSize = minSubSequenceSize;
+    predicate = null;
   }
 
-  public boolean filter(SubSequence subSequence) {
-    
-    if (minDist != -1.0 && subSequence.getDistance() < minDist) {
-      return false;
-    }
-    if (maxDist != -1.0 && subSequence.getDistance() > maxDist) {
-      return false;
-    }
-    if (minSubSequenceSize != -1 && subSequence.getLength() < minSubSequenceSize) {
-      return false;
-    }
-    if (maxSubSequenceSize != -1 && subSequence.getLength() > maxSubSequenceSize) {
-      return false;
-    }
-    if (attributeKey != null) {
-      if (operator.equals(EQUALS)) {
-        return (subSequence.getSnippet().getAttribute(attributeKey).getValue().equals(value));
-      } else if (operator.equals(NOT_EQUALS)) {
-        return (!subSequence.getSnippet().getAttribute(attributeKey).getValue().equals(value));
-      } else if (operator.equals(GREATER_THAN)) {
-        Comparable snipVal = (Comparable) subSequence.getSnippet().getAttribute(attributeKey).getValue();
-        return (snipVal.compareTo(value) > 0);
-      } else if (operator.equals(LESS_THAN)) {
-        Comparable snipVal = (Comparable) subSequence.getSnippet().getAttribute(attributeKey).getValue();
-        return (snipVal.compareTo(value) < 0);
-      } else if (operator.equals(BETWEEN)) {
-        Comparable snipVal = (Comparable) subSequence.getSnippet().getAttribute(attributeKey).getValue();
-        Debug.log("Filtering to see if " + snipVal + "BETWEEN " + value + " and " + value2 );
-        return (snipVal.compareTo(value) >= 0 && snipVal.compareTo(value2) <= 0);
+  /**
+   * @return the condition
+   */
+  public FilterPredicate getCondition() {
+    return condition;
+  }
+
+  /**
+   * @param condition the condition to set
+   */
+  public void setCondition(FilterPredicate condition) {
+    this.condition = condition;
+    predicate = null;
+  }
+
+  /**
+   * @return true if results are filtered on anything but their distance
+   */
+  public boolean hasClausesBeyondDistance() {
+    return attributeKey != null || condition != null 
+        || minSubSequenceSize != -1 || maxSubSequenceSize != -1;
+  }
+
+  /**
+   * @return the distance and length ranges, the attribute clause and the
+   * condition of this spec, as one predicate
+   */
+  public FilterPredicate getPredicate() {
+    FilterPredicate p = predicate;
+    if (p == null) {
+      List<FilterPredicate> terms = new ArrayList<FilterPredicate>();
+      terms.add(FilterPredicate.distanceBetween(minDist, maxDist));
+      if (minSubSequenceSize != -1 || maxSubSequenceSize != -1) {
+        terms.add(FilterPredicate.lengthBetween(minSubSequenceSize, maxSubSequenceSize));
       }
+      if (attributeKey != null && operator != null) {
+        terms.add(FilterPredicate.attribute(attributeKey, operator, value, 
+            operator.equals(BETWEEN) ? value2 : null));
+      }
+      if (condition != null) {
+        terms.add(condition);
+      }
+      p = terms.size() == 1 ? terms.get(0) 
+          : FilterPredicate.and(terms.toArray(new FilterPredicate[terms.size()]));
+      predicate = p;
     }
-    return true;
-  }  
+    return p;
+  }
+
+  public boolean filter(SubSequence subSequence) {
+    return getPredicate().accepts(subSequence);
+  }
+
+  /**
+   * Filters subSequences[start, end) at once, which is faster than one at a time
+   * @param accepted receives filter(subSequences.get(i)) at accepted[i]
+   */
+  public void filter(List<SubSequence> subSequences, int start, int end, boolean[] accepted) {
+    getPredicate().evaluate(subSequences, start, end, accepted);
+  }
 
   @Override
   public String toString() {
@@ -269,6 +323,7 @@ public class FilterSpec {
         + ", operator: " + operator
         + ", value: " + value
         + ", value2: " + value2
+        + ", condition: " + condition
         + " }");
 
     return sw.toString();
@@ -22,11 +22,8 @@ import com.google.research.ic.ferret.test.Debug;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * TODO: Insert description here. (generated by marknewman)
@@ -35,6 +32,9 @@ public class FilteredResultSet extends ResultSet {
 
   public static final int THATSTOOBIG = 10000;
   
+  /* insertAllAcceptable filters lists at least this long in parallel */
+  private static final int PARALLEL_FILTER_SIZE = 4096;
+  
   private double minDist = -1.0;
   private double maxDist = -1.0;
   private int size = -1;
@@ -153,18 +153,7 @@ public class FilteredResultSet extends ResultSet {
     }
     if (filterSpec.filter(subS)) {
       results.add(subS);
-      if (minDist == -1.0 || subS.getDistance() < minDist) {
-        minDist = subS.getDistance();
-      }      
-      if (subS.getDistance() > maxDist) {
-        maxDist = subS.getDistance();
-      }
-      if (minSubSequenceSize == -1 || subS.getLength() < minSubSequenceSize) {
-        minSubSequenceSize = subS.getLength();
-      }
-      if (subS.getLength() > maxSubSequenceSize) {
-        maxSubSequenceSize = subS.getLength();
-      }
+      includeStats(subS.getDistance(), subS.getDistance(), subS.getLength(), subS.getLength());
       for(Attribute attr : subS.getSnippet().getAttributes()) {
         attributes.put(attr.getKey(), attr);
       }
@@ -177,82 +166,129 @@ public class FilteredResultSet extends ResultSet {
   }
 
   /**
-   * Called after all insertions have been made based on 
+   * Same as calling insertIfAcceptable on each of subSequences in order, but
+   * the filter is evaluated in one pass (split into ranges that run in 
+   * parallel when the list is long), the distance and length ranges are 
+   * gathered in the same pass, and the results are sorted once at the end.
    */
-  public void cleanUp() {
-    removeOverlaps();
-    trimToLimit();
-    computeSummaries();
-    size = getResults().size();
-  }
-  
-  private void removeOverlaps() {
-    trimToSize(THATSTOOBIG); // this will take forever if we consider really large ResultSets
-    
-    for(SubSequence subS : results) {
-      
+  public void insertAllAcceptable(final List<SubSequence> subSequences) {
+    if (subSequences.isEmpty()) {
+      return;
+    }
+    if (results == null) {
+      results = new ArrayList<SubSequence>();
     }
+    final int n = subSequences.size();
+    final int numRanges = n < PARALLEL_FILTER_SIZE ? 1 : Runtime.getRuntime().availableProcessors();
+    final boolean[] accepted = new boolean[n];
+    final FilterStats[] rangeStats = new FilterStats[numRanges];
     
-    Collections.sort(results, new Comparator<SubSequence>() {
+    ParallelTaskExecutor.getInstance().compute(numRanges, new ParallelTask() {
+      @Override
+      public void init(int taskId) {}
       
       @Override
-      public int compare(SubSequence thus, SubSequence that) {
-        return (thus.getStartIndex() - that.getStartIndex());
+      public Boolean compute(int range) {
+        FilterStats stats = new FilterStats();
+        int start = (int) ((long) range * n / numRanges);
+        int end = (int) ((long) (range + 1) * n / numRanges);
+        filterSpec.filter(subSequences, start, end, accepted);
+        for (int i = start; i < end; i++) {
+          if (accepted[i]) {
+            stats.add(subSequences.get(i));
+          }
+        }
+        rangeStats[range] = stats;
+        return true;
       }
     });
-
-    List<Set<SubSequence>> overlapSets = new ArrayList<Set<SubSequence>>();
-
-    Set<SubSequence> overlapSet = new HashSet<SubSequence>();
-    SubSequence prev = null;
-    for(SubSequence subS : results) {
-      System.err.println(subS);
-      if (subS == null) {
-        Debug.log("How can a subsequence be null?");
+    
+    for (FilterStats stats : rangeStats) {
+      if (stats == null) {
+        throw new IllegalStateException("Filtering failed for a range of results");
       }
-
-      // check to see if this one overlaps with the previous one
-      if (prev != null) {
-        //System.err.print("Comparing " + subS + " & " + prev);
-        if(subS.getSnippet() == prev.getSnippet() &&
-            (subS.getStartIndex() >= prev.getStartIndex() && 
-            subS.getStartIndex() < prev.getEndIndex())) {
-          //System.err.println(". They overlap");
-          overlapSet.add(subS);
-          overlapSet.add(prev); // HashSet will ensure unique
-        } else { // no overlap, so start a new set
-          //System.err.println(". They don't overlap");
-          if (overlapSet.size() > 0) {
-            overlapSets.add(overlapSet);
-            overlapSet = new HashSet<SubSequence>();
-          }
-        }
-        if (overlapSet.size() > 0) {
-          overlapSets.add(overlapSet);
+      if (stats.count > 0) {
+        includeStats(stats.minDist, stats.maxDist, stats.minLength, stats.maxLength);
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      if (accepted[i]) {
+        SubSequence subS = subSequences.get(i);
+        results.add(subS);
+        for (Attribute attr : subS.getSnippet().getAttributes()) {
+          attributes.put(attr.getKey(), attr);
         }
-      }      
-      prev = subS;
+      }
+    }
+    Collections.sort(results);
+  }
+  
+  private void includeStats(double lowDist, double highDist, int shortest, int longest) {
+    if (minDist == -1.0 || lowDist < minDist) {
+      minDist = lowDist;
+    }
+    if (highDist > maxDist) {
+      maxDist = highDist;
     }
+    if (minSubSequenceSize == -1 || shortest < minSubSequenceSize) {
+      minSubSequenceSize = shortest;
+    }
+    if (longest > maxSubSequenceSize) {
+      maxSubSequenceSize = longest;
+    }
+  }
+  
+  /**
+   * Distance and length ranges of the results one range of insertAllAcceptable accepted
+   */
+  private static final class FilterStats {
+    int count = 0;
+    double minDist = 0.0;
+    double maxDist = 0.0;
+    int minLength = 0;
+    int maxLength = 0;
+    
+    void add(SubSequence subS) {
+      double dist = subS.getDistance();
+      int length = subS.getLength();
+      if (count == 0 || dist < minDist) {
+        minDist = dist;
+      }
+      if (count == 0 || dist > maxDist) {
+        maxDist = dist;
+      }
+      if (count == 0 || length < minLength) {
+        minLength = length;
+      }
+      if (count == 0 || length > maxLength) {
+        maxLength = length;
+      }
+      count++;
+    }
+  }
 
+  /**
+   * Called after all insertions have been made based on 
+   */
+  public void cleanUp() {
+    cleanUp(true);
+  }
 
-    int removed = 0;
-    for (Set<SubSequence> oSet : overlapSets) {
-      SubSequence bestRepresentative = null;
-      for (SubSequence subS : oSet) {
-        if (bestRepresentative == null) {
-          bestRepresentative = subS;
-        }
-        if (subS.getDistance() < bestRepresentative.getDistance()) {
-          bestRepresentative = subS;
-        } 
-        results.remove(subS); // take em all out
-        removed++;
-      }
-      results.add(bestRepresentative); // and put the best one back in
-      removed--;
+  public void cleanUp(boolean summarize) {
+    removeOverlaps();
+    trimToLimit();
+    if (summarize) {
+      computeSummaries();
     }
-    Debug.log("" + overlapSets.size() + " overlap sets were detected, " 
-        + removed + " were removed.");
+    size = getResults().size();
+  }
+  
+  private void removeOverlaps() {
+    trimToSize(THATSTOOBIG); // as in ResultSet.filter, only the best ones are considered
+    
+    int before = results.size();
+    results = removeOverlaps(results);
+    Debug.log("" + (before - results.size()) + " overlapping results were removed.");
     Collections.sort(results);
   }
   
@@ -267,6 +303,24 @@ public class FilteredResultSet extends ResultSet {
     }
   }
   
+  /**
+   * Computes the attribute summaries of several result sets in one parallel
+   * pass over all of them (see AttributeManager)
+   */
+  public static void computeSummaries(List<FilteredResultSet> resultSets) {
+    List<FilteredResultSet> nonEmpty = new ArrayList<FilteredResultSet>();
+    for (FilteredResultSet frs : resultSets) {
+      if (frs.getResults() != null && frs.getResults().size() > 0) {
+        nonEmpty.add(frs);
+      }
+    }
+    List<Map<String, List<Bin>>> summaries = 
+        AttributeManager.getManager().computeSummaries(nonEmpty);
+    for (int i = 0; i < nonEmpty.size(); i++) {
+      nonEmpty.get(i).attrSummaries = summaries.get(i);
+    }
+  }
+  
   public void trimToLimit() {
     if (filterSpec.getLimit() != -1) {
       trimToSize(filterSpec.getLimit());
@@ -276,7 +330,7 @@ public class FilteredResultSet extends ResultSet {
   private void trimToSize(int targetSize) {
     Collections.sort(results);
     if (results.size() > targetSize) {
-      results = results.subList(0, targetSize - 1);
+      results = results.subList(0, targetSize);
     }    
   }
   
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The one table of event identifiers (see Event.getIdentifier) and their
+ * ids. Ids are dense, starting at 0, and once assigned never change, so they
+ * can be compared instead of the strings and used to index arrays.
+ *
+ * Looking up an identifier that already has an id takes no lock, so parsers
+ * and live ingestion can share the table from any number of threads; only
+ * assigning a new id is serialized.
+ *
+ * The first event registered with an identifier is kept as its representative,
+ * for comparisons that need more of an event than its identifier (see
+ * SubstitutionCostMatrix).
+ */
+public class IdentifierTable {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  private static IdentifierTable theTable = null;
+
+  private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+  /* identifiers by id; replaced, never modified below size, when it grows */
+  private volatile String[] identifiers = new String[INITIAL_CAPACITY];
+  private volatile int size = 0;
+  
+  /* representative events by id, or null where none was registered yet */
+  private volatile Event[] representatives = new Event[INITIAL_CAPACITY];
+
+  private IdentifierTable() {}
+
+  public static synchronized IdentifierTable getTable() {
+    if (theTable == null) {
+      theTable = new IdentifierTable();
+    }
+    return theTable;
+  }
+
+  /**
+   * @return the identifier's id, assigning the next one if it is new
+   */
+  public int getId(String identifier) {
+    Integer id = ids.get(identifier);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(identifier);
+      if (id == null) {
+        id = size;
+        if (id == identifiers.length) {
+          identifiers = Arrays.copyOf(identifiers, id * 2);
+          representatives = Arrays.copyOf(representatives, id * 2);
+        }
+        identifiers[id] = identifier;
+        size = id + 1; // publishes the identifier before the id can be seen
+        ids.put(identifier, id);
+      }
+      return id;
+    }
+  }
+
+  /**
+   * Same as getId(event.getIdentifier()), and makes the event the
+   * representative of its identifier if it doesn't have one yet
+   */
+  public int getId(Event event) {
+    int id = getId(event.getIdentifier());
+    if (representatives[id] == null) {
+      synchronized (this) {
+        if (representatives[id] == null) {
+          representatives[id] = event;
+        }
+      }
+    }
+    return id;
+  }
+
+  /**
+   * @return the first event registered with the identifier of the given id, 
+   * or null if it was only ever looked up by its String
+   */
+  public Event getRepresentative(int id) {
+    if (id < 0 || id >= size) {
+      throw new IllegalArgumentException("No identifier has id " + id);
+    }
+    synchronized (this) {
+      return representatives[id];
+    }
+  }
+
+  /**
+   * @return the identifier with the given id
+   */
+  public String getIdentifier(int id) {
+    if (id < 0 || id >= size) {
+      throw new IllegalArgumentException("No identifier has id " + id);
+    }
+    return identifiers[id];
+  }
+
+  /**
+   * @return the number of identifiers, which is one more than the highest id
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return every identifier so far, where element i is the identifier with id i
+   */
+  public List<String> getIdentifiers() {
+    int n = size;
+    return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(identifiers, n)));
+  }
+}
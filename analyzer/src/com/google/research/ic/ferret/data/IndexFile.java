@@ -0,0 +1,347 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import com.google.research.ic.ferret.Config;
+import com.google.research.ic.ferret.test.Debug;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes the search engine's corpus index, so the server doesn't
+ * have to re-parse and re-index every log when it starts. The file holds the
+ * identifier and event type dictionaries, the columns of every indexed
+ * snippet and the n-gram postings. It is memory-mapped, and the postings, 
+ * timestamps and event types are read straight from the mapping rather than
+ * copied to the heap (see InvertedNGramIndex and Snippet); only identifier 
+ * ids are copied, since the edit distance kernels take them as arrays and 
+ * they may have to be renumbered. The events of the loaded snippets are only
+ * parsed from their source log file when something asks for them.
+ *
+ * All values are big-endian. Layout (version 2):
+ *   int magic, int version, int nGramLength
+ *   int numLogFiles, then per file: string name, long length, long lastModified
+ *   int numIdentifiers, then string identifier (in id order)
+ *   int numEventTypes, then string eventTypeName (in code order)
+ *   int numSnippets, then per snippet: string userId, string deviceId,
+ *       string sourceFilename, int size, int[size] identifierIds,
+ *       long[size] timeStamps, int[size] eventTypeCodes
+ *   int numNGrams, long[numNGrams] keys (ascending), 
+ *       int[numNGrams + 1] offsets (in pairs; key i's postings end where 
+ *       key i + 1's start), int[2 * numPairs] (snippet ordinal, location) pairs
+ * Strings are an int byte length (-1 for null) followed by UTF-8 bytes.
+ *
+ * The log file list is used to tell whether the index is stale: if any log
+ * file was added, removed or modified since it was written, load() returns null.
+ *
+ * Identifiers are loaded without representative events (see IdentifierTable), 
+ * which the weighted edit distance needs, so load() also returns null when 
+ * that is in use.
+ */
+public class IndexFile {
+
+  public static final int MAGIC = 0x46455254; // "FERT"
+  public static final int VERSION = 2;
+  public static final String DEFAULT_INDEX_FILE_NAME = "ferret.index";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private IndexFile() {}
+
+  /**
+   * @param logDirName the log directory, relative to the working directory as in the parsers
+   * @return the index file to use for a log directory if none was configured
+   */
+  public static File getDefaultIndexFile(String logDirName) {
+    String name = DEFAULT_INDEX_FILE_NAME;
+    if (Config.shardCount > 1) { // shards of the same log directory each need their own
+      name += "." + Config.shardIndex + "of" + Config.shardCount;
+    }
+    return new File(LogLoader.getLogDirectory(logDirName), name);
+  }
+
+  /**
+   * Writes the search engine's index for one n-gram length
+   */
+  public static void write(File indexFile, String logDirName, SearchEngine se, int nGramLength)
+      throws IOException {
+    InvertedNGramIndex corpusIndex = se.getCorpusIndex(nGramLength);
+    if (corpusIndex == null) {
+      throw new IllegalStateException("No logs are indexed with nGramLength " + nGramLength);
+    }
+    List<Snippet> logs = se.getIndexedLogs();
+    File[] logFiles = LogLoader.listLogFiles(LogLoader.getLogDirectory(logDirName));
+
+    File tmpFile = new File(indexFile.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(nGramLength);
+
+      out.writeInt(logFiles.length);
+      for (File f : logFiles) {
+        writeString(out, f.getName());
+        out.writeLong(f.length());
+        out.writeLong(f.lastModified());
+      }
+
+      // columns must be encoded before the dictionaries are written
+      for (Snippet s : logs) {
+        s.getIdentifierIds();
+      }
+      List<String> identifiers = se.getIdentifiers();
+      out.writeInt(identifiers.size());
+      for (String identifier : identifiers) {
+        writeString(out, identifier);
+      }
+      List<String> eventTypeNames = Snippet.getEventTypeNames();
+      out.writeInt(eventTypeNames.size());
+      for (String name : eventTypeNames) {
+        writeString(out, name);
+      }
+
+      out.writeInt(logs.size());
+      for (Snippet s : logs) {
+        int[] ids = s.getIdentifierIds();
+        long[] timeStamps = s.getTimeStamps();
+        int[] types = s.getEventTypeCodes();
+        writeString(out, s.getUserId());
+        writeString(out, s.getDeviceId());
+        writeString(out, s.getSourceFilename());
+        out.writeInt(ids.length);
+        for (int id : ids) {
+          out.writeInt(id);
+        }
+        for (long ts : timeStamps) {
+          out.writeLong(ts);
+        }
+        for (int type : types) {
+          out.writeInt(type);
+        }
+      }
+
+      long[] keys = corpusIndex.getKeys();
+      out.writeInt(keys.length);
+      for (long key : keys) {
+        out.writeLong(key);
+      }
+      int offset = 0;
+      out.writeInt(offset);
+      for (long key : keys) {
+        offset += corpusIndex.getPostingCount(key);
+        out.writeInt(offset);
+      }
+      for (long key : keys) {
+        for (int value : corpusIndex.getPostings(key)) {
+          out.writeInt(value);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (indexFile.exists() && !indexFile.delete()) {
+      throw new IOException("Couldn't replace " + indexFile);
+    }
+    if (!tmpFile.renameTo(indexFile)) {
+      throw new IOException("Couldn't rename " + tmpFile + " to " + indexFile);
+    }
+  }
+
+  /**
+   * Loads an index file into the search engine, which must not have any
+   * indexed logs yet.
+   * @return the loaded snippets, or null if there is no usable index for these
+   * logs (missing, another version or nGramLength, or stale) or the weighted 
+   * edit distance is in use, in which case the caller should parse and index 
+   * the logs itself
+   */
+  public static List<Snippet> load(File indexFile, String logDirName, SearchEngine se,
+      int nGramLength) throws IOException {
+    if (!indexFile.isFile()) {
+      return null;
+    }
+    if (Config.useWeightedEditDistance) {
+      Debug.log("Not using index file " + indexFile 
+          + ", the weighted edit distance needs the parsed events");
+      return null;
+    }
+    File logDir = LogLoader.getLogDirectory(logDirName);
+    FileInputStream in = new FileInputStream(indexFile);
+    try {
+      FileChannel channel = in.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        Debug.log("Index file " + indexFile + " is too large to map, ignoring it");
+        return null;
+      }
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return read(buf, logDir, se, nGramLength);
+    } catch (BufferUnderflowException e) {
+      Debug.log("Index file " + indexFile + " is truncated, ignoring it");
+      return null;
+    } catch (IndexOutOfBoundsException e) {
+      Debug.log("Index file " + indexFile + " is corrupt, ignoring it: " + e);
+      return null;
+    } catch (IllegalArgumentException e) {
+      Debug.log("Index file " + indexFile + " is corrupt, ignoring it: " + e);
+      return null;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static List<Snippet> read(ByteBuffer buf, File logDir, SearchEngine se, int nGramLength) {
+    if (buf.getInt() != MAGIC) {
+      Debug.log("Not an index file, ignoring it");
+      return null;
+    }
+    int version = buf.getInt();
+    if (version != VERSION) {
+      Debug.log("Index file has version " + version + ", expected " + VERSION);
+      return null;
+    }
+    if (buf.getInt() != nGramLength) {
+      Debug.log("Index file was built with a different nGramLength");
+      return null;
+    }
+
+    File[] logFiles = LogLoader.listLogFiles(logDir);
+    int numLogFiles = buf.getInt();
+    boolean stale = numLogFiles != logFiles.length;
+    for (int i = 0; i < numLogFiles; i++) {
+      String name = readString(buf);
+      long length = buf.getLong();
+      long lastModified = buf.getLong();
+      if (!stale && (!logFiles[i].getName().equals(name) || logFiles[i].length() != length
+          || logFiles[i].lastModified() != lastModified)) {
+        stale = true;
+      }
+    }
+    if (stale) {
+      Debug.log("Logs changed since the index file was written");
+      return null;
+    }
+
+    // ids in the file only match the search engine's if it had none of its own
+    int numIdentifiers = buf.getInt();
+    int[] idMap = new int[numIdentifiers];
+    boolean idsMatch = true;
+    for (int i = 0; i < numIdentifiers; i++) {
+      idMap[i] = se.retrieveOrRegisterIdentifier(readString(buf));
+      idsMatch &= idMap[i] == i;
+    }
+    int numEventTypes = buf.getInt();
+    int[] typeMap = new int[numEventTypes];
+    boolean typesMatch = true;
+    for (int i = 0; i < numEventTypes; i++) {
+      typeMap[i] = Snippet.getEventTypeCode(readString(buf));
+      typesMatch &= typeMap[i] == i;
+    }
+
+    EventSource eventSource = new LogFileEventSource(logDir);
+    int numSnippets = buf.getInt();
+    List<Snippet> snippets = new ArrayList<Snippet>(numSnippets);
+    for (int i = 0; i < numSnippets; i++) {
+      String userId = readString(buf);
+      String deviceId = readString(buf);
+      String sourceFilename = readString(buf);
+      int size = buf.getInt();
+      int[] ids = new int[size];
+      slice(buf, 4L * size).asIntBuffer().get(ids);
+      for (int k = 0; k < size; k++) {
+        ids[k] = idMap[ids[k]];
+      }
+      LongBuffer timeStamps = slice(buf, 8L * size).asLongBuffer();
+      IntBuffer types = slice(buf, 4L * size).asIntBuffer();
+      if (!typesMatch) {
+        int[] codes = new int[size];
+        for (int k = 0; k < size; k++) {
+          codes[k] = typeMap[types.get(k)];
+        }
+        types = IntBuffer.wrap(codes);
+      }
+      Snippet s = new Snippet(userId, deviceId, sourceFilename, ids, timeStamps, types, eventSource);
+      s.updateAttributes();
+      snippets.add(s);
+    }
+
+    InvertedNGramIndex corpusIndex = null;
+    if (idsMatch) {
+      int numNGrams = buf.getInt();
+      LongBuffer keys = slice(buf, 8L * numNGrams).asLongBuffer();
+      IntBuffer offsets = slice(buf, 4L * (numNGrams + 1)).asIntBuffer();
+      IntBuffer pairs = slice(buf, 8L * offsets.get(numNGrams)).asIntBuffer();
+      corpusIndex = new InvertedNGramIndex(nGramLength, keys, offsets, pairs);
+    } else {
+      // n-gram keys are hashes of ids, so the postings have to be rebuilt
+      Debug.log("Identifier ids changed, rebuilding postings from the index file's snippets");
+      corpusIndex = new InvertedNGramIndex(nGramLength);
+      for (int i = 0; i < snippets.size(); i++) {
+        corpusIndex.addSnippet(i, snippets.get(i).getIdentifierIds());
+      }
+    }
+    se.installIndex(snippets, corpusIndex);
+    return snippets;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * @return a view of the next length bytes of buf, which are skipped in buf
+   */
+  private static ByteBuffer slice(ByteBuffer buf, long length) {
+    if (length < 0 || length > buf.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    ByteBuffer slice = buf.slice();
+    slice.limit((int) length);
+    buf.position(buf.position() + (int) length);
+    return slice;
+  }
+
+  private static String readString(ByteBuffer buf) {
+    int length = buf.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buf.get(bytes);
+    return new String(bytes, UTF8);
+  }
+}
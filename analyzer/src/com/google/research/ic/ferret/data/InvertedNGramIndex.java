@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * A corpus-wide inverted index for n-grams of a single length. Each n-gram
+ * key (see NGramTable.computeKeys) maps to the (snippet ordinal, location)
+ * pairs where it occurs. Postings are kept in the order they were added, so 
+ * if snippets are added in ordinal order the postings of each key are sorted 
+ * by ordinal, then location.
+ *
+ * Postings added in memory are kept in an NGramTable with a stride of 2. An
+ * index loaded from an IndexFile also has a read-only base of postings that 
+ * are read straight from the mapped file: sorted keys, each with an offset 
+ * into one array of pairs. The base comes before the postings added since.
+ */
+public class InvertedNGramIndex {
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final NGramTable table;
+  private final LongBuffer baseKeys; // ascending
+  private final IntBuffer baseOffsets; // in pairs; the postings of key i end where i + 1's start
+  private final IntBuffer basePairs;
+
+  public InvertedNGramIndex(int nGramLength) {
+    this(nGramLength, LongBuffer.allocate(0), IntBuffer.wrap(new int[] {0}), IntBuffer.allocate(0));
+  }
+
+  /**
+   * Creates an index over a read-only base of postings, see IndexFile
+   * @param keys the distinct keys of the base, ascending
+   * @param offsets one more than there are keys: the postings of keys.get(i)
+   * are pairs offsets.get(i) to offsets.get(i + 1) of pairs
+   * @param pairs (snippet ordinal, location) pairs
+   */
+  InvertedNGramIndex(int nGramLength, LongBuffer keys, IntBuffer offsets, IntBuffer pairs) {
+    if (offsets.limit() != keys.limit() + 1 
+        || 2 * offsets.get(keys.limit()) != pairs.limit()) {
+      throw new IllegalArgumentException("Offsets don't match the keys and pairs");
+    }
+    table = new NGramTable(nGramLength, 2, INITIAL_CAPACITY);
+    baseKeys = keys;
+    baseOffsets = offsets;
+    basePairs = pairs;
+  }
+
+  public int getNGramLength() {
+    return table.getNGramLength();
+  }
+
+  /**
+   * @return the number of distinct n-grams in the index
+   */
+  public int size() {
+    int size = baseKeys.limit();
+    for (int slot = 0; slot < table.capacity(); slot++) {
+      if (table.isOccupied(slot) && findBase(table.getKey(slot)) == -1) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  public void add(long key, int ordinal, int location) {
+    table.add(key, ordinal, location);
+  }
+
+  /**
+   * Adds every n-gram of a snippet, given the identifier ids of its events
+   */
+  public void addSnippet(int ordinal, int[] identifierIds) {
+    long[] nGramKeys = NGramTable.computeKeys(identifierIds, getNGramLength());
+    for (int i = 0; i < nGramKeys.length; i++) {
+      table.add(nGramKeys[i], ordinal, i);
+    }
+  }
+
+  /**
+   * @return the number of (ordinal, location) pairs of the n-gram
+   */
+  public int getPostingCount(long key) {
+    int base = findBase(key);
+    int slot = table.find(key);
+    return (base == -1 ? 0 : baseOffsets.get(base + 1) - baseOffsets.get(base))
+        + (slot == -1 ? 0 : table.getPostingCount(slot));
+  }
+
+  /**
+   * @return the postings of the n-gram, pair k at [2k] (snippet ordinal) and
+   * [2k + 1] (location); empty if the n-gram is not in the index
+   */
+  public int[] getPostings(long key) {
+    int base = findBase(key);
+    int baseStart = base == -1 ? 0 : 2 * baseOffsets.get(base);
+    int baseLength = base == -1 ? 0 : 2 * baseOffsets.get(base + 1) - baseStart;
+    int slot = table.find(key);
+    int tableLength = slot == -1 ? 0 : 2 * table.getPostingCount(slot);
+    int[] pairs = new int[baseLength + tableLength];
+    for (int k = 0; k < baseLength; k++) {
+      pairs[k] = basePairs.get(baseStart + k);
+    }
+    if (slot != -1) {
+      System.arraycopy(table.getPostings(slot), 0, pairs, baseLength, tableLength);
+    }
+    return pairs;
+  }
+
+  /**
+   * @return every distinct key in the index, ascending
+   */
+  public long[] getKeys() {
+    long[] keys = new long[size()];
+    int n = 0;
+    for (int i = 0; i < baseKeys.limit(); i++) {
+      keys[n++] = baseKeys.get(i);
+    }
+    for (int slot = 0; slot < table.capacity(); slot++) {
+      if (table.isOccupied(slot) && findBase(table.getKey(slot)) == -1) {
+        keys[n++] = table.getKey(slot);
+      }
+    }
+    Arrays.sort(keys);
+    return keys;
+  }
+
+  /**
+   * @return the position of key among the base keys, or -1
+   */
+  private int findBase(long key) {
+    int lo = 0;
+    int hi = baseKeys.limit() - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      long k = baseKeys.get(mid);
+      if (k < key) {
+        lo = mid + 1;
+      } else if (k > key) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+}
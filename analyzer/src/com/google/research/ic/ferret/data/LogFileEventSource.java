@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the events of snippets that were created from their columns by 
+ * parsing their source log file again. The snippets of the last few files
+ * parsed are kept, since results often come from the same files, so showing 
+ * twenty results of one log parses it once rather than twenty times.
+ *
+ * A snippet's events are the ones of the parsed snippet with the same user,
+ * identifier ids and timestamps.
+ */
+public class LogFileEventSource implements EventSource {
+
+  private static final int MAX_CACHED_FILES = 4;
+
+  private final File logDir;
+
+  /* parsed snippets by file name, least recently used first */
+  private final LinkedHashMap<String, List<Snippet>> parsedFiles = 
+      new LinkedHashMap<String, List<Snippet>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<Snippet>> eldest) {
+          return size() > MAX_CACHED_FILES;
+        }
+      };
+
+  public LogFileEventSource(File logDir) {
+    this.logDir = logDir;
+  }
+
+  @Override
+  public synchronized List<Event> loadEvents(Snippet snippet) {
+    String fileName = snippet.getSourceFilename();
+    List<Snippet> parsed = parsedFiles.get(fileName);
+    if (parsed == null) {
+      File logFile = new File(logDir, fileName);
+      parsed = LogLoader.getLogLoader().getParser().readLogFile(logFile.getPath());
+      parsedFiles.put(fileName, parsed);
+    }
+    for (Snippet s : parsed) {
+      if (isSameSnippet(s, snippet)) {
+        return s.getEvents();
+      }
+    }
+    throw new IllegalStateException("Couldn't find the events of " + snippet + " in " + fileName);
+  }
+
+  private static boolean isSameSnippet(Snippet parsed, Snippet snippet) {
+    boolean sameUser = (parsed.getUserId() == null) ? snippet.getUserId() == null
+        : parsed.getUserId().equals(snippet.getUserId());
+    if (!sameUser || parsed.size() != snippet.size()
+        || !Arrays.equals(parsed.getIdentifierIds(), snippet.getIdentifierIds())) {
+      return false;
+    }
+    for (int i = 0; i < snippet.size(); i++) {
+      if (parsed.getTimeStamp(i) != snippet.getTimeStamp(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
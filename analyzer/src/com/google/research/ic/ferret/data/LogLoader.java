@@ -24,6 +24,12 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.google.research.ic.ferret.Config;
 import com.google.research.ic.ferret.data.attributes.Attribute;
 import com.google.research.ic.ferret.data.attributes.CategoricalAttribute;
 import com.google.research.ic.ferret.data.attributes.DateTimeAttribute;
@@ -32,10 +38,13 @@ import com.google.research.ic.ferret.data.ext.alogger.AccessibilityLogParser;
 import com.google.research.ic.ferret.test.Debug;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
 import java.lang.reflect.Type;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * TODO: Insert description here. (generated by marknewman)
@@ -53,14 +62,12 @@ public class LogLoader {
   private Gson gson = null;
   private static Object loaderLock = new Object();
   
-  private static Map<String, Integer> globalIdentifierIdMap = 
-      new HashMap<String, Integer>();
-  private static Integer lastIDAssigned = 0;
   
   private LogLoader() {
     GsonBuilder gBuilder = new GsonBuilder();
     gBuilder.registerTypeAdapter(Event.class, new JsonEventDeserializer<Event>());
     gBuilder.registerTypeAdapter(Attribute.class, new JsonAttributeDeserializer<Attribute>());
+    gBuilder.registerTypeAdapterFactory(new SnippetTypeAdapterFactory());
     gson = gBuilder.create();
   }
   
@@ -100,12 +107,61 @@ public class LogLoader {
     List<Snippet> snippets = null;
     
     synchronized(logType) {
-      snippets = getParser().readLogDirectory(logDir);
+      if (Config.shardCount > 1) {
+        snippets = new ArrayList<Snippet>();
+        for (File logFile : listLogFiles(getLogDirectory(logDir))) {
+          snippets.addAll(getParser().readLogFile(logFile.getPath()));
+        }
+      } else {
+        snippets = getParser().readLogDirectory(logDir);
+      }
       logsHaveBeenRead = true;
     }
     return snippets;
   }
   
+  /**
+   * @return the directory logDir names, relative to the working directory. 
+   * If logDir is null, the default one.
+   */
+  public static File getLogDirectory(String logDir) {
+    return new File(System.getProperty("user.dir"), 
+        logDir == null ? Config.DEFAULT_LOG_DIR : logDir);
+  }
+  
+  /**
+   * @return the files the parsers would read from logDir, sorted by name. 
+   * If this process is one of several shards (see Config.shardCount), only 
+   * the files of its shard: every shardCount-th one, starting at shardIndex.
+   */
+  public static File[] listLogFiles(File logDir) {
+    File[] logFiles = logDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return (file.getName().endsWith(".txt") ||
+            file.getName().endsWith(".log") ||
+            file.getName().endsWith(".json"));
+      }
+    });
+    if (logFiles == null) {
+      return new File[0];
+    }
+    Arrays.sort(logFiles, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+    if (Config.shardCount <= 1) {
+      return logFiles;
+    }
+    List<File> shardFiles = new ArrayList<File>();
+    for (int i = Config.shardIndex; i < logFiles.length; i += Config.shardCount) {
+      shardFiles.add(logFiles[i]);
+    }
+    return shardFiles.toArray(new File[shardFiles.size()]);
+  }
+  
   public List<Snippet> loadLogFile(String logFileName) {
     List<Snippet> snippets = null;
     
@@ -132,12 +188,7 @@ public class LogLoader {
   }
   
   public int getOrCreateIdentifierId(String identifier) {
-    Integer i = globalIdentifierIdMap.get(identifier);
-    if (i == null) {
-      i = ++lastIDAssigned;
-      globalIdentifierIdMap.put(identifier, i);
-    }
-    return i;
+    return IdentifierTable.getTable().getId(identifier);
   }
   
   public Gson getGson() {
@@ -164,6 +215,34 @@ public class LogLoader {
     }
   }
   
+  /**
+   * Materializes a Snippet's events before it is serialized, since snippets 
+   * created from columns don't hold their events until asked for them
+   */
+  private static final class SnippetTypeAdapterFactory implements TypeAdapterFactory {
+    @Override
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+      if (!Snippet.class.isAssignableFrom(type.getRawType())) {
+        return null;
+      }
+      final TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+      return new TypeAdapter<T>() {
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+          if (value != null) {
+            ((Snippet) value).getEvents();
+          }
+          delegate.write(out, value);
+        }
+
+        @Override
+        public T read(JsonReader in) throws IOException {
+          return delegate.read(in);
+        }
+      };
+    }
+  }
+  
   static final class JsonAttributeDeserializer<Attribute> 
     implements JsonDeserializer, JsonSerializer {
     /* (non-Javadoc)
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * A locality-sensitive hash index over fixed-size windows of snippets. Windows
+ * start every windowSize / 2 events, and each gets a MinHash signature of its
+ * set of n-grams, split into bands of rows. Two windows land in the same
+ * bucket of a band when all the rows of that band agree, which is likely when
+ * their n-gram sets are similar: with b bands of r rows, windows whose sets
+ * have Jaccard similarity s share a bucket with probability 1 - (1 - s^r)^b.
+ *
+ * Buckets are NGramTables from the band's hash to the ids of its windows.
+ */
+public class MinHashWindowIndex {
+
+  private static final long SEED = 0x5DEECE66DL;
+
+  private final int windowSize;
+  private final int stride;
+  private final int nGramLength;
+  private final int numBands;
+  private final int numRows;
+  private final long[] hashSeeds;
+  private final NGramTable[] bandTables;
+
+  private int[] windowOrdinals = new int[64]; // -1 for windows that were removed
+  private int[] windowStarts = new int[64];
+  private int numWindows = 0;
+  private int numRemovedWindows = 0;
+  
+  /* the window of each snippet that ends with it but doesn't start at a multiple of stride */
+  private Map<Integer, Integer> tailWindows = new HashMap<Integer, Integer>();
+
+  public MinHashWindowIndex(int windowSize, int nGramLength, int numBands, int numRows) {
+    if (windowSize <= nGramLength || numBands < 1 || numRows < 1) {
+      throw new IllegalArgumentException("Bad LSH parameters: window " + windowSize + ", ngram "
+          + nGramLength + ", bands " + numBands + ", rows " + numRows);
+    }
+    this.windowSize = windowSize;
+    this.stride = Math.max(1, windowSize / 2);
+    this.nGramLength = nGramLength;
+    this.numBands = numBands;
+    this.numRows = numRows;
+    hashSeeds = new long[numBands * numRows];
+    Random random = new Random(SEED);
+    for (int h = 0; h < hashSeeds.length; h++) {
+      hashSeeds[h] = random.nextLong();
+    }
+    bandTables = new NGramTable[numBands];
+    for (int b = 0; b < numBands; b++) {
+      bandTables[b] = new NGramTable(nGramLength);
+    }
+  }
+
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * @return the number of indexed windows
+   */
+  public int size() {
+    return numWindows - numRemovedWindows;
+  }
+
+  /**
+   * Adds the windows of a snippet, given the identifier ids of its events.
+   * The last window ends with the snippet, so every event is in some window.
+   */
+  public void addSnippet(int ordinal, int[] identifierIds) {
+    extendSnippet(ordinal, identifierIds, 0);
+  }
+  
+  /**
+   * Adds the windows of a snippet that grew from oldLength events, whose 
+   * windows were added then, to identifierIds.length events. Afterwards the 
+   * index finds the same candidates as if the whole snippet were added now:
+   * the old last window is removed unless it starts at a multiple of stride.
+   */
+  public void extendSnippet(int ordinal, int[] identifierIds, int oldLength) {
+    int oldLast = oldLength - windowSize;
+    if (identifierIds.length <= oldLength || identifierIds.length < windowSize) {
+      return;
+    }
+    Integer tailWindow = tailWindows.remove(ordinal);
+    if (tailWindow != null) {
+      windowOrdinals[tailWindow] = -1;
+      numRemovedWindows++;
+    }
+    int[] starts = windowStartsFor(identifierIds.length);
+    int first = 0;
+    while (starts[first] <= oldLast && starts[first] % stride == 0) {
+      first++; // added before
+    }
+    int from = starts[first];
+    long[] nGramKeys = NGramTable.computeKeys(
+        Arrays.copyOfRange(identifierIds, from, identifierIds.length), nGramLength);
+    long[] signature = new long[hashSeeds.length];
+    for (int k = first; k < starts.length; k++) {
+      int start = starts[k];
+      computeSignature(nGramKeys, start - from, start - from + windowSize - nGramLength + 1, 
+          signature);
+      if (numWindows == windowStarts.length) {
+        windowOrdinals = Arrays.copyOf(windowOrdinals, numWindows * 2);
+        windowStarts = Arrays.copyOf(windowStarts, numWindows * 2);
+      }
+      windowOrdinals[numWindows] = ordinal;
+      windowStarts[numWindows] = start;
+      for (int b = 0; b < numBands; b++) {
+        bandTables[b].add(bandKey(signature, b), numWindows);
+      }
+      if (start % stride != 0) {
+        tailWindows.put(ordinal, numWindows);
+      }
+      numWindows++;
+    }
+  }
+
+  /**
+   * Looks up each windowSize stretch of the query (at the same stride as the
+   * index) and, for every window that shares a bucket with one, predicts
+   * where the query would start if the two are aligned.
+   *
+   * @return for each snippet ordinal with a similar window, the sorted
+   * predicted start locations; empty if the query is shorter than a window
+   */
+  public Map<Integer, int[]> findCandidateStarts(int[] queryIds) {
+    Map<Integer, TreeSet<Integer>> startsByOrdinal = new HashMap<Integer, TreeSet<Integer>>();
+    if (queryIds.length < windowSize) {
+      return new HashMap<Integer, int[]>();
+    }
+    long[] nGramKeys = NGramTable.computeKeys(queryIds, nGramLength);
+    long[] signature = new long[hashSeeds.length];
+    for (int offset : windowStartsFor(queryIds.length)) {
+      computeSignature(nGramKeys, offset, offset + windowSize - nGramLength + 1, signature);
+      for (int b = 0; b < numBands; b++) {
+        int slot = bandTables[b].find(bandKey(signature, b));
+        if (slot == -1) {
+          continue;
+        }
+        int[] windows = bandTables[b].getPostings(slot);
+        for (int k = 0; k < bandTables[b].getPostingCount(slot); k++) {
+          int window = windows[k];
+          if (windowOrdinals[window] == -1) {
+            continue;
+          }
+          TreeSet<Integer> starts = startsByOrdinal.get(windowOrdinals[window]);
+          if (starts == null) {
+            starts = new TreeSet<Integer>();
+            startsByOrdinal.put(windowOrdinals[window], starts);
+          }
+          starts.add(Math.max(0, windowStarts[window] - offset));
+        }
+      }
+    }
+    Map<Integer, int[]> candidateStarts = new HashMap<Integer, int[]>();
+    for (Map.Entry<Integer, TreeSet<Integer>> entry : startsByOrdinal.entrySet()) {
+      int[] starts = new int[entry.getValue().size()];
+      int k = 0;
+      for (Integer start : entry.getValue()) {
+        starts[k++] = start;
+      }
+      candidateStarts.put(entry.getKey(), starts);
+    }
+    return candidateStarts;
+  }
+
+  private int[] windowStartsFor(int length) {
+    if (length < windowSize) {
+      return new int[0];
+    }
+    int last = length - windowSize;
+    int count = last / stride + 1;
+    int[] starts = new int[last % stride == 0 ? count : count + 1];
+    for (int k = 0; k < count; k++) {
+      starts[k] = k * stride;
+    }
+    starts[starts.length - 1] = last;
+    return starts;
+  }
+
+  /**
+   * For each hash function, the minimum over the n-gram keys in [start, end)
+   */
+  private void computeSignature(long[] nGramKeys, int start, int end, long[] signature) {
+    Arrays.fill(signature, Long.MAX_VALUE);
+    for (int k = start; k < end; k++) {
+      for (int h = 0; h < hashSeeds.length; h++) {
+        long value = NGramTable.mix(nGramKeys[k] ^ hashSeeds[h]);
+        if (value < signature[h]) {
+          signature[h] = value;
+        }
+      }
+    }
+  }
+
+  private long bandKey(long[] signature, int band) {
+    long key = band;
+    for (int r = band * numRows; r < (band + 1) * numRows; r++) {
+      key = NGramTable.mix(key * 31 + signature[r]);
+    }
+    return key;
+  }
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+/**
+ * A blocked Bloom filter of the n-gram keys in a snippet (see
+ * NGramTable.computeKeys). Each key sets two bits in a single 64-bit word, so
+ * a lookup touches one word. There are no false negatives: if mightContain()
+ * is false, the n-gram is not in the snippet.
+ *
+ * At about 16 bits per n-gram, roughly one lookup in a hundred is a false
+ * positive.
+ */
+public class NGramSignature {
+
+  private static final int BITS_PER_KEY = 16;
+
+  private final long[] words;
+  private final int mask;
+  private final int modCount;
+
+  /**
+   * @param modCount the Snippet's modification count when the keys were taken,
+   * so a stale signature can be recognized
+   */
+  public NGramSignature(long[] nGramKeys, int modCount) {
+    int numWords = 1;
+    while (numWords * 64L < (long) nGramKeys.length * BITS_PER_KEY) {
+      numWords <<= 1;
+    }
+    words = new long[numWords];
+    mask = numWords - 1;
+    this.modCount = modCount;
+    for (long key : nGramKeys) {
+      long h = NGramTable.mix(key);
+      words[wordFor(h)] |= bitsFor(h);
+    }
+  }
+
+  public int getModCount() {
+    return modCount;
+  }
+
+  public boolean mightContain(long nGramKey) {
+    long h = NGramTable.mix(nGramKey);
+    long bits = bitsFor(h);
+    return (words[wordFor(h)] & bits) == bits;
+  }
+
+  private int wordFor(long h) {
+    return (int) (h >>> 32) & mask;
+  }
+
+  private static long bitsFor(long h) {
+    return (1L << (h & 63)) | (1L << ((h >>> 6) & 63));
+  }
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import java.util.Arrays;
+
+/**
+ * Maps the n-grams of a single length to the locations where they start.
+ * N-grams are keyed by a rolling hash over identifier ids and postings are
+ * kept in growable int arrays, so neither indexing nor probing creates
+ * Strings or boxed Integers.
+ *
+ * A posting is one int (a location) by default; tables created with a 
+ * stride of 2 keep (snippet ordinal, location) pairs instead, see 
+ * InvertedNGramIndex.
+ */
+public class NGramTable {
+
+  /** odd 64-bit multiplier for the polynomial rolling hash */
+  private static final long HASH_BASE = 0x9E3779B97F4A7C15L;
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int INITIAL_POSTING_SIZE = 2;
+
+  private final int nGramLength;
+  private final int stride; // ints per posting
+  private long[] keys;
+  private int[][] postings;
+  private int[] postingCounts; // number of postings; 0 marks an empty slot
+  private int size = 0;
+
+  public NGramTable(int nGramLength) {
+    this(nGramLength, 1, INITIAL_CAPACITY);
+  }
+
+  /**
+   * @param stride the number of ints in each posting
+   * @param initialCapacity the initial number of slots, a power of 2
+   */
+  NGramTable(int nGramLength, int stride, int initialCapacity) {
+    if (stride < 1 || Integer.bitCount(initialCapacity) != 1) {
+      throw new IllegalArgumentException("Bad stride " + stride + " or capacity " + initialCapacity);
+    }
+    this.nGramLength = nGramLength;
+    this.stride = stride;
+    keys = new long[initialCapacity];
+    postings = new int[initialCapacity][];
+    postingCounts = new int[initialCapacity];
+  }
+
+  public int getNGramLength() {
+    return nGramLength;
+  }
+
+  /**
+   * @return the number of distinct n-grams in the table
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Computes the key of every n-gram in ids using a rolling hash.
+   * @param ids identifier ids of a sequence of events
+   * @param nGramLength
+   * @return an array where element i is the key of the n-gram starting at i
+   */
+  public static long[] computeKeys(int[] ids, int nGramLength) {
+    int count = ids.length - nGramLength + 1;
+    if (count <= 0 || nGramLength <= 0) {
+      return new long[0];
+    }
+    long[] result = new long[count];
+    long highPower = 1; // HASH_BASE^(nGramLength - 1)
+    long hash = 0;
+    for (int j = 0; j < nGramLength; j++) {
+      hash = hash * HASH_BASE + (ids[j] + 1);
+      if (j > 0) {
+        highPower *= HASH_BASE;
+      }
+    }
+    result[0] = hash;
+    for (int i = 1; i < count; i++) {
+      hash = (hash - (ids[i - 1] + 1) * highPower) * HASH_BASE
+          + (ids[i + nGramLength - 1] + 1);
+      result[i] = hash;
+    }
+    return result;
+  }
+
+  /**
+   * @return the key of the n-gram ids[startIndex, startIndex + nGramLength),
+   * the same one computeKeys() gives it
+   */
+  public static long computeKey(int[] ids, int startIndex, int nGramLength) {
+    long hash = 0;
+    for (int j = startIndex; j < startIndex + nGramLength; j++) {
+      hash = hash * HASH_BASE + (ids[j] + 1);
+    }
+    return hash;
+  }
+
+  public int getStride() {
+    return stride;
+  }
+
+  public void add(long key, int location) {
+    if (stride != 1) {
+      throw new IllegalStateException("Postings of this table have " + stride + " ints");
+    }
+    int slot = slotForAdd(key);
+    postings[slot][postingCounts[slot]++] = location;
+  }
+
+  /**
+   * Adds a posting of two ints, to a table with a stride of 2
+   */
+  public void add(long key, int first, int second) {
+    if (stride != 2) {
+      throw new IllegalStateException("Postings of this table have " + stride + " ints");
+    }
+    int slot = slotForAdd(key);
+    int offset = 2 * postingCounts[slot]++;
+    postings[slot][offset] = first;
+    postings[slot][offset + 1] = second;
+  }
+
+  /**
+   * @return the slot for key, with room for one more posting
+   */
+  private int slotForAdd(long key) {
+    if ((size + 1) * 2 > keys.length) {
+      rehash(keys.length * 2);
+    }
+    int slot = slotFor(key);
+    int count = postingCounts[slot];
+    if (count == 0) {
+      keys[slot] = key;
+      postings[slot] = new int[INITIAL_POSTING_SIZE * stride];
+      size++;
+    } else if ((count + 1) * stride > postings[slot].length) {
+      postings[slot] = Arrays.copyOf(postings[slot], postings[slot].length * 2);
+    }
+    return slot;
+  }
+
+  /**
+   * @return the slot holding key, or -1 if the n-gram is not in the table
+   */
+  public int find(long key) {
+    int slot = slotFor(key);
+    return postingCounts[slot] == 0 ? -1 : slot;
+  }
+
+  /**
+   * The returned array is the table's own storage and may be longer than
+   * the postings; posting k is at [stride * k, stride * (k + 1)). Use 
+   * getPostingCount() to bound iteration.
+   */
+  public int[] getPostings(int slot) {
+    return postings[slot];
+  }
+
+  public int getPostingCount(int slot) {
+    return postingCounts[slot];
+  }
+
+  /**
+   * @return the number of slots; iterate with isOccupied() and getKey()
+   */
+  public int capacity() {
+    return keys.length;
+  }
+
+  public boolean isOccupied(int slot) {
+    return postingCounts[slot] != 0;
+  }
+
+  public long getKey(int slot) {
+    return keys[slot];
+  }
+
+  private int slotFor(long key) {
+    int mask = keys.length - 1;
+    int slot = (int) mix(key) & mask;
+    while (postingCounts[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash(int newCapacity) {
+    long[] oldKeys = keys;
+    int[][] oldPostings = postings;
+    int[] oldCounts = postingCounts;
+    keys = new long[newCapacity];
+    postings = new int[newCapacity][];
+    postingCounts = new int[newCapacity];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldCounts[i] != 0) {
+        int slot = slotFor(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        postings[slot] = oldPostings[i];
+        postingCounts[slot] = oldCounts[i];
+      }
+    }
+  }
+
+  static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xFF51AFD7ED558CCDL;
+    key ^= key >>> 33;
+    return key;
+  }
+}
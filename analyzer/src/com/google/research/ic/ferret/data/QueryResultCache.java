@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import com.google.research.ic.ferret.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of search results, bounded both by the number
+ * of entries (Config.resultCacheSize) and by a rough estimate of the memory
+ * they hold (Config.resultCacheMemory). Results are copied on the way in and
+ * on the way out, since callers sort and trim the lists they get back.
+ */
+public class QueryResultCache {
+
+  /* rough size of a SubSequence plus the list slot pointing at it */
+  private static final long BYTES_PER_RESULT = 48;
+  private static final long BYTES_PER_ENTRY = 256;
+
+  /**
+   * Identifies a search: the identifier ids of the query, the search
+   * parameters in Config, and the version of the index that was searched.
+   * Filtered results are derived from the unfiltered ones, so they aren't
+   * part of the key.
+   */
+  public static final class Key {
+    private final int[] queryIds;
+    private final String params;
+    private final long indexVersion;
+    private final int hash;
+
+    public Key(int[] queryIds, long indexVersion) {
+      this.queryIds = queryIds.clone();
+      this.params = Config.nGramDensity + "," + Config.admittanceThreshold + ","
+          + Config.elongationFactor + "," + Config.fractionToMatch + ","
+          + Config.useAggressiveFiltering + "," + Config.candidateGenerator + "," 
+          + Config.lshWindowSize + "," + Config.lshBands + "," + Config.lshRows + "," 
+          + Config.useWeightedEditDistance + "," + Config.substitutionCostScale;
+      this.indexVersion = indexVersion;
+      long h = indexVersion;
+      for (int id : queryIds) {
+        h = NGramTable.mix(h * 31 + id);
+      }
+      this.hash = (int) (h ^ (h >>> 32)) * 31 + params.hashCode();
+    }
+
+    public long getIndexVersion() {
+      return indexVersion;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash && indexVersion == other.indexVersion
+          && Arrays.equals(queryIds, other.queryIds) && params.equals(other.params);
+    }
+  }
+
+  private static class Entry {
+    final UberResultSet results;
+    final long bytes;
+
+    Entry(UberResultSet results, long bytes) {
+      this.results = results;
+      this.bytes = bytes;
+    }
+  }
+
+  /* in access order, so the eldest entry is the least recently used */
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  private long bytes = 0;
+  private int hits = 0;
+  private int misses = 0;
+
+  /**
+   * @return a copy of the cached results, or null if the search isn't cached
+   */
+  public synchronized UberResultSet get(Key key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return copyOf(entry.results);
+  }
+
+  /**
+   * Like get, but not counted as a hit or a miss
+   */
+  synchronized UberResultSet peek(Key key) {
+    Entry entry = entries.get(key);
+    return entry == null ? null : copyOf(entry.results);
+  }
+
+  public synchronized void put(Key key, UberResultSet results) {
+    if (Config.resultCacheSize <= 0) {
+      return;
+    }
+    Entry entry = new Entry(copyOf(results), estimateBytes(key, results));
+    Entry old = entries.put(key, entry);
+    bytes += entry.bytes - (old == null ? 0 : old.bytes);
+
+    long maxBytes = Config.resultCacheMemory * 1024L * 1024L;
+    Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext() && (entries.size() > Config.resultCacheSize || bytes > maxBytes)) {
+      Entry eldest = it.next().getValue();
+      bytes -= eldest.bytes;
+      it.remove();
+    }
+  }
+
+  /**
+   * Drops every entry. Called whenever the index changes.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized int getHits() {
+    return hits;
+  }
+
+  public synchronized int getMisses() {
+    return misses;
+  }
+
+  private static long estimateBytes(Key key, UberResultSet urs) {
+    return BYTES_PER_ENTRY + 4L * key.queryIds.length + key.params.length() * 2L
+        + BYTES_PER_RESULT * (sizeOf(urs.getStrongMatches()) + sizeOf(urs.getWeakMatches())
+            + sizeOf(urs.getElongatedMatches()) + sizeOf(urs.getAltEndingMatches()));
+  }
+
+  private static int sizeOf(ResultSet rs) {
+    return (rs == null || rs.getResults() == null) ? 0 : rs.getResults().size();
+  }
+
+  /**
+   * @return a copy of urs with its own result lists, sharing the SubSequences
+   */
+  static UberResultSet copyOf(UberResultSet urs) {
+    UberResultSet copy = new UberResultSet(urs.getQuery());
+    copy.setStrongMatches(copyOf(urs.getStrongMatches()));
+    copy.setWeakMatches(copyOf(urs.getWeakMatches()));
+    copy.setElongatedMatches(copyOf(urs.getElongatedMatches()));
+    copy.setAltEndingMatches(copyOf(urs.getAltEndingMatches()));
+    return copy;
+  }
+
+  private static ResultSet copyOf(ResultSet rs) {
+    if (rs == null) {
+      return null;
+    }
+    if (rs.getResults() == null) {
+      return new ResultSet(null, rs.getSourceQuery());
+    }
+    return new ResultSet(new ArrayList<SubSequence>(rs.getResults()), rs.getSourceQuery());
+  }
+}
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -43,6 +44,14 @@ public class ResultSet {
   
   public static final double MAX_DISTANCE = 20.0;
   
+  private static final Comparator<SubSequence> RANKING = new Comparator<SubSequence>() {
+    @Override
+    public int compare(SubSequence o1, SubSequence o2) {
+      // cosine distances are [0-1], thus most of them would round to 0 when converted to int  
+      return (int) (100000 * (o1.getDistance() - o2.getDistance())); 
+    }
+  };
+  
   // for subclasses
   protected ResultSet() {
     
@@ -95,18 +104,35 @@ public class ResultSet {
   }
   
   public void rank() {
-    Collections.sort(results, new Comparator<SubSequence>() {
-      @Override
-      public int compare(SubSequence o1, SubSequence o2) {
-        // cosine distances are [0-1], thus most of them would round to 0 when converted to int  
-        return (int) (100000 * (o1.getDistance() - o2.getDistance())); 
+    Collections.sort(results, RANKING);
+  }
+  
+  /**
+   * @return true if the results are already in the order rank() puts them in
+   */
+  private boolean isRanked() {
+    for (int i = 1; i < results.size(); i++) {
+      if (RANKING.compare(results.get(i - 1), results.get(i)) > 0) {
+        return false;
       }
-    });
+    }
+    return true;
   }
   
   public FilteredResultSet filter(FilterSpec fSpec) {
+    return filter(fSpec, true);
+  }
+  
+  /**
+   * @param summarize false to leave the attribute summaries for later, e.g. 
+   * to compute them for several result sets at once with 
+   * FilteredResultSet.computeSummaries(List)
+   */
+  public FilteredResultSet filter(FilterSpec fSpec, boolean summarize) {
     FilteredResultSet frs = new FilteredResultSet(sourceQuery, this, fSpec);
-    rank();
+    if (!isRanked()) { // searches rank their results, so repeated filters needn't
+      rank();
+    }
 
     int max = results.size();
     max = MAX_RESULTS_TO_FILTER;
@@ -115,12 +141,10 @@ public class ResultSet {
 
     Debug.log("Started filtering results");
 
-    for (SubSequence subS : someResults) {
-      frs.insertIfAcceptable(subS);
-    }
+    frs.insertAllAcceptable(someResults);
     if (frs.getResults() != null) {
       Debug.log("Finished filtering results, " + frs.getResults().size() + " were added");
-      frs.cleanUp();          
+      frs.cleanUp(summarize);
       Debug.log("Finished cleaning up, " + frs.getResults().size() + " remain");
     } else {
       Debug.log("No results left after filtering, filterspec: " + fSpec);
@@ -131,6 +155,59 @@ public class ResultSet {
   public int size() {
     return getResults().size();
   }
+  
+  /**
+   * Replaces each group of overlapping results from the same snippet with its
+   * member of smallest distance (the earliest one on ties). A result overlaps 
+   * another if it starts at or after it and before it ends, and groups are 
+   * closed under overlap, so they are found by one sweep over the results of 
+   * each snippet sorted by start.
+   * @return the results that are kept, grouped by snippet in order of first 
+   * appearance and sorted by start within each snippet
+   */
+  public static List<SubSequence> removeOverlaps(List<SubSequence> results) {
+    Map<Snippet, List<SubSequence>> resultsBySnippet = 
+        new IdentityHashMap<Snippet, List<SubSequence>>();
+    List<List<SubSequence>> snippetResults = new ArrayList<List<SubSequence>>();
+    for (SubSequence subS : results) {
+      List<SubSequence> sameSnippet = resultsBySnippet.get(subS.getSnippet());
+      if (sameSnippet == null) {
+        sameSnippet = new ArrayList<SubSequence>();
+        resultsBySnippet.put(subS.getSnippet(), sameSnippet);
+        snippetResults.add(sameSnippet);
+      }
+      sameSnippet.add(subS);
+    }
+    
+    List<SubSequence> kept = new ArrayList<SubSequence>();
+    for (List<SubSequence> sameSnippet : snippetResults) {
+      Collections.sort(sameSnippet, new Comparator<SubSequence>() {
+        @Override
+        public int compare(SubSequence a, SubSequence b) {
+          return Integer.compare(a.getStartIndex(), b.getStartIndex());
+        }
+      });
+      SubSequence best = null;
+      int groupEnd = Integer.MIN_VALUE;
+      for (SubSequence subS : sameSnippet) {
+        if (best != null && subS.getStartIndex() < groupEnd) {
+          if (subS.getDistance() < best.getDistance()) {
+            best = subS;
+          }
+        } else {
+          if (best != null) {
+            kept.add(best);
+          }
+          best = subS;
+        }
+        groupEnd = Math.max(groupEnd, subS.getEndIndex());
+      }
+      if (best != null) {
+        kept.add(best);
+      }
+    }
+    return kept;
+  }
 
   public void mergeResults(ResultSet otherRS) {
     if (sourceQuery == null && otherRS.getSourceQuery() != null) {
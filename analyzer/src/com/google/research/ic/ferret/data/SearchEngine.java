@@ -19,28 +19,65 @@ import com.google.research.ic.ferret.Config;
 import com.google.research.ic.ferret.test.Debug;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class SearchEngine {
 
+  private static final float WEIGHTED_DISTANCE_TOLERANCE = 1e-4f;
+
   private static SearchEngine theSearchEngine = null;
-  //private List<Snippet> indexedLogs = null;
+  private List<Snippet> indexedLogs = new ArrayList<Snippet>(); // position is the log's ordinal
+  private Map<Snippet, Integer> logOrdinals = new IdentityHashMap<Snippet, Integer>();
   private Map<String, Snippet> indexedLogMap = new HashMap<String, Snippet>();
+  /* the key each log is under in indexedLogMap; getId() changes if the first event is removed */
+  private Map<Snippet, String> indexedLogIds = new IdentityHashMap<Snippet, String>();
+  private Map<Integer, InvertedNGramIndex> corpusIndexes = new HashMap<Integer, InvertedNGramIndex>();
   
-  private HashMap<String, Integer> identifierIds = new HashMap<String, Integer>();
   private ArrayList<Integer> nGramLengthsInUse = new ArrayList<Integer>();
+  
+  /* how many leading events of each indexed log have their ngrams in the corpus index */
+  private Map<Snippet, Integer> indexedSizes = new IdentityHashMap<Snippet, Integer>();
+  
+  /* searches hold the read lock; changes to the index hold the write lock */
+  private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+  
+  /* bumped on every change to the index, so cached results of older versions are never used */
+  private volatile long indexVersion = 0;
+  private QueryResultCache resultCache = new QueryResultCache();
+  
+  /* searches that are running, so identical ones can wait for them instead of searching again */
+  private ConcurrentHashMap<QueryResultCache.Key, FutureTask<UberResultSet>> inFlightSearches =
+      new ConcurrentHashMap<QueryResultCache.Key, FutureTask<UberResultSet>>();
+  private AtomicInteger deduplicatedSearches = new AtomicInteger();
+  
+  /* built by the first search that needs them; appended events extend the LSH index */
+  private SuffixArrayIndex suffixArrayIndex = null;
+  private Map<Integer, MinHashWindowIndex> minHashIndexes = 
+      new HashMap<Integer, MinHashWindowIndex>();
+  private final Object derivedIndexLock = new Object();
+  
+  /* identifier ids never change, so this outlives index changes; new weights drop it */
+  private SubstitutionCostMatrix costMatrix = null;
+  private long costMatrixVersion = 0;
     
   /** inner class definitions */
   private static class LocatedNGram implements Comparable<LocatedNGram> {
-    public String nGramId = null;
+    public long nGramKey = 0L;
     public int location = -1;
     public int nGramCount = -1;
-    public LocatedNGram(String nGramId, int location, int nGramCount) {
-      this.nGramId = nGramId;
+    public LocatedNGram(long nGramKey, int location, int nGramCount) {
+      this.nGramKey = nGramKey;
       this.location = location;
       this.nGramCount = nGramCount;
     }
@@ -56,6 +93,46 @@ public class SearchEngine {
     }
   }
   
+  /**
+   * The ngram hits in one log, either as LocatedNGrams or, when they come from 
+   * the suffix array, as runs of consecutive hit locations
+   */
+  private static class LogHits {
+    public List<LocatedNGram> locatedNGrams = null;
+    public int[] runs = null; // [start, end) pairs, sorted and disjoint
+    public int nGramLength = -1;
+    public int[] strongMatchStarts = null; // if set, the strong match candidates, from the LSH index
+    
+    public LogHits(List<LocatedNGram> locatedNGrams, int nGramLength) {
+      this.locatedNGrams = locatedNGrams;
+      this.nGramLength = nGramLength;
+    }
+    
+    public LogHits(int[] runs, int nGramLength) {
+      this.runs = runs;
+      this.nGramLength = nGramLength;
+    }
+    
+    public int size() {
+      if (locatedNGrams != null) {
+        return locatedNGrams.size();
+      }
+      int size = 0;
+      for (int k = 0; k < runs.length; k += 2) {
+        size += runs[k + 1] - runs[k];
+      }
+      return size;
+    }
+    
+    @Override
+    public String toString() {
+      if (locatedNGrams != null) {
+        return locatedNGrams.toString();
+      }
+      return "runs" + Arrays.toString(runs);
+    }
+  }
+  
   private static class CandidateCollector {
     public List<CandidateLocatedNGram> strongMatchCandidates = new ArrayList<CandidateLocatedNGram>();
     public List<CandidateLocatedNGram> elongationCandidates = new ArrayList<CandidateLocatedNGram>();
@@ -78,7 +155,14 @@ public class SearchEngine {
     public int sizeToCompare = -1;
     
     public CandidateLocatedNGram(LocatedNGram lng, double nGramDensity, int sizeToCompare) {
-      super (lng.nGramId, lng.location, lng.nGramCount);
+      super (lng.nGramKey, lng.location, lng.nGramCount);
+      this.nGramDensity = nGramDensity;
+      this.sizeToCompare= sizeToCompare;
+    }
+
+    public CandidateLocatedNGram(int location, int nGramCount, double nGramDensity, 
+        int sizeToCompare) {
+      super (0L, location, nGramCount); // nothing after extractCandidates looks at the key
       this.nGramDensity = nGramDensity;
       this.sizeToCompare= sizeToCompare;
     }
@@ -154,7 +238,6 @@ public class SearchEngine {
 
   private SearchEngine() {
     indexedLogMap = new HashMap<String, Snippet>();
-    //indexedLogs = new ArrayList<Snippet>();
   }
   
   public static SearchEngine getSearchEngine() {
@@ -165,41 +248,313 @@ public class SearchEngine {
   }
   
   public void clearIndex() {
-    indexedLogMap.clear();
-    nGramLengthsInUse.clear();
+    indexLock.writeLock().lock();
+    try {
+      indexChanged();
+      indexedLogMap.clear();
+      indexedLogIds.clear();
+      indexedLogs.clear();
+      logOrdinals.clear();
+      indexedSizes.clear();
+      corpusIndexes.clear();
+      nGramLengthsInUse.clear();
+    } finally {
+      indexLock.writeLock().unlock();
+    }
   }
   
+  /**
+   * Adds logs to the corpus-wide inverted index. Each log is assigned an 
+   * ordinal (its position in indexedLogs) which the index postings refer to.
+   */
   public void indexLogs(List<Snippet> logs, int nGramLength) {
-    for (Snippet s : logs) {
-      buildNGramIndex(s, nGramLength);
-      indexedLogMap.put(s.getId(), s);
+    indexLock.writeLock().lock();
+    try {
+      indexChanged();
+      if (!nGramLengthsInUse.contains(Integer.valueOf(nGramLength))) {
+        nGramLengthsInUse.add(Integer.valueOf(nGramLength));
+      }
+      InvertedNGramIndex corpusIndex = corpusIndexes.get(Integer.valueOf(nGramLength));
+      if (corpusIndex == null) {
+        corpusIndex = new InvertedNGramIndex(nGramLength);
+        corpusIndexes.put(Integer.valueOf(nGramLength), corpusIndex);
+      }
+      for (Snippet s : logs) {
+        Integer ordinal = registerLog(s);
+        int[] ids = getIdentifierIds(s);
+        corpusIndex.addSnippet(ordinal, ids);
+        indexedSizes.put(s, ids.length);
+      }
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * Appends an event to a log and makes it searchable without rebuilding the 
+   * index. If the log isn't indexed yet, it is registered as a new log.
+   * 
+   * The event goes through the parser's compressSnippet, which may still 
+   * replace or remove the last event of the log when the next one arrives. 
+   * So only ngrams that end before the last event are added to the corpus 
+   * index; the last event becomes part of the postings with the next append.
+   * Searches running concurrently see the index either before or after the 
+   * append. Cached results and the derived indexes only change when postings 
+   * are added: the LSH index is extended, and the suffix array is rebuilt by 
+   * the next search that uses it.
+   */
+  public void appendEvent(Snippet log, Event event) {
+    indexLock.writeLock().lock();
+    try {
+      log.addEvent(event);
+      LogLoader.getLogLoader().getParser().compressSnippet(log, false);
+      Integer ordinal = registerLog(log);
+      Integer indexedSize = indexedSizes.get(log);
+      if (indexedSize == null) {
+        indexedSize = 0;
+        indexedSizes.put(log, indexedSize); // derived indexes cover none of it yet
+      }
+      int stableSize = log.size() - 1;
+      if (stableSize <= indexedSize) {
+        return;
+      }
+      resultsChanged();
+      for (Integer nGramLength : nGramLengthsInUse) {
+        InvertedNGramIndex corpusIndex = corpusIndexes.get(nGramLength);
+        // ngrams that end in [indexedSize, stableSize)
+        int first = Math.max(0, indexedSize - nGramLength + 1);
+        int last = stableSize - nGramLength;
+        if (corpusIndex == null || last < first) {
+          continue;
+        }
+        int[] window = log.getIdentifierIds(first, stableSize);
+        long[] nGramKeys = NGramTable.computeKeys(window, nGramLength);
+        for (int k = 0; k < nGramKeys.length; k++) {
+          corpusIndex.add(nGramKeys[k], ordinal, first + k);
+        }
+      }
+      indexedSizes.put(log, stableSize);
+      synchronized (derivedIndexLock) {
+        suffixArrayIndex = null;
+        if (!minHashIndexes.isEmpty()) {
+          int[] ids = log.getIdentifierIds(0, stableSize);
+          for (MinHashWindowIndex minHashIndex : minHashIndexes.values()) {
+            minHashIndex.extendSnippet(ordinal, ids, indexedSize);
+          }
+        }
+      }
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * Must be called with the write lock held
+   */
+  private void indexChanged() {
+    resultsChanged();
+    suffixArrayIndex = null;
+    minHashIndexes.clear();
+  }
+  
+  /**
+   * Must be called with the write lock held. Unlike indexChanged, leaves the 
+   * derived indexes to the caller to update.
+   */
+  private void resultsChanged() {
+    indexVersion++;
+    resultCache.clear();
+  }
+  
+  /**
+   * @return the log's ordinal, assigning the next one if it is new
+   */
+  private Integer registerLog(Snippet s) {
+    Integer ordinal = logOrdinals.get(s);
+    if (ordinal == null) {
+      ordinal = indexedLogs.size();
+      indexedLogs.add(s);
+      logOrdinals.put(s, ordinal);
+    }
+    String id = s.getId();
+    String oldId = indexedLogIds.put(s, id);
+    if (oldId != null && !oldId.equals(id) && indexedLogMap.get(oldId) == s) {
+      indexedLogMap.remove(oldId);
     }
-    //indexSubSequences(logs, true);
+    indexedLogMap.put(id, s);
+    return ordinal;
+  }
+  
+  /**
+   * Registers logs together with a corpus index that was built for them 
+   * elsewhere (e.g., loaded from an IndexFile). The index postings must refer 
+   * to the logs by their position in the list.
+   */
+  void installIndex(List<Snippet> logs, InvertedNGramIndex corpusIndex) {
+    indexLock.writeLock().lock();
+    try {
+      indexChanged();
+      if (!indexedLogs.isEmpty()) {
+        throw new IllegalStateException("Can't install an index over " + indexedLogs.size() 
+            + " already indexed logs");
+      }
+      Integer nGramLength = Integer.valueOf(corpusIndex.getNGramLength());
+      if (!nGramLengthsInUse.contains(nGramLength)) {
+        nGramLengthsInUse.add(nGramLength);
+      }
+      corpusIndexes.put(nGramLength, corpusIndex);
+      for (Snippet s : logs) {
+        registerLog(s);
+        indexedSizes.put(s, s.size());
+      }
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * @return the indexed logs, in ordinal order
+   */
+  List<Snippet> getIndexedLogs() {
+    return indexedLogs;
+  }
+  
+  InvertedNGramIndex getCorpusIndex(int nGramLength) {
+    return corpusIndexes.get(Integer.valueOf(nGramLength));
   }
   
-  private void buildNGramIndex(Snippet snippet, int nGramLength) {
-    if (!nGramLengthsInUse.contains(Integer.valueOf(nGramLength))) {
-      nGramLengthsInUse.add(Integer.valueOf(nGramLength));
+  /**
+   * Must be called with the read lock held. The suffix array covers the same 
+   * events of each log as the corpus index.
+   */
+  private SuffixArrayIndex getSuffixArrayIndex() {
+    synchronized (derivedIndexLock) {
+      if (suffixArrayIndex == null) {
+        long start = System.currentTimeMillis();
+        suffixArrayIndex = new SuffixArrayIndex(getIndexedIds());
+        Debug.log("Built a suffix array over " + suffixArrayIndex.size() + " events in " 
+            + (System.currentTimeMillis() - start) + " ms");
+      }
+      return suffixArrayIndex;
     }
-    int snipSize = snippet.getEvents().size();
-    String nGramId = null;
-    for (int i = 0; i < snipSize; i++) {
-      nGramId = "|";
-      if (i <= snipSize - nGramLength) {
-        for (int j = 0; j < nGramLength; j++) {
-          // construct an index for the ngram going forward from here
-          nGramId += snippet.getEvents().get(j + i).getIdentifier() + "|";
+  }
+  
+  /**
+   * Must be called with the read lock held. Like the suffix array, the LSH 
+   * index covers the same events of each log as the corpus index. There is 
+   * one for each n-gram length, since its signatures hash n-grams.
+   */
+  private MinHashWindowIndex getMinHashIndex(int nGramLength) {
+    synchronized (derivedIndexLock) {
+      MinHashWindowIndex minHashIndex = minHashIndexes.get(Integer.valueOf(nGramLength));
+      if (minHashIndex == null) {
+        long start = System.currentTimeMillis();
+        minHashIndex = new MinHashWindowIndex(Config.lshWindowSize, nGramLength, 
+            Config.lshBands, Config.lshRows);
+        List<int[]> ids = getIndexedIds();
+        for (int ordinal = 0; ordinal < ids.size(); ordinal++) {
+          minHashIndex.addSnippet(ordinal, ids.get(ordinal));
         }
-        snippet.addNGram(nGramLength, nGramId, i);
+        minHashIndexes.put(Integer.valueOf(nGramLength), minHashIndex);
+        Debug.log("Built an LSH index of " + minHashIndex.size() + " windows in " 
+            + (System.currentTimeMillis() - start) + " ms");
       }
+      return minHashIndex;
     }
   }
+  
+  /**
+   * @return substitution costs for every identifier registered so far; the 
+   * rows of identifiers that are new since the last call are computed first
+   */
+  private SubstitutionCostMatrix getSubstitutionCostMatrix() {
+    SubstitutionCostMatrix current = null;
+    long version = 0;
+    float scale = (float) Config.substitutionCostScale;
+    synchronized (derivedIndexLock) {
+      if (costMatrix == null || costMatrix.getScale() != scale) {
+        costMatrix = SubstitutionCostMatrix.empty(scale);
+      }
+      current = costMatrix;
+      version = costMatrixVersion;
+    }
+    // extend runs on the task executor, so it must not hold the lock
+    long start = System.currentTimeMillis();
+    SubstitutionCostMatrix extended = current.extend(IdentifierTable.getTable());
+    if (extended.size() > current.size()) {
+      Debug.log("Extended the substitution cost matrix from " + current.size() + " to " 
+          + extended.size() + " identifiers in " + (System.currentTimeMillis() - start) + " ms");
+    }
+    synchronized (derivedIndexLock) {
+      // don't publish costs computed under weights that have since changed
+      if (version == costMatrixVersion && costMatrix.getScale() == scale 
+          && costMatrix.size() < extended.size()) {
+        costMatrix = extended;
+      }
+    }
+    return extended;
+  }
+  
+  /**
+   * Drops the substitution costs and cached results, which were computed 
+   * from event distances that are no longer valid, e.g. after the distance 
+   * weights changed.
+   */
+  public void distancesChanged() {
+    indexLock.writeLock().lock();
+    try {
+      synchronized (derivedIndexLock) {
+        costMatrix = null;
+        costMatrixVersion++;
+      }
+      resultsChanged();
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * @return the ids of each indexed log's events that are in the corpus index, 
+   * in ordinal order
+   */
+  private List<int[]> getIndexedIds() {
+    List<int[]> ids = new ArrayList<int[]>(indexedLogs.size());
+    for (Snippet s : indexedLogs) {
+      int[] logIds = getIdentifierIds(s);
+      ids.add(Arrays.copyOf(logIds, Math.min(logIds.length, indexedSizes.get(s))));
+    }
+    return ids;
+  }
+  
+  /**
+   * @return every registered identifier, where element i is the identifier with id i
+   */
+  public List<String> getIdentifiers() {
+    return IdentifierTable.getTable().getIdentifiers();
+  }
+  
+  /**
+   * Builds a table of the ngrams in the query without adding it to the query
+   * snippet, so repeated searches don't accumulate postings
+   */
+  private NGramTable buildQueryNGramTable(Snippet query, int nGramLength) {
+    NGramTable table = new NGramTable(nGramLength);
+    long[] nGramKeys = NGramTable.computeKeys(getIdentifierIds(query), nGramLength);
+    for (int i = 0; i < nGramKeys.length; i++) {
+      table.add(nGramKeys[i], i);
+    }
+    return table;
+  }
+
+  private int[] getIdentifierIds(Snippet snippet) {
+    return snippet.getIdentifierIds();
+  }
 
   
   private HashMap<Integer, Integer> extractNGrams(SubSequence subsequence) {
     Event lastEvent = null;
     HashMap<Integer, Integer> map = new HashMap<Integer, Integer>();
-    int numEvents = identifierIds.size();
+    int numEvents = IdentifierTable.getTable().size();
     for (Event evt : subsequence.getEvents()) {
       if (lastEvent != null) {
         int index = 
@@ -215,78 +570,421 @@ public class SearchEngine {
     return map;
   }
 
+  /**
+   * @return the identifier's id in the IdentifierTable
+   */
   public int retrieveOrRegisterIdentifier(String key) {
-    Integer index = identifierIds.get(key);
-    if (index == null) {
-      index = identifierIds.size();
-      identifierIds.put(key, index);
-    }
-    return index;
+    return IdentifierTable.getTable().getId(key);
   }
 
   
   public UberResultSet findMatches(Snippet query){
-    return findMatches(query, getAllLogs());
+    return findCachedMatches(query);
   }
 
   public UberResultSet findMatches(Snippet query, final List<Snippet> logs) {
+    if (Config.parallelSearch) {
+      return findMatchesInParallel(query, logs);
+    }
     return findMatchesUsingPartitioning(query, logs);
   }
   
+  /**
+   * Like findMatches(Snippet), but only keeps the results that filterSpec 
+   * accepts, and of those at most filterSpec.getLimit() of each kind, best 
+   * first. They are picked from the cached results of the unfiltered search, 
+   * so summaries, details and filters of one query share a single search.
+   */
+  public UberResultSet findMatches(Snippet query, FilterSpec filterSpec) {
+    TopKResultAccumulator accumulator = new TopKResultAccumulator(query, filterSpec);
+    accumulator.addLogResults(findCachedMatches(query));
+    return accumulator.getResults();
+  }
+  
+  /**
+   * Searches all the indexed logs, going through the result cache. The UI 
+   * asks for summaries, details and filtered results of the same query one 
+   * after another, so only the first of those has to search.
+   * 
+   * Identical searches that arrive while one is running wait for it rather 
+   * than searching again, and each gets its own copy of its result lists.
+   */
+  private UberResultSet findCachedMatches(final Snippet query) {
+    QueryResultCache.Key key = new QueryResultCache.Key(getIdentifierIds(query), indexVersion);
+    UberResultSet urs = resultCache.get(key);
+    if (urs != null) {
+      return urs;
+    }
+    FutureTask<UberResultSet> search = new FutureTask<UberResultSet>(
+        new Callable<UberResultSet>() {
+          @Override
+          public UberResultSet call() {
+            return findMatches(query, getAllLogs());
+          }
+        });
+    FutureTask<UberResultSet> inFlight = inFlightSearches.putIfAbsent(key, search);
+    if (inFlight != null) {
+      deduplicatedSearches.incrementAndGet();
+      return QueryResultCache.copyOf(waitForSearch(inFlight));
+    }
+    try {
+      // an identical search may have finished since the lookup above
+      urs = resultCache.peek(key);
+      if (urs != null) {
+        deduplicatedSearches.incrementAndGet();
+        return urs;
+      }
+      search.run();
+      urs = waitForSearch(search);
+      if (key.getIndexVersion() == indexVersion) { // otherwise the index changed while searching
+        resultCache.put(key, urs);
+      }
+    } finally {
+      inFlightSearches.remove(key, search);
+    }
+    return QueryResultCache.copyOf(urs);
+  }
+  
+  private UberResultSet waitForSearch(FutureTask<UberResultSet> search) {
+    try {
+      return search.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a search", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException("Search failed", e.getCause());
+    }
+  }
+  
+  /**
+   * @return how many searches used the results of an identical concurrent one
+   * instead of running
+   */
+  public int getDeduplicatedSearchCount() {
+    return deduplicatedSearches.get();
+  }
+  
+  public QueryResultCache getResultCache() {
+    return resultCache;
+  }
+  
+  public long getIndexVersion() {
+    return indexVersion;
+  }
+  
   public UberResultSet findMatchesUsingPartitioning(Snippet query, final List<Snippet> logs) {
+    return findMatchesUsingPartitioning(query, logs, false);
+  }
+  
+  /**
+   * Same as findMatchesUsingPartitioning, but the logs that share ngrams with 
+   * the query are split into contiguous ranges that are searched concurrently,
+   * each into its own partial UberResultSet. The partial results are merged 
+   * in range order, so the results are the same as a serial search.
+   */
+  public UberResultSet findMatchesInParallel(Snippet query, final List<Snippet> logs) {
+    return findMatchesUsingPartitioning(query, logs, true);
+  }
+  
+  private UberResultSet findMatchesUsingPartitioning(Snippet query, final List<Snippet> logs,
+      boolean parallel) {
+    indexLock.readLock().lock();
+    try {
+      return searchLogs(query, logs, parallel);
+    } finally {
+      indexLock.readLock().unlock();
+    }
+  }
+  
+  private UberResultSet searchLogs(Snippet query, final List<Snippet> logs, boolean parallel) {
     UberResultSet urs = new UberResultSet(query);
+    SubstitutionCostMatrix costs = null;
+    if (Config.useWeightedEditDistance) {
+      costs = getSubstitutionCostMatrix(); // new rows are computed in parallel here, not per log
+    }
     
     // Loop through all nGramLengths. Typically we only use on nGramLength.
     for (Integer i : nGramLengthsInUse) {
       //Debug.log("nGramLengths " + nGramLengthsInUse);
-      buildNGramIndex(query, i);
-      List<Integer> matchedLocations = new ArrayList<Integer>();
-      List<LocatedNGram> locatedNGrams = new ArrayList<LocatedNGram>();
-      Map<String, List<Integer>> queryMap = query.getNGramTable(i);
+      NGramTable queryTable = buildQueryNGramTable(query, i);
       List<LocatedNGram> queryNGramLocations = new ArrayList<LocatedNGram>();
       
-      if (queryMap == null) {
+      if (queryTable.size() == 0) {
         continue;
       }
-      //Debug.log("Got queryMap for nGram length " + i + ": " + queryMap);
       
-      for (Snippet log : logs) {
-        locatedNGrams.clear();
-        // go through each ngram in the query and find matching locations in this log
-        for(String key : queryMap.keySet()) {
-          
-          List<Integer> nGramLocs = queryMap.get(key);
-          for (Integer j : nGramLocs) {
-            queryNGramLocations.add(new LocatedNGram(key, j.intValue(), i));
+      for (int slot = 0; slot < queryTable.capacity(); slot++) {
+        if (queryTable.isOccupied(slot)) {
+          int[] nGramLocs = queryTable.getPostings(slot);
+          for (int k = 0; k < queryTable.getPostingCount(slot); k++) {
+            queryNGramLocations.add(new LocatedNGram(queryTable.getKey(slot), nGramLocs[k], i));
           }
-          List<Integer> theseMatches = log.getNGramTable(i).get(key);
-
-          if (theseMatches != null) {
-            for (Integer j: theseMatches) {
-              LocatedNGram lng = new LocatedNGram(key, j.intValue(), i);   
-              locatedNGrams.add(lng);
+        }
+      }
+      Collections.sort(queryNGramLocations);
+      
+      // find every indexed log that shares at least one ngram with the query
+      InvertedNGramIndex corpusIndex = corpusIndexes.get(i);
+      Map<Integer, LogHits> hitsByOrdinal = null;
+      if (Config.useSuffixArraySeeds && corpusIndex != null && nGramLengthsInUse.size() == 1) {
+        // with more than one length, logs may be indexed for some lengths only 
+        hitsByOrdinal = collectSuffixArrayHits(getIdentifierIds(query), i);
+      } else {
+        hitsByOrdinal = collectCorpusHits(queryTable, corpusIndex);
+      }
+      Map<Integer, int[]> lshStarts = null;
+      if (Config.candidateGenerator.equals(Config.ARG_CANDIDATES_LSH) && corpusIndex != null 
+          && query.size() >= Config.lshWindowSize) {
+        lshStarts = getMinHashIndex(i).findCandidateStarts(getIdentifierIds(query));
+      }
+      List<Snippet> candidateLogs = new ArrayList<Snippet>();
+      List<LogHits> candidateHits = new ArrayList<LogHits>();
+      
+      for (Snippet log : logs) {
+        LogHits hits = null;
+        Integer ordinal = logOrdinals.get(log);
+        if (ordinal != null && corpusIndex != null) {
+          hits = hitsByOrdinal.get(ordinal);
+          if (lshStarts != null) {
+            // strong matches come from the similar windows, the other kinds from ngram density
+            int[] starts = lshStarts.get(ordinal);
+            if (starts != null) {
+              if (hits == null) {
+                hits = new LogHits(new ArrayList<LocatedNGram>(), i);
+              }
+              hits.strongMatchStarts = starts;
+              candidateLogs.add(log);
+              candidateHits.add(hits);
+              continue;
+            } else if (hits != null) {
+              hits.strongMatchStarts = new int[0];
             }
           }
+          if (hits == null) {
+            continue; // no ngram in common with the query, so nothing can match
+          }
+        } else {
+          if (!sharesNGram(queryTable, log.getNGramSignature(i))) {
+            continue;
+          }
+          hits = new LogHits(probeLog(queryTable, log), i);
+        }
+        if (!canReachDensity(hits.size(), query.size())) {
+          continue;
+        }
+        candidateLogs.add(log);
+        candidateHits.add(hits);
+      }
+      
+      if (parallel && candidateLogs.size() > 1) {
+        searchLogsInParallel(query, candidateLogs, candidateHits, queryNGramLocations, costs, urs);
+      } else {
+        for (int k = 0; k < candidateLogs.size(); k++) {
+          urs.mergeResults(
+              searchLog(query, candidateLogs.get(k), candidateHits.get(k), queryNGramLocations,
+                  costs));
         }
-        // now we have all the locations in the log where any ngram in the query matched
-        // so we take a closer look at each location to compile a non-overlapping list of matches
-        
-        Collections.sort(locatedNGrams);
-        Debug.log("\n\n****Looking at log: " + log.toString() + "****");
-        Debug.log("LocatedNGrams: " + locatedNGrams);
-        CandidateCollector canColl = extractCandidates(locatedNGrams, query.size());
-        Debug.log("Candidates: " + canColl.toString());
-        NeighborhoodCollector neighColl = assignNeighborhoods(canColl, query.size());
-        Debug.log("Neighborhoods: " + neighColl.toString());
-        PromotionCollector promColl = electNeighborhoodRepresentatives(neighColl, query, log, queryNGramLocations);
-        Debug.log("Promotions: " + promColl.toString());
-        urs.mergeResults(admitResults(promColl, query, log));
-        pruneResults(urs);
+      }
+      
+      if (urs.getStrongMatches() == null && !logs.isEmpty()) {
+        // no log shared an ngram with the query, so report empty result sets 
+        urs.mergeResults(admitResults(new PromotionCollector(), query, null));
       }
     }
     return urs;
   }
   
+  /**
+   * @return lists of LocatedNGrams matching the query, keyed by log ordinal.
+   * Logs that don't share any ngram with the query are absent from the map.
+   */
+  private Map<Integer, LogHits> collectCorpusHits(NGramTable queryTable, 
+      InvertedNGramIndex corpusIndex) {
+    Map<Integer, LogHits> hitsByOrdinal = new HashMap<Integer, LogHits>();
+    if (corpusIndex == null) {
+      return hitsByOrdinal;
+    }
+    int nGramLength = queryTable.getNGramLength();
+    for (int slot = 0; slot < queryTable.capacity(); slot++) {
+      if (!queryTable.isOccupied(slot)) {
+        continue;
+      }
+      long key = queryTable.getKey(slot);
+      int[] postings = corpusIndex.getPostings(key);
+      int count = postings.length / 2;
+      List<LocatedNGram> hits = null;
+      int lastOrdinal = -1;
+      for (int k = 0; k < count; k++) {
+        int ordinal = postings[2 * k];
+        if (ordinal != lastOrdinal) { // postings are mostly grouped by ordinal
+          LogHits logHits = hitsByOrdinal.get(ordinal);
+          if (logHits == null) {
+            logHits = new LogHits(new ArrayList<LocatedNGram>(), nGramLength);
+            hitsByOrdinal.put(ordinal, logHits);
+          }
+          hits = logHits.locatedNGrams;
+          lastOrdinal = ordinal;
+        }
+        hits.add(new LocatedNGram(key, postings[2 * k + 1], nGramLength));
+      }
+    }
+    return hitsByOrdinal;
+  }
+  
+  /**
+   * Same hits as collectCorpusHits, as runs of consecutive locations found 
+   * from the exact matches between the query and the logs. A long exact 
+   * match is one run rather than an ngram hit per location.
+   */
+  private Map<Integer, LogHits> collectSuffixArrayHits(int[] queryIds, int nGramLength) {
+    Map<Integer, LogHits> hitsByOrdinal = new HashMap<Integer, LogHits>();
+    for (Map.Entry<Integer, int[]> entry : 
+        getSuffixArrayIndex().findHitRuns(queryIds, nGramLength).entrySet()) {
+      hitsByOrdinal.put(entry.getKey(), new LogHits(entry.getValue(), nGramLength));
+    }
+    return hitsByOrdinal;
+  }
+  
+  /**
+   * @return false if the signature proves that the log has none of the query's ngrams
+   */
+  private boolean sharesNGram(NGramTable queryTable, NGramSignature signature) {
+    for (int slot = 0; slot < queryTable.capacity(); slot++) {
+      if (queryTable.isOccupied(slot) && signature.mightContain(queryTable.getKey(slot))) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * extractCandidates counts, for each ngram hit in a log, the hits that 
+   * follow it within a window, so no window holds more than hitCount - 1. 
+   * If that many can't reach Config.nGramDensity for any kind of match, the 
+   * log has no candidates and searching it would find nothing.
+   */
+  private boolean canReachDensity(int hitCount, int querySize) {
+    int maxCount = hitCount - 1;
+    if (maxCount < 0) {
+      return false;
+    }
+    int elongationLength = querySize * Config.elongationFactor; 
+    int altEndLength = (int) Math.ceil(querySize * Config.fractionToMatch + 1);
+    return (double) maxCount / (double) querySize >= Config.nGramDensity
+        || (double) maxCount / (double) elongationLength >= Config.nGramDensity
+        || (double) maxCount / (double) altEndLength >= Config.nGramDensity;
+  }
+  
+  /**
+   * Finds the query's ngrams in a log that isn't in the corpus index
+   */
+  private List<LocatedNGram> probeLog(NGramTable queryTable, Snippet log) {
+    int nGramLength = queryTable.getNGramLength();
+    List<LocatedNGram> locatedNGrams = new ArrayList<LocatedNGram>();
+    NGramTable logTable = log.getNGramTable(nGramLength); // rebuilt after appends
+    // go through each ngram in the query and find matching locations in this log
+    for (int slot = 0; slot < queryTable.capacity(); slot++) {
+      if (!queryTable.isOccupied(slot)) {
+        continue;
+      }
+      long key = queryTable.getKey(slot);
+      int logSlot = logTable.find(key);
+      if (logSlot != -1) {
+        int[] theseMatches = logTable.getPostings(logSlot);
+        for (int k = 0; k < logTable.getPostingCount(logSlot); k++) {
+          locatedNGrams.add(new LocatedNGram(key, theseMatches[k], nGramLength));
+        }
+      }
+    }
+    return locatedNGrams;
+  }
+  
+  private void searchLogsInParallel(final Snippet query, final List<Snippet> candidateLogs, 
+      final List<LogHits> candidateHits, final List<LocatedNGram> queryNGramLocations,
+      final SubstitutionCostMatrix costs, UberResultSet urs) {
+    final int numLogs = candidateLogs.size();
+    final int numRanges = Math.min(numLogs, Runtime.getRuntime().availableProcessors());
+    final UberResultSet[] partials = new UberResultSet[numRanges];
+    
+    ParallelTaskExecutor.getInstance().compute(numRanges, new ParallelTask() {
+      @Override
+      public void init(int taskId) {}
+      
+      @Override
+      public Boolean compute(int range) {
+        int start = (int) ((long) range * numLogs / numRanges);
+        int end = (int) ((long) (range + 1) * numLogs / numRanges);
+        UberResultSet partial = new UberResultSet(query);
+        for (int k = start; k < end; k++) {
+          partial.mergeResults(
+              searchLog(query, candidateLogs.get(k), candidateHits.get(k), queryNGramLocations,
+                  costs));
+        }
+        partials[range] = partial;
+        return true;
+      }
+    });
+    
+    for (int range = 0; range < numRanges; range++) {
+      if (partials[range] == null) {
+        throw new IllegalStateException("Parallel search failed for log range " + range);
+      }
+      urs.mergeResults(partials[range]);
+    }
+  }
+  
+  /**
+   * Searches a single log. Overlapping strong matches within the log are 
+   * pruned here, since matches in different logs can't overlap.
+   * 
+   * @param costs the substitution costs for weighted edit distance, or null
+   */
+  private UberResultSet searchLog(Snippet query, Snippet log, LogHits hits,
+      List<LocatedNGram> queryNGramLocations, SubstitutionCostMatrix costs) {
+    // now we have all the locations in the log where any ngram in the query matched
+    // so we take a closer look at each location to compile a non-overlapping list of matches
+    
+    if (hits.locatedNGrams != null) {
+      Collections.sort(hits.locatedNGrams);
+    }
+    if (Config.debug) { // the collectors' strings are expensive to build
+      Debug.log("\n\n****Looking at log: " + log.toString() + "****");
+      Debug.log("LocatedNGrams: " + hits);
+    }
+    CandidateCollector canColl = null;
+    if (hits.runs != null) {
+      canColl = extractCandidates(hits.runs, hits.nGramLength, query.size());
+    } else {
+      canColl = extractCandidates(hits.locatedNGrams, query.size());
+    }
+    if (hits.strongMatchStarts != null) {
+      canColl.strongMatchCandidates = new ArrayList<CandidateLocatedNGram>();
+      for (int start : hits.strongMatchStarts) {
+        // the LSH index doesn't measure density
+        canColl.strongMatchCandidates.add(
+            new CandidateLocatedNGram(start, hits.nGramLength, -1.0d, query.size()));
+      }
+    }
+    if (Config.debug) {
+      Debug.log("Candidates: " + canColl.toString());
+    }
+    NeighborhoodCollector neighColl = assignNeighborhoods(canColl, query.size());
+    if (Config.debug) {
+      Debug.log("Neighborhoods: " + neighColl.toString());
+    }
+    PromotionCollector promColl = electNeighborhoodRepresentatives(neighColl, query, log, queryNGramLocations,
+        costs);
+    if (Config.debug) {
+      Debug.log("Promotions: " + promColl.toString());
+    }
+    UberResultSet logResults = admitResults(promColl, query, log);
+    pruneResults(logResults);
+    return logResults;
+  }
+  
   private CandidateCollector extractCandidates(List<LocatedNGram> locatedNGrams, int querySize) {
     
     CandidateCollector collector = new CandidateCollector();
@@ -338,6 +1036,79 @@ public class SearchEngine {
     return collector;
   }
   
+  /**
+   * Finds the same candidates as extractCandidates does for the hit locations 
+   * in runs, but counts the hits in each window from the run lengths instead 
+   * of going through them one at a time.
+   */
+  private CandidateCollector extractCandidates(int[] runs, int nGramLength, int querySize) {
+    
+    CandidateCollector collector = new CandidateCollector();
+    
+    int elongationLength = querySize * Config.elongationFactor; 
+    int altEndLength = (int) Math.ceil(querySize * Config.fractionToMatch + 1);
+    // extractCandidates counts the hits that end before the end of a window, 
+    // but stops at the first one past the end of the elongation window
+    int strongReach = Math.min(querySize, elongationLength) - nGramLength;
+    int altEndReach = Math.min(altEndLength, elongationLength) - nGramLength;
+    int elongReach = elongationLength - nGramLength;
+    
+    int[] hitsBefore = new int[runs.length / 2 + 1]; // hits in the runs before each run
+    for (int r = 0; r < runs.length / 2; r++) {
+      hitsBefore[r + 1] = hitsBefore[r] + runs[2 * r + 1] - runs[2 * r];
+    }
+    
+    for (int r = 0; r < runs.length / 2; r++) {
+      for (int location = runs[2 * r]; location < runs[2 * r + 1]; location++) {
+        int hitsUpToHere = countHitsBelow(runs, hitsBefore, location + 1);
+        int strongNGramCount = 
+            Math.max(0, countHitsBelow(runs, hitsBefore, location + strongReach) - hitsUpToHere);
+        int elongNGramCount = 
+            Math.max(0, countHitsBelow(runs, hitsBefore, location + elongReach) - hitsUpToHere);
+        int altEndNGramCount = 
+            Math.max(0, countHitsBelow(runs, hitsBefore, location + altEndReach) - hitsUpToHere);
+        
+        double strongDensity = (double) strongNGramCount / (double) querySize;
+        double elongDensity = (double) elongNGramCount / (double) elongationLength;
+        double altEndDensity = (double) altEndNGramCount / (double) altEndLength;
+        
+        if (strongDensity >= Config.nGramDensity) {
+          collector.strongMatchCandidates.add(
+              new CandidateLocatedNGram(location, nGramLength, strongDensity, querySize));
+        }
+        if (elongDensity >= Config.nGramDensity) {
+          collector.elongationCandidates.add(
+              new CandidateLocatedNGram(location, nGramLength, elongDensity, elongationLength));
+        }
+        if (altEndDensity >= Config.nGramDensity) {
+          collector.altEndingCandidates.add(
+              new CandidateLocatedNGram(location, nGramLength, altEndDensity, altEndLength));
+        }
+      }
+    }
+    return collector;
+  }
+  
+  /**
+   * @return the number of hit locations in runs that are below location
+   */
+  private static int countHitsBelow(int[] runs, int[] hitsBefore, int location) {
+    int lo = 0;
+    int hi = runs.length / 2;
+    while (lo < hi) { // the first run that starts at or after location
+      int mid = (lo + hi) >>> 1;
+      if (runs[2 * mid] < location) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    if (lo == 0) {
+      return 0;
+    }
+    return hitsBefore[lo - 1] + Math.min(location, runs[2 * lo - 1]) - runs[2 * lo - 2];
+  }
+  
   public NeighborhoodCollector assignNeighborhoods(CandidateCollector canColl, int querySize) {
     
     NeighborhoodCollector collector = new NeighborhoodCollector();
@@ -411,9 +1182,20 @@ public class SearchEngine {
   }
 
   public PromotionCollector electNeighborhoodRepresentatives(NeighborhoodCollector nCollector, 
-      Snippet query, Snippet log, List<LocatedNGram> queryNGramLocations) {
+      Snippet query, Snippet log, List<LocatedNGram> queryNGramLocations, 
+      SubstitutionCostMatrix costs) {
     PromotionCollector collector = new PromotionCollector();
 
+    int[] queryIds = getIdentifierIds(query);
+    int[] logIds = getIdentifierIds(log);
+    BitParallelEditDistance kernel = null;
+    WeightedEditDistance weighted = null;
+    if (costs != null) {
+      weighted = new WeightedEditDistance(queryIds, costs);
+    } else if (Config.useBitParallelEditDistance) {
+      kernel = new BitParallelEditDistance(queryIds);
+    }
+
     int offset = query.size() / 2;
 
     for (Neighborhood nHood : nCollector.strongMatchNeighborhoods) {
@@ -423,21 +1205,47 @@ public class SearchEngine {
         startIndex = 0;
       }
       int endIndex = nHood.endIndex + offset;
-      if (endIndex > log.getEvents().size()){
-        endIndex = log.getEvents().size(); 
+      if (endIndex > log.size()){
+        endIndex = log.size(); 
+      }
+      
+      if (weighted != null) {
+        collector.strongMatchFinalCut.add(
+            electWeightedRepresentative(weighted, logIds, startIndex, endIndex, query.size()));
+        continue;
       }
 
       double minDist = Double.MAX_VALUE;
       int bestLoc = -1;
 
-      for (int i = startIndex; i < endIndex; i++) {
-        int dist = computeEditDistance(query, log, i, i + query.size());
-
-        double normalizedDist = (double) dist / (double) query.size();
-        if (normalizedDist < minDist) {
-          minDist = normalizedDist;
-          bestLoc = i;
+      if (startIndex < endIndex) {
+        // one semi-global pass gives a lower bound on the distance of every 
+        // window; windows are then visited from the lowest bound up, and only
+        // until no remaining window can beat (or tie earlier than) the best one
+        int regionEnd = Math.min(endIndex - 1 + query.size(), log.size());
+        int[] lowerBounds = new int[regionEnd - startIndex];
+        computeBestDistancesByStart(kernel, queryIds, logIds, startIndex, regionEnd, lowerBounds);
+        long[] order = new long[endIndex - startIndex];
+        for (int i = startIndex; i < endIndex; i++) {
+          order[i - startIndex] = ((long) lowerBounds[i - startIndex] << 32) | i;
         }
+        Arrays.sort(order);
+        
+        int bestDist = Integer.MAX_VALUE;
+        for (long entry : order) {
+          int lowerBound = (int) (entry >>> 32);
+          int i = (int) entry;
+          if (lowerBound > bestDist || (lowerBound == bestDist && i > bestLoc)) {
+            break;
+          }
+          int maxDist = (bestLoc < 0 || i < bestLoc) ? bestDist : bestDist - 1;
+          int dist = computeEditDistance(kernel, queryIds, logIds, i, i + query.size(), maxDist);
+          if (dist < bestDist || (dist == bestDist && i < bestLoc)) {
+            bestDist = dist;
+            bestLoc = i;
+          }
+        }
+        minDist = (double) bestDist / (double) query.size();
       }
       PromotedLocation pl = new PromotedLocation(bestLoc, minDist);
       collector.strongMatchFinalCut.add(pl);
@@ -470,8 +1278,6 @@ public class SearchEngine {
         nHoodVectors.add(noiselessVector);
       }
       
-      Collections.sort(queryNGramLocations);
-      
       double minDist = Double.MAX_VALUE;
       int bestLoc = -1;
 
@@ -497,23 +1303,39 @@ public class SearchEngine {
         startIndex = 0;
       }
       int endIndex = nHood.endIndex + offset;
-      if (endIndex > log.getEvents().size() - query.size()){
-        endIndex = log.getEvents().size() - query.size(); 
+      if (endIndex > log.size() - query.size()){
+        endIndex = log.size() - query.size(); 
       }
 
       double minDist = Double.MAX_VALUE;
       int bestLoc = -1;
 
       for (int i = startIndex; i < endIndex; i++) {
-        int narrowDist = computeEditDistance(query, log, i, i + altEndSize);
-        int wideDist = computeEditDistance(query, log, i, i + query.size() - altEndSize);
         //System.out.println("i = " + i + " query.size() = " + query.size() + " altEndSize = " + altEndSize);
-        int endDist = computeEditDistance(query, log, i + query.size() - altEndSize, i + query.size());
-        double normalizedNarrowDist = (double) narrowDist / (double) altEndSize;
-        double normalizedWideDist = (double) wideDist / (double) (query.size() - altEndSize);
-        double normalizedEndDist = (double) endDist / (double) altEndSize;
+        double endDist, narrowDist, wideDist;
+        if (weighted != null) {
+          endDist = weighted.distance(logIds, i + query.size() - altEndSize, i + query.size(), 
+              (float) (Config.admittanceThreshold * altEndSize));
+        } else {
+          endDist = computeEditDistance(kernel, queryIds, logIds, 
+              i + query.size() - altEndSize, i + query.size(), 
+              maxDistanceAtMost(Config.admittanceThreshold, altEndSize));
+        }
+        double normalizedEndDist = endDist / (double) altEndSize;
 
         if (normalizedEndDist > Config.admittanceThreshold) { // screen out ones where the end matches too well
+          if (weighted != null) {
+            narrowDist = weighted.distance(logIds, i, i + altEndSize, (float) (minDist * altEndSize));
+            wideDist = weighted.distance(logIds, i, i + query.size() - altEndSize, 
+                (float) (minDist * (query.size() - altEndSize)));
+          } else {
+            narrowDist = computeEditDistance(kernel, queryIds, logIds, i, i + altEndSize, 
+                maxDistanceBelow(minDist, altEndSize));
+            wideDist = computeEditDistance(kernel, queryIds, logIds, i, i + query.size() - altEndSize, 
+                maxDistanceBelow(minDist, query.size() - altEndSize));
+          }
+          double normalizedNarrowDist = narrowDist / (double) altEndSize;
+          double normalizedWideDist = wideDist / (double) (query.size() - altEndSize);
           double minNWDist = Math.min(normalizedNarrowDist, normalizedWideDist);
           if (minNWDist < minDist) {
             minDist = minNWDist;
@@ -527,6 +1349,46 @@ public class SearchEngine {
     return collector;    
   }
   
+  /**
+   * Weighted version of the strong match election above: of the windows of 
+   * the query's size that start in [startIndex, endIndex), the one with the 
+   * smallest weighted distance, earliest on ties. Lower bounds come from one 
+   * semi-global pass, as in the unweighted case.
+   */
+  private PromotedLocation electWeightedRepresentative(WeightedEditDistance weighted, 
+      int[] logIds, int startIndex, int endIndex, int querySize) {
+    if (startIndex >= endIndex) {
+      return new PromotedLocation(-1, Double.MAX_VALUE);
+    }
+    int regionEnd = Math.min(endIndex - 1 + querySize, logIds.length);
+    float[] lowerBounds = new float[regionEnd - startIndex];
+    weighted.bestDistancesByStart(logIds, startIndex, regionEnd, lowerBounds);
+    long[] order = new long[endIndex - startIndex];
+    for (int i = startIndex; i < endIndex; i++) {
+      // the bits of non-negative floats sort the same way as the floats
+      order[i - startIndex] = 
+          ((long) Float.floatToIntBits(lowerBounds[i - startIndex]) << 32) | i;
+    }
+    Arrays.sort(order);
+    
+    float bestDist = Float.POSITIVE_INFINITY;
+    int bestLoc = -1;
+    for (long entry : order) {
+      // the bounds sum the same costs in another order, so allow for rounding
+      float lowerBound = Float.intBitsToFloat((int) (entry >>> 32)) - WEIGHTED_DISTANCE_TOLERANCE;
+      int i = (int) entry;
+      if (lowerBound > bestDist) {
+        break;
+      }
+      float dist = weighted.distance(logIds, i, i + querySize, bestDist);
+      if (dist < bestDist || (dist == bestDist && i < bestLoc)) {
+        bestDist = dist;
+        bestLoc = i;
+      }
+    }
+    return new PromotedLocation(bestLoc, (double) bestDist / (double) querySize);
+  }
+  
   public UberResultSet admitResults(PromotionCollector promColl, Snippet query, Snippet log) {
 
     UberResultSet urs = new UberResultSet(query);
@@ -585,60 +1447,13 @@ public class SearchEngine {
   public void pruneResults(UberResultSet urs) {
     //TODO: Prune other results sets. Also, prune across result sets 
     // (e.g., prune elongations that also appear as Strong Results
-    ResultSet rs = urs.getStrongMatches();
     List<SubSequence> strongResults = urs.getStrongMatches().getResults();
-    List<SubSequence> weakResults = urs.getWeakMatches().getResults();
-    
-    Collections.sort(strongResults, new Comparator<SubSequence> () {
-      @Override
-      public int compare(SubSequence a, SubSequence b) {
-        return a.getStartIndex() - b.getStartIndex();        
-      }
-    });
-
-    Map<SubSequence, List<SubSequence>> seqToGroupMap = 
-        new HashMap<SubSequence, List<SubSequence>>();
-    for(int i = 0; i < strongResults.size(); i++) {
-      SubSequence subS = strongResults.get(i);
-      for(int j = i + 1; j < strongResults.size(); j++) {
-        SubSequence subS2 = strongResults.get(j);
-        if (subS.getSnippet().equals(subS2.getSnippet()) && 
-            subS2.getStartIndex() >= subS.getStartIndex() &&
-            subS2.getStartIndex() < subS.getEndIndex()) {
-          Debug.log("Found overlap between " + subS + " and " + subS2 );
-          List<SubSequence> overlapGroup = seqToGroupMap.get(subS);
-          Debug.log("Found overlapGroup " + overlapGroup);
-          if (overlapGroup == null) {
-            overlapGroup = new ArrayList<SubSequence>();
-            overlapGroup.add(subS);
-            seqToGroupMap.put(subS, overlapGroup);
-            Debug.log("Created overlapGroup " + overlapGroup);
-          }
-          if (!overlapGroup.contains(subS2)) {
-            overlapGroup.add(subS2);
-            seqToGroupMap.put(subS2, overlapGroup);
-            Debug.log("Added " + subS2 + " to overlapGroup, which is now " + overlapGroup);
-          } else {
-            Debug.log("overlapGroup alread contains " + subS2);
-          }
-        }
-      }
-    }
-    
-    for (List<SubSequence> overlapGroup : seqToGroupMap.values()) {
-      double minDist = Double.MAX_VALUE;
-      SubSequence bestSeq = null;
-      for (SubSequence seq : overlapGroup) {
-        if (seq.getDistance() < minDist) {
-          minDist = seq.getDistance();
-          bestSeq = seq;
-          Debug.log("Removed " + seq + " from result set. Now looks like: " + urs.getStrongMatches().getResults());
-        }
-        urs.getStrongMatches().getResults().remove(seq); // remove them all
-      }
-      urs.getStrongMatches().getResults().add(bestSeq); // add the best one back in
-      Debug.log("Added " + bestSeq + " back to result set. Now looks like: " + urs.getStrongMatches().getResults());
+    List<SubSequence> kept = ResultSet.removeOverlaps(strongResults);
+    if (Config.debug && kept.size() < strongResults.size()) {
+      Debug.log("Pruned " + (strongResults.size() - kept.size()) + " overlapping strong matches");
     }
+    strongResults.clear();
+    strongResults.addAll(kept);
   }
   
   public void testMatchedLocations(Snippet query, Snippet log, List<Integer> matchedLocations, int nGramLength, UberResultSet urs) {
@@ -759,52 +1574,256 @@ public class SearchEngine {
 //        ", querySize: " + query.getEvents().size() + 
 //        ", logSize: " + log.getEvents().size() + 
 //        ", len1: " + len1 + ", len2: " + len2);
-    // len1+1, len2+1, because finally return dp[len1][len2]
+    // two rolling rows of the (len1+1) x (len2+1) matrix
     
-    int[][] dp = new int[len1 + 1][len2 + 1];
- 
-    for (int i = 0; i <= len1; i++) {
-        dp[i][0] = i;
-    }
+    EditDistanceScratch scratch = EditDistanceScratch.getScratch();
+    int[] prev = scratch.getPreviousRow(len2 + 1);
+    int[] curr = scratch.getCurrentRow(len2 + 1);
  
     for (int j = 0; j <= len2; j++) {
-        dp[0][j] = j;
+        prev[j] = j;
     }
  
+    List<Event> queryEvents = query.getEvents();
+    List<Event> logEvents = log.getEvents();
     //iterate though, and check last char
     for (int i = 0; i < len1; i++) {
-        Event e1 = query.getEvents().get(i);
+        int id1 = queryEvents.get(i).getIdentifierId();
+        curr[0] = i + 1;
         for (int j = 0; j < len2; j++) {
-//            System.out.println("Comparing event " + (j + startIndex) + " in log of size " + 
-//                log.getEvents().size() + " to event " + i +
-//                " in query of size " + query.getEvents().size() +
-//                " startIndex is " + startIndex + 
-//                " and endIndex is " + endIndex);
-            
-             
-            Event e2 = log.getEvents().get(startIndex + j);
+            Event e2 = logEvents.get(startIndex + j);
  
             //if last two chars equal
-            if (e1.getIdentifier().equals(e2.getIdentifier())) {
+            if (id1 == e2.getIdentifierId()) {
                 //update dp value for +1 length
-                dp[i + 1][j + 1] = dp[i][j];
+                curr[j + 1] = prev[j];
             } else {
-                int replace = dp[i][j] + 1;
-                int insert = dp[i][j + 1] + 1;
-                int delete = dp[i + 1][j] + 1;
+                int replace = prev[j] + 1;
+                int insert = prev[j + 1] + 1;
+                int delete = curr[j] + 1;
  
                 int min = replace > insert ? insert : replace;
                 min = delete > min ? min : delete;
-                dp[i + 1][j + 1] = min;
+                curr[j + 1] = min;
             }
-//            printMatrix(dp);
         }
+        int[] tmp = prev;
+        prev = curr;
+        curr = tmp;
     }
  
-    return Math.max(dp[len1][len2], Math.abs(len1 - len2));
+    return Math.max(prev[len2], Math.abs(len1 - len2));
   }
 
   
+  /**
+   * Same as computeEditDistance(Snippet, Snippet, int, int), but compares 
+   * identifier ids rather than identifier Strings
+   * @param queryIds
+   * @param logIds
+   * @param startIndex is inclusive
+   * @param endIndex is exclusive
+   * @return the edit distance
+   */
+  public int computeEditDistance(int[] queryIds, int[] logIds, int startIndex, int endIndex) {
+    
+    if (endIndex > logIds.length) {
+      endIndex = logIds.length;
+    }
+    int len1 = queryIds.length;
+    int len2 = endIndex - startIndex;
+    
+    EditDistanceScratch scratch = EditDistanceScratch.getScratch();
+    int[] prev = scratch.getPreviousRow(len2 + 1);
+    int[] curr = scratch.getCurrentRow(len2 + 1);
+ 
+    for (int j = 0; j <= len2; j++) {
+        prev[j] = j;
+    }
+ 
+    for (int i = 0; i < len1; i++) {
+        int id1 = queryIds[i];
+        curr[0] = i + 1;
+        for (int j = 0; j < len2; j++) {
+            if (id1 == logIds[startIndex + j]) {
+                curr[j + 1] = prev[j];
+            } else {
+                int replace = prev[j] + 1;
+                int insert = prev[j + 1] + 1;
+                int delete = curr[j] + 1;
+ 
+                int min = replace > insert ? insert : replace;
+                min = delete > min ? min : delete;
+                curr[j + 1] = min;
+            }
+        }
+        int[] tmp = prev;
+        prev = curr;
+        curr = tmp;
+    }
+ 
+    return Math.max(prev[len2], Math.abs(len1 - len2));
+  }
+  
+  /**
+   * Banded (Ukkonen) version of computeEditDistance(int[], int[], int, int). 
+   * Only cells within maxDistance of the diagonal are filled, and the 
+   * computation stops as soon as every cell in a row exceeds maxDistance.
+   * @param queryIds
+   * @param logIds
+   * @param startIndex is inclusive
+   * @param endIndex is exclusive
+   * @param maxDistance the cutoff
+   * @return the edit distance if it is at most maxDistance, maxDistance + 1 otherwise
+   */
+  public int computeEditDistance(int[] queryIds, int[] logIds, int startIndex, int endIndex, 
+      int maxDistance) {
+    
+    if (endIndex > logIds.length) {
+      endIndex = logIds.length;
+    }
+    int len1 = queryIds.length;
+    int len2 = Math.max(0, endIndex - startIndex);
+    
+    int k = Math.min(maxDistance, Math.max(len1, len2));
+    int over = k + 1;
+    if (k < 0 || Math.abs(len1 - len2) > k) {
+      return over;
+    }
+    
+    EditDistanceScratch scratch = EditDistanceScratch.getScratch();
+    int[] prev = scratch.getPreviousRow(len2 + 1);
+    int[] curr = scratch.getCurrentRow(len2 + 1);
+    for (int j = 0; j <= Math.min(len2, k); j++) {
+      prev[j] = j;
+    }
+    if (k + 1 <= len2) {
+      prev[k + 1] = over;
+    }
+    
+    for (int i = 1; i <= len1; i++) {
+      int lo = Math.max(1, i - k);
+      int hi = Math.min(len2, i + k);
+      curr[lo - 1] = (lo == 1) ? i : over;
+      int rowMin = curr[lo - 1];
+      int qId = queryIds[i - 1];
+      for (int j = lo; j <= hi; j++) {
+        int d;
+        if (qId == logIds[startIndex + j - 1]) {
+          d = prev[j - 1];
+        } else {
+          d = prev[j - 1];
+          if (prev[j] < d) {
+            d = prev[j];
+          }
+          if (curr[j - 1] < d) {
+            d = curr[j - 1];
+          }
+          d = Math.min(d + 1, over);
+        }
+        curr[j] = d;
+        if (d < rowMin) {
+          rowMin = d;
+        }
+      }
+      if (hi + 1 <= len2) {
+        curr[hi + 1] = over; // outside the band of the next row
+      }
+      if (rowMin > k) {
+        return over;
+      }
+      int[] tmp = prev;
+      prev = curr;
+      curr = tmp;
+    }
+    return prev[len2] > k ? over : prev[len2];
+  }
+  
+  /**
+   * Uses the bit-parallel kernel when one was built for this query, 
+   * and the banded dynamic programming version otherwise
+   */
+  private int computeEditDistance(BitParallelEditDistance kernel, int[] queryIds, int[] logIds, 
+      int startIndex, int endIndex, int maxDistance) {
+    if (kernel == null) {
+      return computeEditDistance(queryIds, logIds, startIndex, endIndex, maxDistance);
+    }
+    return kernel.distance(logIds, startIndex, Math.min(endIndex, logIds.length), maxDistance);
+  }
+  
+  /**
+   * For every start position i in [startIndex, endIndex), computes the 
+   * smallest edit distance between the query and any range of the log that 
+   * starts at i and ends at or before endIndex
+   * @param distances receives the distance for start i at distances[i - startIndex]
+   */
+  public void computeBestDistancesByStart(int[] queryIds, int[] logIds, 
+      int startIndex, int endIndex, int[] distances) {
+    int len1 = queryIds.length;
+    // column of a semi-global DP of the reversed query against the log read backwards
+    int[] column = EditDistanceScratch.getScratch().getPreviousRow(len1 + 1);
+    for (int r = 0; r <= len1; r++) {
+      column[r] = r;
+    }
+    for (int j = endIndex - 1; j >= startIndex; j--) {
+      int logId = logIds[j];
+      int diagonal = column[0]; // column[0] stays 0, a match may end anywhere
+      for (int r = 1; r <= len1; r++) {
+        int d = diagonal;
+        if (queryIds[len1 - r] != logId) {
+          d = Math.min(d, Math.min(column[r], column[r - 1])) + 1;
+        }
+        diagonal = column[r];
+        column[r] = d;
+      }
+      distances[j - startIndex] = column[len1];
+    }
+  }
+  
+  private void computeBestDistancesByStart(BitParallelEditDistance kernel, int[] queryIds, 
+      int[] logIds, int startIndex, int endIndex, int[] distances) {
+    if (kernel == null) {
+      computeBestDistancesByStart(queryIds, logIds, startIndex, endIndex, distances);
+    } else {
+      kernel.bestDistancesByStart(logIds, startIndex, endIndex, distances);
+    }
+  }
+  
+  /**
+   * @return the largest distance d for which d / size < bound, 
+   * or Integer.MAX_VALUE if every distance is below the bound
+   */
+  private static int maxDistanceBelow(double bound, int size) {
+    if (size <= 0 || bound > size) {
+      return Integer.MAX_VALUE;
+    }
+    int d = (int) Math.ceil(bound * size);
+    while (d >= 0 && (double) d / (double) size >= bound) {
+      d--;
+    }
+    while ((double) (d + 1) / (double) size < bound) {
+      d++;
+    }
+    return d;
+  }
+  
+  /**
+   * @return the largest distance d for which d / size <= bound
+   */
+  public static int maxDistanceAtMost(double bound, int size) {
+    if (size <= 0 || bound >= size) {
+      return Integer.MAX_VALUE;
+    }
+    int d = (int) Math.floor(bound * size) + 1;
+    while (d >= 0 && (double) d / (double) size > bound) {
+      d--;
+    }
+    while ((double) (d + 1) / (double) size <= bound) {
+      d++;
+    }
+    return d;
+  }
+  
   public <T> int computeVectorEditDistance(List<T> list1, List<T> list2, int startIndex1, int endIndex1,
       int startIndex2, int endIndex2) {
     
@@ -815,40 +1834,42 @@ public class SearchEngine {
     int len1 = endIndex1 - startIndex1;
     int len2 = endIndex2 - startIndex2;
  
-    // len1+1, len2+1, because finally return dp[len1][len2]
+    // two rolling rows of the (len1+1) x (len2+1) matrix
     
-    int[][] dp = new int[len1 + 1][len2 + 1];
- 
-    for (int i = 0; i <= len1; i++) {
-        dp[i][0] = i;
-    }
+    EditDistanceScratch scratch = EditDistanceScratch.getScratch();
+    int[] prev = scratch.getPreviousRow(len2 + 1);
+    int[] curr = scratch.getCurrentRow(len2 + 1);
  
     for (int j = 0; j <= len2; j++) {
-        dp[0][j] = j;
+        prev[j] = j;
     }
  
     //iterate though, and check last char
     for (int i = 0; i < len1; i++) {
       Object o1 = list1.get(startIndex1 + i);
+      curr[0] = i + 1;
       for (int j = 0; j < len2; j++) {
         Object o2 = list2.get(startIndex2 + j);
 
         //if last two chars equal
         if (o1.equals(o2)) {
           //update dp value for +1 length
-          dp[i + 1][j + 1] = dp[i][j];
+          curr[j + 1] = prev[j];
         } else {
-          int replace = dp[i][j] + 1;
-          int insert = dp[i][j + 1] + 1;
-          int delete = dp[i + 1][j] + 1;
+          int replace = prev[j] + 1;
+          int insert = prev[j + 1] + 1;
+          int delete = curr[j] + 1;
 
           int min = replace > insert ? insert : replace;
           min = delete > min ? min : delete;
-          dp[i + 1][j + 1] = min;
+          curr[j + 1] = min;
         }
       }
+      int[] tmp = prev;
+      prev = curr;
+      curr = tmp;
     }
-    return Math.max(dp[len1][len2], Math.abs(len1 - len2));
+    return Math.max(prev[len2], Math.abs(len1 - len2));
   }
   
   /**
@@ -892,10 +1913,20 @@ public class SearchEngine {
   }
    
   public Snippet getLogById(String id) {
-    return indexedLogMap.get(id);
+    indexLock.readLock().lock();
+    try {
+      return indexedLogMap.get(id);
+    } finally {
+      indexLock.readLock().unlock();
+    }
   }
   
   public List<Snippet> getAllLogs() {
-    return new ArrayList(indexedLogMap.values());
+    indexLock.readLock().lock();
+    try {
+      return new ArrayList(indexedLogMap.values());
+    } finally {
+      indexLock.readLock().unlock();
+    }
   }
 }
@@ -18,8 +18,12 @@ package com.google.research.ic.ferret.data;
 import com.google.research.ic.ferret.Config;
 import com.google.research.ic.ferret.data.attributes.Attribute;
 import com.google.research.ic.ferret.data.attributes.AttributeManager;
+import com.google.research.ic.ferret.data.attributes.PrimitiveAttributes;
 
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
@@ -28,6 +32,14 @@ import java.util.Map;
 /**
  * An ordered sequence of Events representing a segment of
  * a user's interaction (generated by marknewman)
+ * 
+ * Besides the Events themselves, a snippet keeps the few fields the search 
+ * engine reads (identifier id, timestamp and event type) in parallel arrays.
+ * The arrays are encoded from the events the first time they are asked for.
+ * A snippet can also be created from the arrays alone, in which case its 
+ * Events are only materialized (through an EventSource) when someone calls 
+ * getEvents(). Its timestamps and event types can then stay in buffers (e.g.
+ * views of a mapped IndexFile) until they are asked for as arrays.
  */
  public class Snippet {
      
@@ -40,9 +52,35 @@ import java.util.Map;
   
   protected ArrayList<Event> events = new ArrayList<Event>();
   protected HashMap<String, Attribute> attributes = new HashMap<String, Attribute>();
+  /* the attributes as primitives, for summaries and filters; see AttributeManager */
+  protected transient volatile PrimitiveAttributes primitiveAttributes = null;
   
-  protected Map<Integer, Map<String, List<Integer>>> nGramTables = 
-      new HashMap<Integer, Map<String, List<Integer>>>();
+  protected transient Map<Integer, NGramTable> nGramTables = 
+      new HashMap<Integer, NGramTable>();
+  /* the modCount each of nGramTables was built at */
+  protected transient Map<Integer, Integer> nGramTableModCounts = 
+      new HashMap<Integer, Integer>();
+  protected transient Map<Integer, NGramSignature> nGramSignatures = 
+      new HashMap<Integer, NGramSignature>();
+  
+  /* bumped whenever events are encoded or removed, to recognize stale signatures */
+  protected transient int modCount = 0;
+  
+  /* columns, valid for the first encodedSize events; like an ArrayList, they 
+   * have spare room while events are being appended, and are trimmed when 
+   * someone asks for them as arrays */
+  protected transient int[] identifierIds = new int[0];
+  protected transient long[] timeStamps = new long[0];
+  protected transient int[] eventTypeCodes = new int[0];
+  protected transient int encodedSize = 0;
+  protected transient EventSource eventSource = null;
+  
+  /* if not null, hold the timestamps and event type codes instead of the arrays */
+  protected transient LongBuffer timeStampBuffer = null;
+  protected transient IntBuffer eventTypeBuffer = null;
+  
+  private static Map<String, Integer> eventTypeCodeMap = new HashMap<String, Integer>();
+  private static List<String> eventTypeNames = new ArrayList<String>();
   
   private transient List<SubSequence> subsequences;
   
@@ -56,6 +94,52 @@ import java.util.Map;
     this.deviceId = firstEvent.getDeviceId();
     addEvent(firstEvent);
   }
+  
+  /**
+   * Creates a snippet from its columns. Events are loaded from eventSource 
+   * when getEvents() is first called.
+   */
+  public Snippet(String userId, String deviceId, String sourceFilename, int[] identifierIds, 
+      long[] timeStamps, int[] eventTypeCodes, EventSource eventSource) {
+    this();
+    if (identifierIds.length != timeStamps.length || identifierIds.length != eventTypeCodes.length) {
+      throw new IllegalArgumentException("Columns must have the same length");
+    }
+    this.userId = userId;
+    this.deviceId = deviceId;
+    this.sourceFilename = sourceFilename;
+    this.identifierIds = identifierIds;
+    this.timeStamps = timeStamps;
+    this.eventTypeCodes = eventTypeCodes;
+    this.encodedSize = identifierIds.length;
+    this.eventSource = eventSource;
+    this.events = null;
+  }
+
+  /**
+   * Same as the column constructor, but timestamps and event type codes are
+   * read from the buffers, which must not change, until someone asks for 
+   * them as arrays
+   */
+  Snippet(String userId, String deviceId, String sourceFilename, int[] identifierIds, 
+      LongBuffer timeStamps, IntBuffer eventTypeCodes, EventSource eventSource) {
+    this();
+    if (timeStamps.limit() != identifierIds.length 
+        || eventTypeCodes.limit() != identifierIds.length) {
+      throw new IllegalArgumentException("Columns must have the same length");
+    }
+    this.userId = userId;
+    this.deviceId = deviceId;
+    this.sourceFilename = sourceFilename;
+    this.identifierIds = identifierIds;
+    this.timeStamps = null;
+    this.eventTypeCodes = null;
+    this.encodedSize = identifierIds.length;
+    this.eventSource = eventSource;
+    this.events = null;
+    this.timeStampBuffer = timeStamps;
+    this.eventTypeBuffer = eventTypeCodes;
+  }
 
   /** 
    * subclasses can override to deal with custom attributes
@@ -65,9 +149,172 @@ import java.util.Map;
 
   }
 
-  public ArrayList<Event> getEvents () {
-    synchronized (events) {
-      return events;      
+  public synchronized ArrayList<Event> getEvents () {
+    if (events == null) {
+      materializeEvents();
+    }
+    return events;      
+  }
+  
+  private void materializeEvents() {
+    if (eventSource == null) {
+      throw new IllegalStateException("No events or event source for " + sourceFilename);
+    }
+    List<Event> loaded = eventSource.loadEvents(this);
+    if (loaded.size() != encodedSize) {
+      throw new IllegalStateException("Event source returned " + loaded.size() 
+          + " events for a snippet of size " + encodedSize);
+    }
+    events = new ArrayList<Event>(loaded);
+    updateAttributes();
+  }
+  
+  /**
+   * Encodes the columns and drops the events, which getEvents() will load 
+   * from eventSource again if they are asked for
+   */
+  public synchronized void releaseEvents(EventSource eventSource) {
+    if (eventSource == null) {
+      throw new IllegalArgumentException("Can't release events without an event source");
+    }
+    encodeColumns();
+    this.eventSource = eventSource;
+    this.events = null;
+  }
+  
+  /**
+   * Removes an event. Use this rather than removing from getEvents() directly, 
+   * so the columns are re-encoded.
+   */
+  public synchronized void removeEvent(int index) {
+    getEvents().remove(index);
+    encodedSize = Math.min(encodedSize, index);
+    modCount++;
+  }
+  
+  /**
+   * @return the identifier id of each event. The array is shared; don't modify it.
+   */
+  public synchronized int[] getIdentifierIds() {
+    encodeColumns();
+    trimColumns();
+    return identifierIds;
+  }
+  
+  /**
+   * @return a copy of the identifier ids of the events from startIndex 
+   * (inclusive) to endIndex (exclusive); unlike getIdentifierIds(), this 
+   * doesn't trim the columns, so appending events stays cheap
+   */
+  synchronized int[] getIdentifierIds(int startIndex, int endIndex) {
+    encodeColumns();
+    if (startIndex < 0 || endIndex > encodedSize || startIndex > endIndex) {
+      throw new IndexOutOfBoundsException("Range " + startIndex + "-" + endIndex 
+          + " of a snippet of size " + encodedSize);
+    }
+    return Arrays.copyOfRange(identifierIds, startIndex, endIndex);
+  }
+  
+  /**
+   * @return the timestamp of each event. The array is shared; don't modify it.
+   */
+  public synchronized long[] getTimeStamps() {
+    encodeColumns();
+    readBufferedColumns();
+    trimColumns();
+    return timeStamps;
+  }
+  
+  /**
+   * @return the event type code of each event (see getEventTypeName(int)). 
+   * The array is shared; don't modify it.
+   */
+  public synchronized int[] getEventTypeCodes() {
+    encodeColumns();
+    readBufferedColumns();
+    trimColumns();
+    return eventTypeCodes;
+  }
+  
+  /**
+   * Encodes the events that were added since the columns were last encoded.
+   * Events added through addEvent are only encoded when a column is asked for,
+   * because parsers finish initializing events after adding them.
+   */
+  private void encodeColumns() {
+    if (events == null || encodedSize == events.size()) {
+      return;
+    }
+    readBufferedColumns();
+    int size = events.size();
+    if (identifierIds.length < size) {
+      // grow by half, so appending n events one at a time copies O(n) in all
+      int capacity = Math.max(size, identifierIds.length + (identifierIds.length >> 1));
+      identifierIds = Arrays.copyOf(identifierIds, capacity);
+      timeStamps = Arrays.copyOf(timeStamps, capacity);
+      eventTypeCodes = Arrays.copyOf(eventTypeCodes, capacity);
+    }
+    for (int i = encodedSize; i < size; i++) {
+      Event evt = events.get(i);
+      identifierIds[i] = evt.getIdentifierId();
+      timeStamps[i] = evt.getTimeStamp();
+      eventTypeCodes[i] = getEventTypeCode(evt.getEventTypeName());
+    }
+    encodedSize = size;
+    modCount++;
+  }
+  
+  /**
+   * Drops the spare room of the columns, so they can be handed out as arrays
+   */
+  private void trimColumns() {
+    if (identifierIds.length != encodedSize) {
+      identifierIds = Arrays.copyOf(identifierIds, encodedSize);
+    }
+    if (timeStamps != null && timeStamps.length != encodedSize) {
+      timeStamps = Arrays.copyOf(timeStamps, encodedSize);
+      eventTypeCodes = Arrays.copyOf(eventTypeCodes, encodedSize);
+    }
+  }
+  
+  /**
+   * Copies the buffered timestamps and event type codes into arrays
+   */
+  private void readBufferedColumns() {
+    if (timeStampBuffer != null) {
+      timeStamps = new long[timeStampBuffer.limit()];
+      timeStampBuffer.duplicate().get(timeStamps);
+      eventTypeCodes = new int[eventTypeBuffer.limit()];
+      eventTypeBuffer.duplicate().get(eventTypeCodes);
+      timeStampBuffer = null;
+      eventTypeBuffer = null;
+    }
+  }
+  
+  public static int getEventTypeCode(String eventTypeName) {
+    synchronized (eventTypeCodeMap) {
+      Integer code = eventTypeCodeMap.get(eventTypeName);
+      if (code == null) {
+        code = eventTypeNames.size();
+        eventTypeNames.add(eventTypeName);
+        eventTypeCodeMap.put(eventTypeName, code);
+      }
+      return code;
+    }
+  }
+  
+  /**
+   * @return every registered event type name, where element i has code i
+   */
+  public static List<String> getEventTypeNames() {
+    synchronized (eventTypeCodeMap) {
+      return new ArrayList<String>(eventTypeNames);
+    }
+  }
+  
+  public static String getEventTypeName(int eventTypeCode) {
+    synchronized (eventTypeCodeMap) {
+      return eventTypeNames.get(eventTypeCode);
     }
   }
   
@@ -90,8 +337,8 @@ import java.util.Map;
 //          " and snippet.deviceId = " + this.deviceId +
 //          " and event.deviceId = " + event.deviceId);
 //    }
-    synchronized(events) {
-      events.add(event);
+    synchronized(this) {
+      getEvents().add(event);
     }
     if (Config.debug) {
 //      if (event.getTimeStamp() > latestTime) {
@@ -134,13 +381,24 @@ import java.util.Map;
   }
   
   public long getDurationInMillis () {
-    long startTime = events.get(0).getTimeStamp();
-    long endTime = events.get(events.size() - 1).getTimeStamp();
+    long startTime = getTimeStamp(0);
+    long endTime = getTimeStamp(size() - 1);
     return endTime - startTime;
   }
   
+  /**
+   * Reads the timestamp from the columns if the events haven't been 
+   * materialized, so it doesn't load them
+   */
+  public synchronized long getTimeStamp(int index) {
+    if (events == null) {
+      return timeStampBuffer != null ? timeStampBuffer.get(index) : timeStamps[index];
+    }
+    return events.get(index).getTimeStamp();
+  }
+  
   public Calendar getStartDate() {
-    long startTime = events.get(0).getTimeStamp();
+    long startTime = getTimeStamp(0);
     Calendar c = Calendar.getInstance();
     if (startTime < Math.pow(10,9)) { // accessibility logs report time in seconds
       startTime *= 1000;
@@ -150,7 +408,7 @@ import java.util.Map;
   }
   
   public Calendar getEndDate() {
-    long endTime = events.get(events.size() - 1).getTimeStamp();
+    long endTime = getTimeStamp(size() - 1);
     Calendar c = Calendar.getInstance();
     if (endTime < Math.pow(10,9)) { // accessibility logs report time in seconds
       endTime *= 1000;
@@ -178,30 +436,57 @@ import java.util.Map;
 
   public void setAttribute(Attribute a) {
     attributes.put(a.getKey(), a);
+    primitiveAttributes = null; // encoded again when next asked for
   }
 
-  public void addNGram(int nGramLength, String nGramId, int location) {
-    Map<String, List<Integer>> nGramMap = nGramTables.get(Integer.valueOf(nGramLength));
-    if (nGramMap == null) {
-      nGramMap = new HashMap<String, List<Integer>>();
-      nGramTables.put(Integer.valueOf(nGramLength), nGramMap);
-    }
-    
-    List<Integer> locations = nGramMap.get(nGramId);
-    if (locations == null) {
-      locations = new ArrayList<Integer>();
-      nGramMap.put(nGramId, locations);
+  public PrimitiveAttributes getPrimitiveAttributes() {
+    return primitiveAttributes;
+  }
+
+  public void setPrimitiveAttributes(PrimitiveAttributes primitiveAttributes) {
+    this.primitiveAttributes = primitiveAttributes;
+  }
+
+  /**
+   * @return a table of the ngrams in this snippet and where they start, 
+   * rebuilt if events were added or removed since it was last built. The 
+   * table is shared; don't modify it.
+   */
+  public synchronized NGramTable getNGramTable(int nGramLength) {
+    int[] ids = getIdentifierIds();
+    NGramTable table = nGramTables.get(Integer.valueOf(nGramLength));
+    Integer builtAt = nGramTableModCounts.get(Integer.valueOf(nGramLength));
+    if (table == null || builtAt.intValue() != modCount) {
+      table = new NGramTable(nGramLength);
+      long[] nGramKeys = NGramTable.computeKeys(ids, nGramLength);
+      for (int i = 0; i < nGramKeys.length; i++) {
+        table.add(nGramKeys[i], i);
+      }
+      nGramTables.put(Integer.valueOf(nGramLength), table);
+      nGramTableModCounts.put(Integer.valueOf(nGramLength), modCount);
     }
-    
-    locations.add(Integer.valueOf(location));
+    return table;
   }
   
-  public Map<String, List<Integer>> getNGramTable(int nGramLength) {
-    return nGramTables.get(Integer.valueOf(nGramLength));
+  /**
+   * @return a signature of the ngrams in this snippet, rebuilt if events 
+   * were added or removed since it was last built
+   */
+  public synchronized NGramSignature getNGramSignature(int nGramLength) {
+    int[] ids = getIdentifierIds();
+    NGramSignature signature = nGramSignatures.get(Integer.valueOf(nGramLength));
+    if (signature == null || signature.getModCount() != modCount) {
+      signature = new NGramSignature(NGramTable.computeKeys(ids, nGramLength), modCount);
+      nGramSignatures.put(Integer.valueOf(nGramLength), signature);
+    }
+    return signature;
   }
   
-  public int size() {
-    return getEvents().size();
+  public synchronized int size() {
+    if (events == null) {
+      return encodedSize;
+    }
+    return events.size();
   }
   
   public String getSourceFilename() {
@@ -218,8 +503,8 @@ import java.util.Map;
   
   public String getId() {
     long ts = -1;
-    if (events.size() > 0) {
-      ts = events.get(0).getTimeStamp();
+    if (size() > 0) {
+      ts = getTimeStamp(0);
     }
     return userId + "$" + ts + "$" + sourceFilename;
     
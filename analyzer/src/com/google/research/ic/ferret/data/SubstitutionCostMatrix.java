@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import com.google.research.ic.ferret.test.Debug;
+
+/**
+ * Costs of substituting one event for another in a weighted alignment, for 
+ * every pair of identifier ids. The cost of a pair is the calculateDistance 
+ * of the representative events of the two identifiers (see IdentifierTable), 
+ * divided by a scale and capped at 1, the cost of an insertion or deletion; 
+ * an identifier costs nothing against itself. Pairs that can't be compared 
+ * (no representative, or events that don't grade their distance) cost 1.
+ *
+ * Costs are kept in one flat array, row by row. A matrix never changes once 
+ * built; extend() returns a bigger one that reuses the costs computed so far.
+ * The array grows with the square of the identifiers, so a matrix covers at 
+ * most MAX_SIZE of them; identifiers past that substitute at cost 1, as in 
+ * the unweighted edit distance (see WeightedEditDistance).
+ */
+public class SubstitutionCostMatrix {
+
+  /** 256 MB of costs */
+  public static final int MAX_SIZE = 1 << 13;
+
+  private final int size;
+  private final float scale;
+  private final float[] costs;
+
+  private SubstitutionCostMatrix(int size, float scale) {
+    if (scale <= 0.0f) {
+      throw new IllegalArgumentException("Substitution cost scale must be positive: " + scale);
+    }
+    if (size < 0 || size > MAX_SIZE) {
+      throw new IllegalArgumentException("A cost matrix can't cover " + size + " identifiers");
+    }
+    this.size = size;
+    this.scale = scale;
+    this.costs = new float[index(size, 0)];
+  }
+
+  /**
+   * @return a matrix with no identifiers, to be extended
+   */
+  public static SubstitutionCostMatrix empty(float scale) {
+    return new SubstitutionCostMatrix(0, scale);
+  }
+
+  /**
+   * @return the number of identifiers covered; ids from 0 to size - 1
+   */
+  public int size() {
+    return size;
+  }
+
+  public float getScale() {
+    return scale;
+  }
+
+  /**
+   * @return the cost of substituting the identifier with id b for the one with id a
+   */
+  public float cost(int a, int b) {
+    return costs[index(a, b)];
+  }
+
+  /**
+   * @return the offset of the cost for ids a and b; exact, since size is at most MAX_SIZE
+   */
+  private int index(int a, int b) {
+    return (int) ((long) a * size + b);
+  }
+
+  /**
+   * @return the costs, where the cost for ids a and b is at a * size() + b
+   */
+  float[] getCosts() {
+    return costs;
+  }
+
+  /**
+   * @return a matrix covering every identifier in the table so far, up to 
+   * MAX_SIZE of them, or this one if there are no new identifiers. Only the 
+   * rows of new identifiers are computed, in parallel.
+   */
+  public SubstitutionCostMatrix extend(IdentifierTable table) {
+    int newSize = Math.min(table.size(), MAX_SIZE);
+    if (newSize <= size) {
+      return this;
+    }
+    if (table.size() > MAX_SIZE) {
+      Debug.log("Only the first " + MAX_SIZE + " of " + table.size() 
+          + " identifiers get weighted substitution costs");
+    }
+    final SubstitutionCostMatrix extended = new SubstitutionCostMatrix(newSize, scale);
+    for (int a = 0; a < size; a++) {
+      System.arraycopy(costs, index(a, 0), extended.costs, extended.index(a, 0), size);
+    }
+    final Event[] events = new Event[newSize];
+    for (int id = 0; id < newSize; id++) {
+      events[id] = table.getRepresentative(id);
+    }
+    final int oldSize = size;
+    ParallelTaskExecutor.getInstance().compute(newSize - oldSize, new ParallelTask() {
+      @Override
+      public void init(int taskId) {}
+
+      @Override
+      public Boolean compute(int index) {
+        int a = oldSize + index;
+        for (int b = 0; b < a; b++) {
+          float cost = computeCost(events[a], events[b]);
+          extended.costs[extended.index(a, b)] = cost;
+          extended.costs[extended.index(b, a)] = cost;
+        }
+        return true;
+      }
+    });
+    return extended;
+  }
+
+  private float computeCost(Event a, Event b) {
+    if (a == null || b == null) {
+      return 1.0f;
+    }
+    float distance;
+    try {
+      distance = a.calculateDistance(b);
+    } catch (RuntimeException e) { // some view hierarchies can't be compared
+      Debug.log("Can't compare " + a + " and " + b + ": " + e);
+      return 1.0f;
+    }
+    float cost = distance / scale;
+    if (!(cost >= 0.0f && cost < 1.0f)) { // also catches NaN and "not comparable" (-1)
+      return 1.0f;
+    }
+    return cost;
+  }
+}
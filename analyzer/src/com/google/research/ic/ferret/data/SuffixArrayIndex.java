@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A suffix array and its LCP array over the identifier ids of a list of
+ * snippets, concatenated with a distinct negative separator after each one so
+ * that no match runs from one snippet into the next.
+ *
+ * Where a query and a snippet share a long stretch of events, an n-gram index
+ * has a separate posting for each of its n-grams. findHitRuns instead finds
+ * the maximal exact matches between the query and the snippets, and reports
+ * each one as a run of consecutive n-gram hits.
+ */
+public class SuffixArrayIndex {
+
+  private final int[] text;
+  private final int[] snippetStarts; // where each snippet (by ordinal) begins in text
+  private final int[] suffixArray;
+  private final int[] lcp; // lcp[r] is the common prefix length of suffixes r - 1 and r
+
+  /**
+   * @param identifierIds the ids of each snippet's events, by ordinal; ids
+   * must not be negative
+   */
+  public SuffixArrayIndex(List<int[]> identifierIds) {
+    int length = 0;
+    for (int[] ids : identifierIds) {
+      length += ids.length + 1;
+    }
+    text = new int[length];
+    snippetStarts = new int[identifierIds.size()];
+    int pos = 0;
+    for (int ordinal = 0; ordinal < identifierIds.size(); ordinal++) {
+      int[] ids = identifierIds.get(ordinal);
+      snippetStarts[ordinal] = pos;
+      System.arraycopy(ids, 0, text, pos, ids.length);
+      pos += ids.length;
+      text[pos++] = -(ordinal + 1);
+    }
+    suffixArray = buildSuffixArray(text);
+    lcp = buildLCPArray(text, suffixArray);
+  }
+
+  /**
+   * @return the number of ids in the index, separators included
+   */
+  public int size() {
+    return text.length;
+  }
+
+  /**
+   * Finds every location in the indexed snippets where the nGramLength ids
+   * starting there also occur somewhere in the query; that is, every
+   * location an n-gram index of that length would have a posting for, given
+   * the query's n-grams.
+   *
+   * Each query position where some snippet has an occurrence that can't be
+   * extended to the left is looked up once: the suffix array range of the
+   * n-gram there is found by binary search, and the LCP array gives the
+   * length of the exact match at each of those occurrences. A position whose
+   * occurrences all extend an occurrence of the previous one (as in the
+   * middle of a long exact match) costs only the range lookups.
+   *
+   * @return for each snippet ordinal with a hit, the locations as sorted,
+   * disjoint runs in [start, end) pairs
+   */
+  public Map<Integer, int[]> findHitRuns(int[] query, int nGramLength) {
+    Map<Integer, IntRuns> runsByOrdinal = new HashMap<Integer, IntRuns>();
+    int[] range = new int[2];
+    int[] prevRange = new int[2]; // the previous position's range, empty if it had none
+
+    for (int i = 0; i + nGramLength <= query.length; i++) {
+      range[0] = 0;
+      range[1] = suffixArray.length;
+      for (int d = 0; d < nGramLength && range[0] < range[1]; d++) {
+        narrow(range, d, query[i + d]);
+      }
+      // the occurrences of the previous n-gram that go on with this one's
+      // last id carry on into this one; if that's all of them, none starts a match
+      boolean startsMatch = range[0] < range[1] && (prevRange[0] == prevRange[1]
+          || countNarrowed(prevRange, nGramLength, query[i + nGramLength - 1]) < range[1] - range[0]);
+      prevRange[0] = range[0];
+      prevRange[1] = range[1];
+      if (!startsMatch) {
+        continue;
+      }
+
+      // the deepest range that still matches the query from i
+      int[] deepest = new int[] {range[0], range[1]};
+      int depth = nGramLength;
+      while (i + depth < query.length) {
+        int lo = deepest[0];
+        int hi = deepest[1];
+        narrow(deepest, depth, query[i + depth]);
+        if (deepest[0] == deepest[1]) {
+          deepest[0] = lo;
+          deepest[1] = hi;
+          break;
+        }
+        depth++;
+      }
+
+      for (int r = deepest[0]; r < deepest[1]; r++) {
+        addMatch(runsByOrdinal, query, i, suffixArray[r], depth, nGramLength);
+      }
+      int matchLength = depth;
+      for (int r = deepest[0] - 1; r >= range[0]; r--) {
+        matchLength = Math.min(matchLength, lcp[r + 1]);
+        addMatch(runsByOrdinal, query, i, suffixArray[r], matchLength, nGramLength);
+      }
+      matchLength = depth;
+      for (int r = deepest[1]; r < range[1]; r++) {
+        matchLength = Math.min(matchLength, lcp[r]);
+        addMatch(runsByOrdinal, query, i, suffixArray[r], matchLength, nGramLength);
+      }
+    }
+
+    Map<Integer, int[]> hitRuns = new HashMap<Integer, int[]>();
+    for (Map.Entry<Integer, IntRuns> entry : runsByOrdinal.entrySet()) {
+      hitRuns.put(entry.getKey(), entry.getValue().merge());
+    }
+    return hitRuns;
+  }
+
+  /**
+   * Reports the match of the query from queryPos at textPos, unless it is
+   * part of a longer match that starts further left
+   */
+  private void addMatch(Map<Integer, IntRuns> runsByOrdinal, int[] query, int queryPos,
+      int textPos, int matchLength, int nGramLength) {
+    if (queryPos > 0 && textPos > 0 && text[textPos - 1] == query[queryPos - 1]) {
+      return;
+    }
+    int ordinal = Arrays.binarySearch(snippetStarts, textPos);
+    if (ordinal < 0) {
+      ordinal = -ordinal - 2;
+    }
+    IntRuns runs = runsByOrdinal.get(ordinal);
+    if (runs == null) {
+      runs = new IntRuns();
+      runsByOrdinal.put(ordinal, runs);
+    }
+    int start = textPos - snippetStarts[ordinal];
+    runs.add(start, start + matchLength - nGramLength + 1);
+  }
+
+  /**
+   * Narrows a suffix array range whose suffixes share a prefix of the given
+   * depth to the ones that continue with id
+   */
+  private void narrow(int[] range, int depth, int id) {
+    int start = lowerBound(range[0], range[1], depth, id);
+    range[1] = lowerBound(start, range[1], depth, id + 1);
+    range[0] = start;
+  }
+
+  private int countNarrowed(int[] range, int depth, int id) {
+    int start = lowerBound(range[0], range[1], depth, id);
+    return lowerBound(start, range[1], depth, id + 1) - start;
+  }
+
+  /**
+   * @return the first rank in [lo, hi) whose suffix has an id >= id at depth
+   */
+  private int lowerBound(int lo, int hi, int depth, int id) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (text[suffixArray[mid] + depth] < id) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Prefix doubling with radix sorts, O(n log n). The text must end with a
+   * symbol that occurs nowhere else.
+   */
+  static int[] buildSuffixArray(int[] text) {
+    int n = text.length;
+    int[] sa = new int[n];
+    int[] rank = new int[n];
+    int[] tmp = new int[n];
+    if (n == 0) {
+      return sa;
+    }
+
+    long[] byId = new long[n];
+    for (int i = 0; i < n; i++) {
+      byId[i] = ((long) text[i] << 32) | i;
+    }
+    Arrays.sort(byId);
+    for (int r = 0; r < n; r++) {
+      sa[r] = (int) byId[r];
+      rank[sa[r]] = r > 0 && (byId[r] >> 32) == (byId[r - 1] >> 32) ? rank[sa[r - 1]] : r;
+    }
+
+    int[] counts = new int[n + 1];
+    for (int k = 1; k < n; k <<= 1) {
+      // order by the rank k ids on; suffixes shorter than that come first
+      int p = 0;
+      for (int i = n - k; i < n; i++) {
+        tmp[p++] = i;
+      }
+      for (int r = 0; r < n; r++) {
+        if (sa[r] >= k) {
+          tmp[p++] = sa[r] - k;
+        }
+      }
+      // then, stably, by the rank of the first k ids
+      Arrays.fill(counts, 0);
+      for (int i = 0; i < n; i++) {
+        counts[rank[i] + 1]++;
+      }
+      for (int r = 1; r <= n; r++) {
+        counts[r] += counts[r - 1];
+      }
+      for (int q = 0; q < n; q++) {
+        sa[counts[rank[tmp[q]]]++] = tmp[q];
+      }
+
+      tmp[sa[0]] = 0;
+      int classes = 1;
+      for (int r = 1; r < n; r++) {
+        int a = sa[r - 1];
+        int b = sa[r];
+        boolean same = rank[a] == rank[b]
+            && (a + k < n ? rank[a + k] : -1) == (b + k < n ? rank[b + k] : -1);
+        tmp[b] = same ? tmp[a] : r;
+        if (!same) {
+          classes++;
+        }
+      }
+      int[] swap = rank;
+      rank = tmp;
+      tmp = swap;
+      if (classes == n) {
+        break;
+      }
+    }
+    return sa;
+  }
+
+  /**
+   * Kasai et al.'s linear time construction
+   */
+  static int[] buildLCPArray(int[] text, int[] sa) {
+    int n = text.length;
+    int[] lcp = new int[n];
+    int[] inverse = new int[n];
+    for (int r = 0; r < n; r++) {
+      inverse[sa[r]] = r;
+    }
+    int h = 0;
+    for (int i = 0; i < n; i++) {
+      if (inverse[i] > 0) {
+        int j = sa[inverse[i] - 1];
+        while (i + h < n && j + h < n && text[i + h] == text[j + h]) {
+          h++;
+        }
+        lcp[inverse[i]] = h;
+        if (h > 0) {
+          h--;
+        }
+      } else {
+        h = 0;
+      }
+    }
+    return lcp;
+  }
+
+  /**
+   * [start, end) pairs in a growable array
+   */
+  private static class IntRuns {
+    private int[] pairs = new int[8];
+    private int size = 0;
+
+    void add(int start, int end) {
+      if (size + 2 > pairs.length) {
+        pairs = Arrays.copyOf(pairs, pairs.length * 2);
+      }
+      pairs[size++] = start;
+      pairs[size++] = end;
+    }
+
+    /**
+     * @return the runs sorted by start, with overlapping and adjacent ones joined
+     */
+    int[] merge() {
+      long[] sorted = new long[size / 2];
+      for (int k = 0; k < sorted.length; k++) {
+        sorted[k] = ((long) pairs[2 * k] << 32) | pairs[2 * k + 1];
+      }
+      Arrays.sort(sorted);
+      int[] merged = new int[size];
+      int count = 0;
+      for (long run : sorted) {
+        int start = (int) (run >>> 32);
+        int end = (int) run;
+        if (count > 0 && start <= merged[count - 1]) {
+          merged[count - 1] = Math.max(merged[count - 1], end);
+        } else {
+          merged[count++] = start;
+          merged[count++] = end;
+        }
+      }
+      return Arrays.copyOf(merged, count);
+    }
+  }
+}
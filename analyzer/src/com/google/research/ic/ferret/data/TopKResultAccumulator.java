@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the best k results of each category (strong, weak, elongated,
+ * alternate ending) as the results of each log come in, where k is the limit
+ * of a FilterSpec. Results that the FilterSpec would reject are dropped right
+ * away, so the k that are kept are the ones ResultSet.filter() would return.
+ *
+ * Results with equal distances are ordered by start index and then by
+ * arrival, so with the results added in log order the outcome is the same 
+ * as filtering all of them.
+ */
+public class TopKResultAccumulator {
+
+  private static final int NUM_CATEGORIES = 4;
+  private static final int STRONG = 0;
+  private static final int WEAK = 1;
+  private static final int ELONGATED = 2;
+  private static final int ALT_ENDING = 3;
+
+  private static class RankedResult {
+    final SubSequence result;
+    final long order;
+
+    RankedResult(SubSequence result, long order) {
+      this.result = result;
+      this.order = order;
+    }
+  }
+
+  /* best first: by distance, then start index, then arrival, the same order as filter() */
+  private static final Comparator<RankedResult> BEST_FIRST = new Comparator<RankedResult>() {
+    @Override
+    public int compare(RankedResult a, RankedResult b) {
+      int c = compareResults(a.result, b.result);
+      if (c != 0) {
+        return c;
+      }
+      return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+    }
+  };
+
+  private final Snippet query;
+  private final FilterSpec filterSpec;
+  private final int k;
+  private final List<PriorityQueue<RankedResult>> heaps = new ArrayList<PriorityQueue<RankedResult>>();
+  private long arrivals = 0;
+
+  public TopKResultAccumulator(Snippet query, FilterSpec filterSpec) {
+    this.query = query;
+    this.filterSpec = filterSpec;
+    this.k = filterSpec.getLimit() < 0 ? Integer.MAX_VALUE : filterSpec.getLimit();
+    for (int c = 0; c < NUM_CATEGORIES; c++) {
+      // worst result at the head, so it's the one to evict
+      heaps.add(new PriorityQueue<RankedResult>(11, Collections.reverseOrder(BEST_FIRST)));
+    }
+  }
+
+  public int getK() {
+    return k;
+  }
+
+  public FilterSpec getFilterSpec() {
+    return filterSpec;
+  }
+
+  /**
+   * Adds the results found in a single log. Overlaps within the log should
+   * already be pruned (see SearchEngine.pruneResults), since those can't be
+   * resolved once results are dropped.
+   */
+  public void addLogResults(UberResultSet logResults) {
+    offerAll(STRONG, logResults.getStrongMatches());
+    offerAll(WEAK, logResults.getWeakMatches());
+    offerAll(ELONGATED, logResults.getElongatedMatches());
+    offerAll(ALT_ENDING, logResults.getAltEndingMatches());
+  }
+
+  /**
+   * @return the best k results of each category, best first
+   */
+  public UberResultSet getResults() {
+    UberResultSet urs = new UberResultSet(query);
+    urs.setStrongMatches(new ResultSet(getSortedResults(STRONG), query));
+    urs.setWeakMatches(new ResultSet(getSortedResults(WEAK), query));
+    urs.setElongatedMatches(new ResultSet(getSortedResults(ELONGATED), query));
+    urs.setAltEndingMatches(new ResultSet(getSortedResults(ALT_ENDING), query));
+    return urs;
+  }
+
+  private static int compareResults(SubSequence a, SubSequence b) {
+    int c = Double.compare(a.getDistance(), b.getDistance());
+    return c != 0 ? c : a.getStartIndex() - b.getStartIndex();
+  }
+
+  private void offerAll(int category, ResultSet rs) {
+    if (rs == null || rs.getResults() == null) {
+      return;
+    }
+    List<SubSequence> results = rs.getResults();
+    boolean[] accepted = new boolean[results.size()];
+    filterSpec.filter(results, 0, results.size(), accepted);
+    for (int i = 0; i < accepted.length; i++) {
+      if (accepted[i]) {
+        offer(category, results.get(i));
+      }
+    }
+  }
+
+  private void offer(int category, SubSequence subS) {
+    if (k == 0) {
+      return;
+    }
+    PriorityQueue<RankedResult> heap = heaps.get(category);
+    RankedResult ranked = new RankedResult(subS, arrivals++);
+    if (heap.size() < k) {
+      heap.add(ranked);
+    } else if (BEST_FIRST.compare(ranked, heap.peek()) < 0) {
+      heap.poll();
+      heap.add(ranked);
+    }
+  }
+
+  private List<RankedResult> getSortedRanked(int category) {
+    List<RankedResult> ranked = new ArrayList<RankedResult>(heaps.get(category));
+    Collections.sort(ranked, BEST_FIRST);
+    return ranked;
+  }
+
+  private List<SubSequence> getSortedResults(int category) {
+    List<RankedResult> ranked = getSortedRanked(category);
+    List<SubSequence> results = new ArrayList<SubSequence>(ranked.size());
+    for (RankedResult r : ranked) {
+      results.add(r.result);
+    }
+    return results;
+  }
+}
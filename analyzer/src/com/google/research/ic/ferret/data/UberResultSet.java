@@ -32,6 +32,10 @@ public class UberResultSet {
     this.query = query;
   }
 
+  public Snippet getQuery() {
+    return query;
+  }
+
   public ResultSet getStrongMatches() {
     return strongMatches;
   }
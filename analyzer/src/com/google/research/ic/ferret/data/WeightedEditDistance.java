@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data;
+
+/**
+ * Edit distance between a fixed pattern of identifier ids and ranges of other
+ * id arrays, where substituting one event for another costs what the 
+ * SubstitutionCostMatrix says rather than 1. Insertions and deletions still 
+ * cost 1, so the weighted distance is never more than the unweighted one.
+ *
+ * Like BitParallelEditDistance, build one instance per query and reuse it for
+ * every range of the log.
+ */
+public class WeightedEditDistance {
+
+  private final int[] pattern;
+  private final SubstitutionCostMatrix matrix;
+  private final float[] costs;
+  private final int stride;
+
+  /**
+   * @param matrix the costs; ids it doesn't cover cost 1 against any other id
+   */
+  public WeightedEditDistance(int[] pattern, SubstitutionCostMatrix matrix) {
+    for (int id : pattern) {
+      if (id < 0) {
+        throw new IllegalArgumentException("Invalid identifier id " + id);
+      }
+    }
+    this.pattern = pattern.clone();
+    this.matrix = matrix;
+    this.costs = matrix.getCosts();
+    this.stride = matrix.size();
+  }
+
+  public SubstitutionCostMatrix getMatrix() {
+    return matrix;
+  }
+
+  /**
+   * @param text identifier ids to compare against the pattern
+   * @param startIndex is inclusive
+   * @param endIndex is exclusive
+   * @param maxDistance the cutoff
+   * @return the weighted edit distance between the pattern and 
+   * text[startIndex, endIndex) if it is at most maxDistance, 
+   * Float.POSITIVE_INFINITY otherwise
+   */
+  public float distance(int[] text, int startIndex, int endIndex, float maxDistance) {
+    endIndex = Math.min(endIndex, text.length);
+    int len1 = pattern.length;
+    int len2 = Math.max(0, endIndex - startIndex);
+    if (Math.abs(len1 - len2) > maxDistance) {
+      return Float.POSITIVE_INFINITY;
+    }
+    EditDistanceScratch scratch = EditDistanceScratch.getScratch();
+    float[] prev = scratch.getPreviousWeightedRow(len2 + 1);
+    float[] curr = scratch.getCurrentWeightedRow(len2 + 1);
+    for (int j = 0; j <= len2; j++) {
+      prev[j] = j;
+    }
+    for (int i = 1; i <= len1; i++) {
+      int patternId = pattern[i - 1];
+      int row = rowOf(patternId);
+      curr[0] = i;
+      float rowMin = curr[0];
+      for (int j = 1; j <= len2; j++) {
+        float d = prev[j - 1] + substitutionCost(row, patternId, text[startIndex + j - 1]);
+        float indel = Math.min(prev[j], curr[j - 1]) + 1.0f;
+        if (indel < d) {
+          d = indel;
+        }
+        curr[j] = d;
+        if (d < rowMin) {
+          rowMin = d;
+        }
+      }
+      if (rowMin > maxDistance) {
+        return Float.POSITIVE_INFINITY;
+      }
+      float[] tmp = prev;
+      prev = curr;
+      curr = tmp;
+    }
+    return prev[len2] > maxDistance ? Float.POSITIVE_INFINITY : prev[len2];
+  }
+
+  /**
+   * Weighted version of SearchEngine.computeBestDistancesByStart: for every 
+   * start i in [startIndex, endIndex), the smallest weighted distance between
+   * the pattern and any range of the text that starts at i and ends at or 
+   * before endIndex
+   * @param distances receives the distance for start i at distances[i - startIndex]
+   */
+  public void bestDistancesByStart(int[] text, int startIndex, int endIndex, float[] distances) {
+    int len1 = pattern.length;
+    // column of a semi-global DP of the reversed pattern against the text read backwards
+    float[] column = EditDistanceScratch.getScratch().getPreviousWeightedRow(len1 + 1);
+    for (int r = 0; r <= len1; r++) {
+      column[r] = r;
+    }
+    for (int j = endIndex - 1; j >= startIndex; j--) {
+      int textId = text[j];
+      float diagonal = column[0]; // column[0] stays 0, a match may end anywhere
+      for (int r = 1; r <= len1; r++) {
+        int patternId = pattern[len1 - r];
+        float d = diagonal + substitutionCost(rowOf(patternId), patternId, textId);
+        float indel = Math.min(column[r], column[r - 1]) + 1.0f;
+        if (indel < d) {
+          d = indel;
+        }
+        diagonal = column[r];
+        column[r] = d;
+      }
+      distances[j - startIndex] = column[len1];
+    }
+  }
+
+  /**
+   * @return the offset of the id's row in the costs, or -1 if the matrix 
+   * doesn't cover it; no overflow, since the matrix is at most MAX_SIZE wide
+   */
+  private int rowOf(int id) {
+    return id < stride ? id * stride : -1;
+  }
+
+  /**
+   * @return the cost in the pattern id's row for textId; ids the matrix 
+   * doesn't cover (registered after it was built, e.g. by events appended to 
+   * a live log, or past its MAX_SIZE) cost 1 unless they are the same id
+   */
+  private float substitutionCost(int row, int patternId, int textId) {
+    if (row >= 0 && textId < stride) {
+      return costs[row + textId];
+    }
+    return patternId == textId ? 0.0f : 1.0f;
+  }
+}
@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data.attributes;
+
+import com.google.research.ic.ferret.data.Snippet;
+import com.google.research.ic.ferret.data.SubSequence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The values of one attribute over a range of results, gathered from the 
+ * PrimitiveAttributes of their snippets into a primitive column: dictionary 
+ * codes for categorical attributes, milliseconds for date/time attributes and
+ * doubles for numerical ones. Position k holds the k-th result of the range; 
+ * it is absent if the result's snippet doesn't have the attribute, or has a 
+ * value of another type.
+ *
+ * Handlers summarize these columns rather than the attributes themselves 
+ * (see countCategories() and histogram()), and FilterPredicate evaluates 
+ * attribute clauses over them.
+ */
+public class AttributeColumn {
+
+  private final String type;
+  private final int size;
+  private int count = 0;
+  private final boolean[] present;
+
+  private int slot = -1;
+  private int[] codes = null; // -1 where absent
+  private List<String> categories = null;
+  private long[] times = null;
+  private double[] numbers = null;
+
+  private AttributeColumn(String type, int size) {
+    this.type = type;
+    this.size = size;
+    present = new boolean[size];
+    if (type.equals(CategoricalAttribute.TYPE)) {
+      codes = new int[size];
+      Arrays.fill(codes, -1);
+    } else if (type.equals(DateTimeAttribute.TYPE)) {
+      times = new long[size];
+    } else if (type.equals(NumericalAttribute.TYPE)) {
+      numbers = new double[size];
+    } else {
+      throw new IllegalArgumentException("No columns for attributes of type " + type);
+    }
+  }
+
+  /**
+   * @param type the type of the attribute, one of the attribute classes' TYPE
+   */
+  public static AttributeColumn build(List<SubSequence> results, String key, String type) {
+    return build(results, 0, results == null ? 0 : results.size(), key, type);
+  }
+
+  /**
+   * Same as build(List, String, String), for results[start, end)
+   */
+  public static AttributeColumn build(List<SubSequence> results, int start, int end, 
+      String key, String type) {
+    AttributeManager manager = AttributeManager.getManager();
+    AttributeColumn column = new AttributeColumn(type, end - start);
+    byte kind = column.codes != null ? PrimitiveAttributes.CATEGORY 
+        : column.times != null ? PrimitiveAttributes.TIME : PrimitiveAttributes.NUMBER;
+    int slot = manager.getSlot(key);
+    Snippet previous = null;
+    PrimitiveAttributes primitives = null;
+    for (int k = 0; k < column.size; k++) {
+      Snippet snippet = results.get(start + k).getSnippet();
+      if (snippet != previous) { // results of one snippet are often together
+        primitives = snippet.getPrimitiveAttributes();
+        if (primitives == null) {
+          primitives = manager.getPrimitiveAttributes(snippet);
+          slot = manager.getSlot(key); // may be the first snippet with the attribute
+        }
+        previous = snippet;
+      }
+      if (slot == -1 || primitives.getKind(slot) != kind) {
+        continue;
+      }
+      long value = primitives.getValue(slot);
+      if (column.codes != null) {
+        column.codes[k] = (int) value;
+      } else if (column.times != null) {
+        column.times[k] = value;
+      } else {
+        column.numbers[k] = Double.longBitsToDouble(value);
+      }
+      column.present[k] = true;
+      column.count++;
+    }
+    column.slot = slot;
+    if (column.codes != null) {
+      column.categories = slot == -1 ? new ArrayList<String>() : manager.getCategories(slot);
+    }
+    return column;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * @return the number of results in the column
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of results that have the attribute
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @return whether each result has the attribute. The array is shared; 
+   * don't modify it, nor the other columns.
+   */
+  public boolean[] getPresent() {
+    return present;
+  }
+
+  public int[] getCodes() {
+    checkType(CategoricalAttribute.TYPE);
+    return codes;
+  }
+
+  public long[] getTimes() {
+    checkType(DateTimeAttribute.TYPE);
+    return times;
+  }
+
+  public double[] getNumbers() {
+    checkType(NumericalAttribute.TYPE);
+    return numbers;
+  }
+
+  /**
+   * @return the categories, in order of their codes. Codes are shared by all
+   * columns of the attribute, so some categories may not be in this one.
+   */
+  public List<String> getCategories() {
+    checkType(CategoricalAttribute.TYPE);
+    return categories;
+  }
+
+  /**
+   * @return the code of the category, or -1 if no snippet has it
+   */
+  public int getCode(String category) {
+    checkType(CategoricalAttribute.TYPE);
+    return slot == -1 ? -1 : AttributeManager.getManager().getCategoryCode(slot, category);
+  }
+
+  /**
+   * @return the number of results in each category, indexed by code
+   */
+  public int[] countCategories() {
+    checkType(CategoricalAttribute.TYPE);
+    int[] counts = new int[categories.size()];
+    for (int i = 0; i < size; i++) {
+      if (present[i]) {
+        counts[codes[i]]++;
+      }
+    }
+    return counts;
+  }
+
+  public long getMinTime() {
+    checkNotEmpty(DateTimeAttribute.TYPE);
+    long min = Long.MAX_VALUE;
+    for (int i = 0; i < size; i++) {
+      if (present[i]) {
+        min = Math.min(min, times[i]);
+      }
+    }
+    return min;
+  }
+
+  public long getMaxTime() {
+    checkNotEmpty(DateTimeAttribute.TYPE);
+    long max = Long.MIN_VALUE;
+    for (int i = 0; i < size; i++) {
+      if (present[i]) {
+        max = Math.max(max, times[i]);
+      }
+    }
+    return max;
+  }
+
+  public double getMinNumber() {
+    checkNotEmpty(NumericalAttribute.TYPE);
+    double min = 0.0;
+    boolean first = true;
+    for (int i = 0; i < size; i++) {
+      if (present[i]) {
+        min = first ? numbers[i] : Math.min(min, numbers[i]);
+        first = false;
+      }
+    }
+    return min;
+  }
+
+  public double getMaxNumber() {
+    checkNotEmpty(NumericalAttribute.TYPE);
+    double max = 0.0;
+    boolean first = true;
+    for (int i = 0; i < size; i++) {
+      if (present[i]) {
+        max = first ? numbers[i] : Math.max(max, numbers[i]);
+        first = false;
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Counts the times in each bin [edges[k], edges[k + 1]), finding the bin by
+   * binary search; times outside all bins aren't counted
+   * @param edges ascending
+   * @return counts, with one element less than edges
+   */
+  public int[] histogram(long[] edges) {
+    checkType(DateTimeAttribute.TYPE);
+    int[] counts = new int[Math.max(0, edges.length - 1)];
+    for (int i = 0; i < size; i++) {
+      if (!present[i]) {
+        continue;
+      }
+      long t = times[i];
+      int lo = 0;
+      int hi = edges.length; // finds the first edge above t
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (edges[mid] > t) {
+          hi = mid;
+        } else {
+          lo = mid + 1;
+        }
+      }
+      if (lo > 0 && lo < edges.length) {
+        counts[lo - 1]++;
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Same as histogram(long[]), for numbers
+   */
+  public int[] histogram(double[] edges) {
+    checkType(NumericalAttribute.TYPE);
+    int[] counts = new int[Math.max(0, edges.length - 1)];
+    for (int i = 0; i < size; i++) {
+      if (!present[i]) {
+        continue;
+      }
+      double x = numbers[i];
+      int lo = 0;
+      int hi = edges.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (edges[mid] > x) {
+          hi = mid;
+        } else {
+          lo = mid + 1;
+        }
+      }
+      if (lo > 0 && lo < edges.length) {
+        counts[lo - 1]++;
+      }
+    }
+    return counts;
+  }
+
+  private void checkType(String expected) {
+    if (!type.equals(expected)) {
+      throw new IllegalStateException("Column is " + type + ", not " + expected);
+    }
+  }
+
+  private void checkNotEmpty(String expected) {
+    checkType(expected);
+    if (count == 0) {
+      throw new IllegalStateException("No result has the attribute");
+    }
+  }
+}
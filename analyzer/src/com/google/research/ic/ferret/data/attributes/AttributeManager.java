@@ -15,9 +15,14 @@
  *******************************************************************************/
 package com.google.research.ic.ferret.data.attributes;
 
+import com.google.research.ic.ferret.data.ParallelTask;
+import com.google.research.ic.ferret.data.ParallelTaskExecutor;
 import com.google.research.ic.ferret.data.ResultSet;
 import com.google.research.ic.ferret.data.Snippet;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +37,11 @@ public class AttributeManager {
 
   private Map<String, AttributeHandler> handlers = new HashMap<String, AttributeHandler>();
   
+  /* the slot of each attribute key in PrimitiveAttributes, and each slot's categories by code */
+  private final Map<String, Integer> slots = new HashMap<String, Integer>();
+  private final List<Map<String, Integer>> categoryCodes = new ArrayList<Map<String, Integer>>();
+  private final List<List<String>> categories = new ArrayList<List<String>>();
+  
   private AttributeManager() {}
 
   public static AttributeManager getManager() {
@@ -41,10 +51,102 @@ public class AttributeManager {
     return theManager;
   }
   
+  /**
+   * Runs the handlers on the snippet, then stores its attributes on it as 
+   * PrimitiveAttributes
+   */
   public void updateAttributes(Snippet snippet) {
     for (AttributeHandler h : handlers.values()) {
       h.updateAttribute(snippet);
     }
+    snippet.setPrimitiveAttributes(encode(snippet));
+  }
+  
+  /**
+   * @return the snippet's PrimitiveAttributes, encoded now if it never went 
+   * through updateAttributes()
+   */
+  public PrimitiveAttributes getPrimitiveAttributes(Snippet snippet) {
+    PrimitiveAttributes primitives = snippet.getPrimitiveAttributes();
+    if (primitives == null) {
+      primitives = encode(snippet);
+      snippet.setPrimitiveAttributes(primitives);
+    }
+    return primitives;
+  }
+  
+  private PrimitiveAttributes encode(Snippet snippet) {
+    List<Attribute> attrs = snippet.getAttributes();
+    synchronized (slots) {
+      int[] attrSlots = new int[attrs.size()];
+      int length = 0;
+      for (int i = 0; i < attrs.size(); i++) {
+        Integer slot = slots.get(attrs.get(i).getKey());
+        if (slot == null) {
+          slot = slots.size();
+          slots.put(attrs.get(i).getKey(), slot);
+          categoryCodes.add(new HashMap<String, Integer>());
+          categories.add(new ArrayList<String>());
+        }
+        attrSlots[i] = slot;
+        length = Math.max(length, slot + 1);
+      }
+      byte[] kinds = new byte[length];
+      long[] values = new long[length];
+      for (int i = 0; i < attrs.size(); i++) {
+        int slot = attrSlots[i];
+        Object value = attrs.get(i).getValue();
+        if (value instanceof String) {
+          Integer code = categoryCodes.get(slot).get(value);
+          if (code == null) {
+            code = categories.get(slot).size();
+            categoryCodes.get(slot).put((String) value, code);
+            categories.get(slot).add((String) value);
+          }
+          kinds[slot] = PrimitiveAttributes.CATEGORY;
+          values[slot] = code;
+        } else if (value instanceof Date) {
+          kinds[slot] = PrimitiveAttributes.TIME;
+          values[slot] = ((Date) value).getTime();
+        } else if (value instanceof Double) {
+          kinds[slot] = PrimitiveAttributes.NUMBER;
+          values[slot] = Double.doubleToLongBits((Double) value);
+        } else if (value != null) {
+          kinds[slot] = PrimitiveAttributes.OTHER;
+        }
+      }
+      return new PrimitiveAttributes(kinds, values);
+    }
+  }
+  
+  /**
+   * @return the slot of the attribute in PrimitiveAttributes, or -1 if no 
+   * snippet has had it
+   */
+  int getSlot(String key) {
+    synchronized (slots) {
+      Integer slot = slots.get(key);
+      return slot == null ? -1 : slot;
+    }
+  }
+  
+  /**
+   * @return the categories seen so far at the slot, in order of their codes
+   */
+  List<String> getCategories(int slot) {
+    synchronized (slots) {
+      return new ArrayList<String>(categories.get(slot));
+    }
+  }
+  
+  /**
+   * @return the code of the category at the slot, or -1 if no snippet has it
+   */
+  int getCategoryCode(int slot, String category) {
+    synchronized (slots) {
+      Integer code = categoryCodes.get(slot).get(category);
+      return code == null ? -1 : code;
+    }
   }
   
   public void addHandler(AttributeHandler handler) {
@@ -82,14 +184,48 @@ public class AttributeManager {
    * @return a map that maps attribute keys to a list of summary bins
    */
   public Map<String, List<Bin>> computeSummaries(ResultSet resultSet) {
+    return computeSummaries(Collections.singletonList(resultSet)).get(0);
+  }
 
-    Map<String, List<Bin>> binMap = new HashMap<String, List<Bin>>();
-    for (AttributeHandler h : handlers.values()) {
-      List<Bin> bins = h.computeSummary(resultSet);
-      binMap.put(h.getKey(), bins);
+  /**
+   * Summarizes several result sets at once: every handler runs on every set
+   * as a separate task, in parallel
+   * @return the summaries of each set, in the order of resultSets
+   */
+  public List<Map<String, List<Bin>>> computeSummaries(final List<? extends ResultSet> resultSets) {
+    final AttributeHandler[] hs;
+    synchronized (handlers) {
+      hs = handlers.values().toArray(new AttributeHandler[handlers.size()]);
     }
+    int numTasks = resultSets.size() * hs.length;
+    final List<List<Bin>> bins = 
+        new ArrayList<List<Bin>>(Collections.nCopies(numTasks, (List<Bin>) null));
+    final boolean[] done = new boolean[numTasks];
     
-    return binMap;
+    ParallelTaskExecutor.getInstance().compute(numTasks, new ParallelTask() {
+      @Override
+      public void init(int taskId) {}
+      
+      @Override
+      public Boolean compute(int task) {
+        bins.set(task, hs[task % hs.length].computeSummary(resultSets.get(task / hs.length)));
+        done[task] = true;
+        return true;
+      }
+    });
+    
+    List<Map<String, List<Bin>>> binMaps = new ArrayList<Map<String, List<Bin>>>();
+    for (int s = 0; s < resultSets.size(); s++) {
+      Map<String, List<Bin>> binMap = new HashMap<String, List<Bin>>();
+      for (int h = 0; h < hs.length; h++) {
+        if (!done[s * hs.length + h]) {
+          throw new IllegalStateException("Summarizing " + hs[h].getKey() + " failed");
+        }
+        binMap.put(hs[h].getKey(), bins.get(s * hs.length + h));
+      }
+      binMaps.add(binMap);
+    }
+    return binMaps;
   }
   
 }
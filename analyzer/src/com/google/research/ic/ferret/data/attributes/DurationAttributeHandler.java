@@ -17,12 +17,9 @@ package com.google.research.ic.ferret.data.attributes;
 
 import com.google.research.ic.ferret.data.ResultSet;
 import com.google.research.ic.ferret.data.Snippet;
-import com.google.research.ic.ferret.data.SubSequence;
-import com.google.research.ic.ferret.test.Debug;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -49,9 +46,9 @@ public class DurationAttributeHandler implements AttributeHandler {
   @Override
   public void updateAttribute(Snippet s) {
     long dur = 0;
-    if (s != null && s.getEvents().size() > 2) {
-      long startTime = s.getEvents().get(0).getTimeStamp();
-      long endTime = s.getEvents().get(s.getEvents().size() - 1).getTimeStamp();
+    if (s != null && s.size() > 2) {
+      long startTime = s.getTimeStamp(0);
+      long endTime = s.getTimeStamp(s.size() - 1);
   
       Calendar startCal = Calendar.getInstance();
       Calendar endCal = Calendar.getInstance(); 
@@ -81,50 +78,35 @@ public class DurationAttributeHandler implements AttributeHandler {
   @Override
   public List<Bin> computeSummary(ResultSet rs) {
     List<Bin> binList = new ArrayList<Bin>();
-    List<SubSequence> subSequences = rs.getResults();
-    
-    Date[] durations = new Date[subSequences.size()];
-    
-    int i = 0;
-    for (SubSequence s : subSequences) {
-      durations[i++] = (Date) s.getSnippet().getAttribute(KEY).getValue();
+    AttributeColumn durations = AttributeColumn.build(rs.getResults(), KEY, DateTimeAttribute.TYPE);
+    if (durations.getCount() == 0) {
+      return binList;
     }
     
-    Arrays.sort(durations); 
-    Date min = durations[0];
-    Date max = new Date(durations[durations.length - 1].getTime() + 1); // add a ms
-    long range = max.getTime() - min.getTime();
+    long min = durations.getMinTime();
+    long max = durations.getMaxTime() + 1; // add a ms
+    long range = max - min;
     
     //make some bins
-    Date[] binDividers = new Date[numBins + 1];
+    long[] binDividers = new long[numBins + 1];
     binDividers[0] = min;
     binDividers[binDividers.length - 1] = max;
     for (int j = 1; j < binDividers.length - 1; j++) {
-      long divider = min.getTime() + j * range / numBins;
-      binDividers[j] = new Date(divider);
+      binDividers[j] = min + j * range / numBins;
     }
     
-    int[] binCounters = new int[numBins];
-    Arrays.fill(binCounters, 0);
-    for (Date d : durations) {
-      for (int k = 0; k < binDividers.length; k++) {
-        if (d.after(binDividers[k]) && d.before(binDividers[k+1])) {
-          binCounters[k]++;
-        }
-      }
-    }
+    int[] binCounters = durations.histogram(binDividers);
 
+    SimpleDateFormat format = new SimpleDateFormat("H:mm:ss");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
     for (int m = 0; m < numBins; m++) {
-
-      SimpleDateFormat format = new SimpleDateFormat("H:mm:ss");
-      format.setTimeZone(TimeZone.getTimeZone("UTC"));
       StringBuilder sb = new StringBuilder();
             
-      sb.append(format.format(binDividers[m]));
+      sb.append(format.format(new Date(binDividers[m])));
       sb.append("-");
-      sb.append(format.format(binDividers[m+1]));
+      sb.append(format.format(new Date(binDividers[m+1])));
             
-      binList.add(new Bin(sb.toString(), binDividers[m].getTime(), binDividers[m+1].getTime(), 
+      binList.add(new Bin(sb.toString(), binDividers[m], binDividers[m+1], 
           DateTimeAttribute.TYPE, binCounters[m]));
     }
     
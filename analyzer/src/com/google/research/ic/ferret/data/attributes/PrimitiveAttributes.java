@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data.attributes;
+
+/**
+ * A snippet's attribute values in primitive form, at the slot AttributeManager
+ * assigned to each attribute key: dictionary codes for categories, 
+ * milliseconds for dates and the bits of doubles for numbers. Built by 
+ * AttributeManager.updateAttributes() and replaced, never changed, when the 
+ * attributes are updated again.
+ */
+public final class PrimitiveAttributes {
+
+  static final byte MISSING = 0;
+  static final byte CATEGORY = 1;
+  static final byte TIME = 2;
+  static final byte NUMBER = 3;
+  static final byte OTHER = 4; // a value of some other type
+
+  private final byte[] kinds;
+  private final long[] values;
+
+  PrimitiveAttributes(byte[] kinds, long[] values) {
+    this.kinds = kinds;
+    this.values = values;
+  }
+
+  byte getKind(int slot) {
+    return slot < kinds.length ? kinds[slot] : MISSING;
+  }
+
+  long getValue(int slot) {
+    return values[slot];
+  }
+}
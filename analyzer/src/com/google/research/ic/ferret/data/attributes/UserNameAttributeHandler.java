@@ -17,7 +17,6 @@ package com.google.research.ic.ferret.data.attributes;
 
 import com.google.research.ic.ferret.data.ResultSet;
 import com.google.research.ic.ferret.data.Snippet;
-import com.google.research.ic.ferret.data.SubSequence;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -57,18 +56,14 @@ public class UserNameAttributeHandler implements AttributeHandler {
   @Override
   public List<Bin> computeSummary(ResultSet rs) {
     List<Bin> binList = new ArrayList<Bin>();
-    List<SubSequence> subSequences = rs.getResults();
+    AttributeColumn userNames = AttributeColumn.build(rs.getResults(), KEY, CategoricalAttribute.TYPE);
+    int[] counts = userNames.countCategories();
     
     Map<String, Integer> userNameCounters = new HashMap<String, Integer>();
-    
-    for (SubSequence s : subSequences) {
-      String uName = (String) s.getSnippet().getAttribute(KEY).getValue();
-      Integer i = userNameCounters.get(uName);
-      if (i == null) {
-        i = Integer.valueOf(0);
+    for (int code = 0; code < counts.length; code++) {
+      if (counts[code] > 0) {
+        userNameCounters.put(userNames.getCategories().get(code), counts[code]);
       }
-      i++;
-      userNameCounters.put(uName, i);
     }
     
     for (String s : userNameCounters.keySet()) {
@@ -16,7 +16,9 @@
 package com.google.research.ic.ferret.data.ext.alogger;
 
 import com.google.research.ic.ferret.Config;
+import com.google.research.ic.ferret.data.EditDistanceScratch;
 import com.google.research.ic.ferret.data.Event;
+import com.google.research.ic.ferret.data.IdentifierTable;
 import com.google.research.ic.ferret.data.SearchEngine;
 import com.google.research.ic.ferret.test.Debug;
 
@@ -27,6 +29,8 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * TODO: Insert description here. (generated by marknewman)
@@ -162,10 +166,24 @@ public class AccessibilityLogEvent extends Event
     eventNameMap.put(new Integer(TYPE_WINDOW_STATE_CHANGED), TYPE_WINDOW_STATE_CHANGED_NAME);
   }
   
+  /**
+   * Paths are interned (see intern()) once their events are initialized, so 
+   * the many events on the same view share one instance along with its hash
+   * and the arrays the distance computations walk. At most MAX_INTERNED_PATHS
+   * are kept; after that the table is emptied and paths are interned anew.
+   */
   protected static final class PathToRoot {
+    private static final int MAX_INTERNED_PATHS = 1 << 16;
+    private static final ConcurrentHashMap<PathToRoot, PathToRoot> internedPaths = 
+        new ConcurrentHashMap<PathToRoot, PathToRoot>();
+
     protected ArrayList<String> ancestorClassNames = new ArrayList<>();
     protected ArrayList<Integer> ancestorIndices = new ArrayList<>();
     protected int depthFromRoot = -1;
+    
+    private transient int hash = 0;
+    private transient String[] classNameArray = null;
+    private transient Integer[] indexArray = null;
 
     //for testing
     public PathToRoot(int depth, ArrayList<String> ancestorClassNames, ArrayList<Integer> ancestorIndices) {
@@ -184,8 +202,58 @@ public class AccessibilityLogEvent extends Event
       return sw.toString();
     }
     
+    /**
+     * @return the one instance equal to path; incomplete paths aren't interned
+     */
+    public static PathToRoot intern(PathToRoot path) {
+      if (path == null || path.ancestorClassNames == null || path.ancestorIndices == null) {
+        return path;
+      }
+      PathToRoot interned = internedPaths.get(path);
+      if (interned != null) {
+        return interned;
+      }
+      if (internedPaths.size() >= MAX_INTERNED_PATHS) {
+        internedPaths.clear(); // equal paths still compare equal, they just stop sharing
+      }
+      interned = internedPaths.putIfAbsent(path, path);
+      return interned == null ? path : interned;
+    }
+    
+    /**
+     * @return the ancestor class names as an array; don't modify it
+     */
+    protected String[] getClassNameArray() {
+      if (classNameArray == null) {
+        classNameArray = ancestorClassNames.toArray(new String[ancestorClassNames.size()]);
+      }
+      return classNameArray;
+    }
+    
+    /**
+     * @return the ancestor indices as an array; don't modify it
+     */
+    protected Integer[] getIndexArray() {
+      if (indexArray == null) {
+        indexArray = ancestorIndices.toArray(new Integer[ancestorIndices.size()]);
+      }
+      return indexArray;
+    }
+    
+    @Override
+    public int hashCode() {
+      if (hash == 0) {
+        hash = (31 * depthFromRoot + Objects.hashCode(ancestorClassNames)) * 31 
+            + Objects.hashCode(ancestorIndices);
+      }
+      return hash;
+    }
+    
     @Override
     public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
       PathToRoot that = (PathToRoot) o;
       if (this.depthFromRoot != that.depthFromRoot ||
           this.ancestorClassNames.size() != that.ancestorClassNames.size() ||
@@ -252,6 +320,7 @@ public class AccessibilityLogEvent extends Event
 
   public void setwText(String newText) {
     wText = newText;
+    distanceFingerprint = -1;
   }
 
   public String getwClassName() {
@@ -527,6 +596,8 @@ public class AccessibilityLogEvent extends Event
   
   public void setDistanceWeights(ALoggerDistanceWeights weights) {
     this.weights = weights;
+    EventDistanceCache.getCache().clear(); // the weights are shared by every event
+    SearchEngine.getSearchEngine().distancesChanged(); // costs and results used the old ones
   }
   
   
@@ -534,49 +605,70 @@ public class AccessibilityLogEvent extends Event
     return weights;
   }
   
+  /**
+   * Memoized: events with the same type, package, class, view hierarchy and
+   * text are the same to this method, and each pair of those is only 
+   * compared once (see EventDistanceCache).
+   */
   @Override
   public float calculateDistance(Event event) {
     if (event instanceof AccessibilityLogEvent) {
-      AccessibilityLogEvent otherEvent = (AccessibilityLogEvent) event;
-      float dist = 0.0f;
-
-      // key things: is this the same type of event?
-      // is it on the same screen? (not sure we have a good way of detecting this)      
-      // does it have the same path to the root?
-      // do they have the same resource ID?
-
-      if (otherEvent.getEventType() != getEventType()) {
-        dist += 1.0f * weights.getEventTypeDifferenceWeight();
-      }
-      if (!otherEvent.getwPackageName().equals(getwPackageName())) {
-        dist += 1.0f * weights.getPackageNameDifferenceWeight();
-      }
-      if (!otherEvent.getwClassName().equals(getwClassName())) {
-        dist += 1.0f * weights.getClassNameDifferenceWeight();        
-      }
-      
-      dist += calculateViewHierarchyDifference(otherEvent) *
-          weights.getViewHierarchyDifferenceWeight();
-      
-      
-      // (maybe) does it have the same text (useful for buttons)?
-      // are they the same size and position on the screen (relatively speaking)?
-      // --maybe need to see if the screen is in the same rotation 
-      // --for this to make sense
-
-      dist += calculateStringDistance(wText, otherEvent.getwText()) * 
-          weights.getWidgetTextDifferenceWeight();
-      
-      if (dist < 0.0f) {
-        Debug.log("distance is " + dist + " between " + toString() + " and " + event.toString());
-      }
-      return dist;
-      
+      return EventDistanceCache.getCache().getDistance(this, (AccessibilityLogEvent) event);
     } else {
       // compare them as Generic Events if arg is Generic
       return super.calculateDistance(event);
     }
   }
+  
+  /**
+   * @return the fingerprint of the fields calculateDistance looks at
+   */
+  int getDistanceFingerprint() {
+    if (distanceFingerprint < 0) {
+      distanceFingerprint = EventDistanceCache.getCache().fingerprint(getEventType(), 
+          getwPackageName(), getwClassName(), PathToRoot.intern(getPathToRoot()), getwText());
+    }
+    return distanceFingerprint;
+  }
+  
+  /**
+   * The uncached calculateDistance
+   */
+  float computeDistance(AccessibilityLogEvent otherEvent) {
+    float dist = 0.0f;
+
+    // key things: is this the same type of event?
+    // is it on the same screen? (not sure we have a good way of detecting this)      
+    // does it have the same path to the root?
+    // do they have the same resource ID?
+
+    if (otherEvent.getEventType() != getEventType()) {
+      dist += 1.0f * weights.getEventTypeDifferenceWeight();
+    }
+    if (!otherEvent.getwPackageName().equals(getwPackageName())) {
+      dist += 1.0f * weights.getPackageNameDifferenceWeight();
+    }
+    if (!otherEvent.getwClassName().equals(getwClassName())) {
+      dist += 1.0f * weights.getClassNameDifferenceWeight();        
+    }
+    
+    dist += calculateViewHierarchyDifference(otherEvent) *
+        weights.getViewHierarchyDifferenceWeight();
+    
+    
+    // (maybe) does it have the same text (useful for buttons)?
+    // are they the same size and position on the screen (relatively speaking)?
+    // --maybe need to see if the screen is in the same rotation 
+    // --for this to make sense
+
+    dist += calculateStringDistance(wText, otherEvent.getwText()) * 
+        weights.getWidgetTextDifferenceWeight();
+    
+    if (dist < 0.0f) {
+      Debug.log("distance is " + dist + " between " + toString() + " and " + otherEvent.toString());
+    }
+    return dist;
+  }
 
   /**
    * @param otherEvent
@@ -645,12 +737,10 @@ public class AccessibilityLogEvent extends Event
     int i = getPathToRoot().depthFromRoot - 2;
     int j = otherEvent.getPathToRoot().depthFromRoot - 2;
     
-    String[] aClassNames = 
-        getPathToRoot().ancestorClassNames.toArray(new String[i]);
-    String[] oClassNames = 
-        otherEvent.getPathToRoot().ancestorClassNames.toArray(new String[j]);
-    Integer[] aIndices = (Integer[])getPathToRoot().ancestorIndices.toArray(new Integer[i]);
-    Integer[] oIndices = (Integer[])otherEvent.getPathToRoot().ancestorIndices.toArray(new Integer[j]);
+    String[] aClassNames = getPathToRoot().getClassNameArray();
+    String[] oClassNames = otherEvent.getPathToRoot().getClassNameArray();
+    Integer[] aIndices = getPathToRoot().getIndexArray();
+    Integer[] oIndices = otherEvent.getPathToRoot().getIndexArray();
     
     int commonAncestorIndex = 0;
     int oCommonAncestorIndex = 0;
@@ -691,46 +781,59 @@ public class AccessibilityLogEvent extends Event
     int len2 = word2.length();
  
     //Debug.log("Comparing " + word1 + " and " + word2);
-    // len1+1, len2+1, because finally return dp[len1][len2]
+    // two rolling rows of the (len1+1) x (len2+1) matrix
     
-    int[][] dp = new int[len1 + 1][len2 + 1];
- 
-    for (int i = 0; i <= len1; i++) {
-        dp[i][0] = i;
-    }
+    EditDistanceScratch scratch = EditDistanceScratch.getScratch();
+    int[] prev = scratch.getPreviousRow(len2 + 1);
+    int[] curr = scratch.getCurrentRow(len2 + 1);
  
     for (int j = 0; j <= len2; j++) {
-        dp[0][j] = j;
+        prev[j] = j;
     }
  
     //iterate though, and check last char
     for (int i = 0; i < len1; i++) {
         char c1 = word1.charAt(i);
+        curr[0] = i + 1;
         for (int j = 0; j < len2; j++) {
             char c2 = word2.charAt(j);
  
             //if last two chars equal
             if (c1 == c2) {
                 //update dp value for +1 length
-                dp[i + 1][j + 1] = dp[i][j];
+                curr[j + 1] = prev[j];
             } else {
-                int replace = dp[i][j] + 1;
-                int insert = dp[i][j + 1] + 1;
-                int delete = dp[i + 1][j] + 1;
+                int replace = prev[j] + 1;
+                int insert = prev[j + 1] + 1;
+                int delete = curr[j] + 1;
  
                 int min = replace > insert ? insert : replace;
                 min = delete > min ? min : delete;
-                dp[i + 1][j + 1] = min;
+                curr[j + 1] = min;
             }
         }
+        int[] tmp = prev;
+        prev = curr;
+        curr = tmp;
     }
     //Debug.log("Comparing " + word1 + " and " + word2);
  
-    return Math.max(dp[len1][len2], Math.abs(len1 - len2));
+    return Math.max(prev[len2], Math.abs(len1 - len2));
   }
   
+  /**
+   * The identifier is built once, by init(), and cached; events deserialized
+   * without init() build it on first use.
+   */
   @Override
   public String getIdentifier() {
+    if (identifier == null) {
+      identifier = buildIdentifier();
+    }
+    return identifier;
+  }
+  
+  private String buildIdentifier() {
     StringWriter sw = new StringWriter();
     sw.append(getEventTypeName() + "$" + getComponentType() + "$" + getModuleName());
     if (pathToRoot != null) {
@@ -746,8 +849,7 @@ public class AccessibilityLogEvent extends Event
         //  +":" + pathToRoot.ancestorIndices.get(i));
       }
     }
-    identifier = sw.toString();
-    return identifier;
+    return sw.toString();
   }
   
   public String toString() {
@@ -813,8 +915,10 @@ public class AccessibilityLogEvent extends Event
     if (timeStamp < Math.pow(10, 10)) { 
       timeStamp = timeStamp * 1000; // convert to ms
     }
-    this.identifier = getIdentifier();
-    this.identifierId = SearchEngine.getSearchEngine().retrieveOrRegisterIdentifier(identifier);
+    this.pathToRoot = PathToRoot.intern(pathToRoot);
+    this.distanceFingerprint = -1; // like every write to a field getDistanceFingerprint() reads
+    this.identifier = buildIdentifier(); // logs may carry identifiers built differently
+    this.identifierId = IdentifierTable.getTable().getId(this);
 
   }
 
@@ -184,8 +184,7 @@ public class AccessibilityLogParser implements Parser {
    */
   public AccessibilityLogEvent eventFromGsonString(String gsonString) {
     AccessibilityLogEvent alE = gson.fromJson(gsonString, AccessibilityLogEvent.class);
-    alE.init();
-    alE.setIdentifierId(LogLoader.getLogLoader().getOrCreateIdentifierId(alE.getIdentifier()));
+    alE.init(); // assigns the identifier id
     return alE;
   }
   
@@ -225,25 +224,25 @@ public class AccessibilityLogParser implements Parser {
 
     if (lastEvent.getEventType() == AccessibilityLogEvent.TYPE_VIEW_TEXT_CHANGED) {
       if (prevEvent.getEventType() == AccessibilityLogEvent.TYPE_VIEW_TEXT_CHANGED) {
-        snippet.getEvents().remove(size - 2);
+        snippet.removeEvent(size - 2);
         return true;
       } 
     } else if (lastEvent.getEventType() == AccessibilityLogEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED) {
       if (prevEvent.getEventType() == AccessibilityLogEvent.TYPE_VIEW_TEXT_CHANGED) {
         if (hasSameSource(lastEvent, prevEvent))  {
-          snippet.getEvents().remove(size - 1);
+          snippet.removeEvent(size - 1);
           return true;
         }
       }
     } else if (lastEvent.getEventType() == AccessibilityLogEvent.TYPE_VIEW_SCROLLED) {
       if (prevEvent.getEventType() == AccessibilityLogEvent.TYPE_VIEW_SCROLLED) {
         if (!hasSameSource(lastEvent, prevEvent)) return false;
-        snippet.getEvents().remove(size - 1);
+        snippet.removeEvent(size - 1);
         prevEvent.addRepetition();
         return true;
       } else if (prevEvent.getEventType() == AccessibilityLogEvent.TYPE_VIEW_TEXT_CHANGED) {
         // a scroll event right after text changed is probably triggered by it, and probably noise
-        snippet.getEvents().remove(size - 1);
+        snippet.removeEvent(size - 1);
         return true;
       }
     }
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.data.ext.alogger;
+
+import com.google.research.ic.ferret.Config;
+import com.google.research.ic.ferret.data.ext.alogger.AccessibilityLogEvent.PathToRoot;
+import com.google.research.ic.ferret.test.Debug;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memoizes AccessibilityLogEvent.calculateDistance. Each distinct combination 
+ * of the fields the distance looks at (event type, package, class, view 
+ * hierarchy and text) gets a small int fingerprint, and distances are cached 
+ * by pairs of fingerprints, so comparing events that recur throughout a 
+ * corpus costs a hash lookup rather than string edit distances and walks up 
+ * the view hierarchy.
+ *
+ * The cache holds at most Config.distanceCacheSize distances; when it is 
+ * full it is emptied and refills with the pairs still being compared. The 
+ * fingerprints are emptied the same way after MAX_FINGERPRINTS of them; 
+ * fingerprint ids are never reused, so events keep the ones they have.
+ */
+public class EventDistanceCache {
+
+  public static final int MAX_FINGERPRINTS = 1 << 16;
+
+  private static EventDistanceCache theCache = null;
+
+  private final ConcurrentHashMap<Fingerprint, Integer> fingerprints = 
+      new ConcurrentHashMap<Fingerprint, Integer>();
+  private final AtomicInteger nextFingerprint = new AtomicInteger();
+  
+  private final ConcurrentHashMap<Long, Float> distances = new ConcurrentHashMap<Long, Float>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private EventDistanceCache() {}
+
+  public static synchronized EventDistanceCache getCache() {
+    if (theCache == null) {
+      theCache = new EventDistanceCache();
+    }
+    return theCache;
+  }
+
+  /**
+   * @return a.calculateDistance(b), from the cache if the same pair of 
+   * fingerprints was compared before
+   */
+  public float getDistance(AccessibilityLogEvent a, AccessibilityLogEvent b) {
+    Long key = ((long) a.getDistanceFingerprint() << 32) | b.getDistanceFingerprint();
+    Float distance = distances.get(key);
+    if (distance != null) {
+      hits.incrementAndGet();
+      return distance;
+    }
+    misses.incrementAndGet();
+    float computed = a.computeDistance(b);
+    if (distances.size() >= Config.distanceCacheSize) {
+      Debug.log("Event distance cache is full, emptying it (hit rate so far " 
+          + getHitRate() + ")");
+      distances.clear();
+    }
+    if (Config.distanceCacheSize > 0) {
+      distances.put(key, computed);
+    }
+    return computed;
+  }
+
+  /**
+   * @return the fingerprint of the given fields, assigning the next one if 
+   * they are new. path should be interned.
+   */
+  int fingerprint(int eventType, String packageName, String className, PathToRoot path, 
+      String text) {
+    Fingerprint fingerprint = new Fingerprint(eventType, packageName, className, path, text);
+    Integer id = fingerprints.get(fingerprint);
+    if (id == null) {
+      if (fingerprints.size() >= MAX_FINGERPRINTS) {
+        Debug.log("Event fingerprints are full, emptying them");
+        fingerprints.clear();
+      }
+      Integer newId = nextFingerprint.getAndIncrement();
+      id = fingerprints.putIfAbsent(fingerprint, newId);
+      if (id == null) {
+        id = newId;
+      }
+    }
+    return id;
+  }
+
+  /**
+   * Forgets every cached distance, for instance because the weights changed
+   */
+  public void clear() {
+    distances.clear();
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the fraction of getDistance calls answered from the cache, or 0 
+   * before the first call
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0d : (double) h / (double) total;
+  }
+
+  /**
+   * @return the number of cached distances
+   */
+  public int size() {
+    return distances.size();
+  }
+
+  private static final class Fingerprint {
+    private final int eventType;
+    private final String packageName;
+    private final String className;
+    private final PathToRoot path;
+    private final String text;
+    private final int hash;
+
+    Fingerprint(int eventType, String packageName, String className, PathToRoot path, 
+        String text) {
+      this.eventType = eventType;
+      this.packageName = packageName;
+      this.className = className;
+      this.path = path;
+      this.text = text;
+      this.hash = Objects.hash(eventType, packageName, className, path, text);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Fingerprint)) {
+        return false;
+      }
+      Fingerprint that = (Fingerprint) o;
+      return hash == that.hash && eventType == that.eventType 
+          && Objects.equals(packageName, that.packageName) 
+          && Objects.equals(className, that.className) 
+          && Objects.equals(text, that.text) && Objects.equals(path, that.path);
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.research.ic.ferret.data.BitParallelEditDistance;
+import com.google.research.ic.ferret.data.SearchEngine;
+import com.google.research.ic.ferret.data.ext.alogger.AccessibilityLogEvent;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cross-checks the bit-parallel and banded edit distance kernels against the DP version
+ */
+public class EditDistanceTest {
+
+  private Random random = new Random(42);
+
+  @Test
+  public void testSingleWordPatterns() {
+    for (int patternLength = 0; patternLength <= 64; patternLength++) {
+      crossCheck(patternLength, 4);
+      crossCheck(patternLength, 20);
+    }
+  }
+
+  @Test
+  public void testMultiWordPatterns() {
+    int[] lengths = {65, 100, 127, 128, 129, 200};
+    for (int patternLength : lengths) {
+      crossCheck(patternLength, 3);
+      crossCheck(patternLength, 30);
+    }
+  }
+
+  @Test
+  public void testCutoffs() {
+    SearchEngine se = SearchEngine.getSearchEngine();
+    int[] lengths = {1, 5, 30, 64, 65, 150};
+    for (int patternLength : lengths) {
+      int[] query = randomIds(patternLength, 5);
+      int[] log = randomIds(patternLength * 3 + 10, 5);
+      BitParallelEditDistance kernel = new BitParallelEditDistance(query);
+      for (int trial = 0; trial < 50; trial++) {
+        int start = random.nextInt(log.length);
+        int end = Math.min(log.length, start + random.nextInt(patternLength * 2 + 2));
+        int maxDistance = random.nextInt(patternLength + 3) - 1;
+        int expected = Math.min(se.computeEditDistance(query, log, start, end), maxDistance + 1);
+        String msg = "pattern length " + patternLength + ", range " + start + "-" + end 
+            + ", cutoff " + maxDistance;
+        assertEquals(msg, expected, se.computeEditDistance(query, log, start, end, maxDistance));
+        assertEquals(msg, expected, kernel.distance(log, start, end, maxDistance));
+      }
+    }
+  }
+
+  @Test
+  public void testBestDistancesByStart() {
+    SearchEngine se = SearchEngine.getSearchEngine();
+    int[] lengths = {1, 7, 64, 90};
+    for (int patternLength : lengths) {
+      int[] query = randomIds(patternLength, 4);
+      int[] log = randomIds(patternLength * 2 + 15, 4);
+      BitParallelEditDistance kernel = new BitParallelEditDistance(query);
+      int start = random.nextInt(log.length / 2);
+      int end = start + 1 + random.nextInt(log.length - start);
+      int[] fromKernel = new int[end - start];
+      int[] fromDP = new int[end - start];
+      kernel.bestDistancesByStart(log, start, end, fromKernel);
+      se.computeBestDistancesByStart(query, log, start, end, fromDP);
+      for (int i = start; i < end; i++) {
+        int expected = Integer.MAX_VALUE;
+        for (int e = i; e <= end; e++) {
+          expected = Math.min(expected, se.computeEditDistance(query, log, i, e));
+        }
+        String msg = "pattern length " + patternLength + ", start " + i;
+        assertEquals(msg, expected, fromKernel[i - start]);
+        assertEquals(msg, expected, fromDP[i - start]);
+      }
+    }
+  }
+
+  @Test
+  public void testSearchNext() {
+    SearchEngine se = SearchEngine.getSearchEngine();
+    int[] lengths = {1, 7, 64, 90};
+    for (int patternLength : lengths) {
+      int[] query = randomIds(patternLength, 4);
+      int[] log = randomIds(patternLength * 2 + 15, 4);
+      BitParallelEditDistance kernel = new BitParallelEditDistance(query);
+      BitParallelEditDistance.SearchState state = kernel.startSearch();
+      for (int e = 1; e <= log.length; e++) {
+        int expected = Integer.MAX_VALUE;
+        for (int i = 0; i <= e; i++) {
+          expected = Math.min(expected, se.computeEditDistance(query, log, i, e));
+        }
+        assertEquals("pattern length " + patternLength + ", end " + e,
+            expected, kernel.searchNext(state, log[e - 1]));
+      }
+    }
+  }
+
+  /**
+   * The kernels reuse per-thread scratch rows, so once warmed up they shouldn't
+   * allocate at all. Skipped on VMs that don't report per-thread allocation.
+   */
+  @Test
+  public void testSteadyStateAllocation() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return;
+    }
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    if (!threadBean.isThreadAllocatedMemorySupported() || !threadBean.isThreadAllocatedMemoryEnabled()) {
+      return;
+    }
+    SearchEngine se = SearchEngine.getSearchEngine();
+    int[] query = randomIds(100, 6);
+    int[] log = randomIds(400, 6);
+    List<Integer> list = new ArrayList<Integer>();
+    for (int id : log) {
+      list.add(Integer.valueOf(id));
+    }
+    BitParallelEditDistance kernel = new BitParallelEditDistance(query);
+    int[] distances = new int[log.length];
+
+    int sum = 0;
+    long allocated = Long.MAX_VALUE;
+    // the first round warms up the scratch rows; the VM itself may allocate 
+    // now and then on this thread (e.g. while compiling), so any clean round passes
+    for (int round = 0; round < 4 && allocated > 0; round++) {
+      long before = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      for (int i = 0; i < 200; i++) {
+        sum += se.computeEditDistance(query, log, i, i + query.length);
+        sum += se.computeEditDistance(query, log, i, i + query.length, 40);
+        sum += se.computeVectorEditDistance(list, list, i, i + 50, 0, list.size());
+        sum += kernel.distance(log, i, i + query.length);
+        sum += AccessibilityLogEvent.calculateStringDistance("android.widget.Button", "android.widget.TextView");
+      }
+      se.computeBestDistancesByStart(query, log, 0, log.length, distances);
+      kernel.bestDistancesByStart(log, 0, log.length, distances);
+      long roundAllocated = 
+          threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+      if (round > 0) {
+        allocated = Math.min(allocated, roundAllocated);
+      }
+    }
+    assertTrue(sum > 0);
+    assertEquals(0, allocated);
+  }
+
+  @Test
+  public void testIdenticalRange() {
+    int[] log = randomIds(300, 10);
+    int[] query = new int[150];
+    System.arraycopy(log, 70, query, 0, query.length);
+    BitParallelEditDistance kernel = new BitParallelEditDistance(query);
+    assertEquals(0, kernel.distance(log, 70, 70 + query.length));
+  }
+
+  private void crossCheck(int patternLength, int alphabetSize) {
+    SearchEngine se = SearchEngine.getSearchEngine();
+    int[] query = randomIds(patternLength, alphabetSize);
+    int[] log = randomIds(patternLength * 3 + 10, alphabetSize);
+    BitParallelEditDistance kernel = new BitParallelEditDistance(query);
+    for (int trial = 0; trial < 20; trial++) {
+      int start = random.nextInt(log.length);
+      int end = Math.min(log.length, start + random.nextInt(patternLength * 2 + 2));
+      assertEquals("pattern length " + patternLength + ", range " + start + "-" + end,
+          se.computeEditDistance(query, log, start, end), kernel.distance(log, start, end));
+    }
+  }
+
+  private int[] randomIds(int length, int alphabetSize) {
+    int[] ids = new int[length];
+    for (int i = 0; i < length; i++) {
+      ids[i] = random.nextInt(alphabetSize);
+    }
+    return ids;
+  }
+}
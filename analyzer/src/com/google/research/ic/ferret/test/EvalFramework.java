@@ -64,6 +64,10 @@ public class EvalFramework {
     
     public long searchTime = -1;
     
+    // with the LSH candidate generator, the same search with ngram candidates
+    public long nGramSearchTime = -1;
+    public float candidateRecall = Float.NaN;
+    
     public TagInstanceResult() {
       closeMatches = new ArrayList<String>();
       weakMatches = new ArrayList<String>();
@@ -140,6 +144,9 @@ public class EvalFramework {
           long t = System.currentTimeMillis();
           UberResultSet urs = SearchEngine.getSearchEngine().findMatches(query);
           tiResult.searchTime = System.currentTimeMillis() - t;
+          if (Config.candidateGenerator.equals(Config.ARG_CANDIDATES_LSH)) {
+            compareWithNGramCandidates(query, urs, tiResult);
+          }
           ResultSet closeMatches = urs.getStrongMatches();
           ResultSet weakMatches = urs.getWeakMatches();
           ResultSet elongMatches = urs.getElongatedMatches();
@@ -237,6 +244,9 @@ public class EvalFramework {
           tiResult.searchTime, tiResult.closeMatches, tiResult.weakMatches,
           tiResult.elongMatches, tiResult.altEndMatches);
     }
+    if (Config.candidateGenerator.equals(Config.ARG_CANDIDATES_LSH)) {
+      printCandidateComparison();
+    }
     if (crossVal) {
       System.out.println("Tag Group Results:  ");
       System.out.println("tag\t\tprec\t\trec");
@@ -246,6 +256,66 @@ public class EvalFramework {
     }
   }
 
+  /**
+   * Searches again with ngram candidates, and records how long that took and
+   * what fraction of its strong matches the LSH search also found (overlapping
+   * in the same log)
+   */
+  private static void compareWithNGramCandidates(Snippet query, UberResultSet lshResults,
+      TagInstanceResult tiResult) {
+    Config.candidateGenerator = Config.ARG_CANDIDATES_NGRAM;
+    try {
+      long t = System.currentTimeMillis();
+      UberResultSet nGramResults = SearchEngine.getSearchEngine().findMatches(query);
+      tiResult.nGramSearchTime = System.currentTimeMillis() - t;
+      ResultSet expected = nGramResults.getStrongMatches();
+      ResultSet found = lshResults.getStrongMatches();
+      if (expected == null || expected.getResults() == null || expected.getResults().isEmpty()) {
+        return;
+      }
+      List<SubSequence> foundResults = new ArrayList<SubSequence>();
+      if (found != null && found.getResults() != null) {
+        foundResults = found.getResults();
+      }
+      int recalled = 0;
+      for (SubSequence e : expected.getResults()) {
+        for (SubSequence f : foundResults) {
+          if (f.getSnippet() == e.getSnippet() && f.getStartIndex() < e.getEndIndex() 
+              && e.getStartIndex() < f.getEndIndex()) {
+            recalled++;
+            break;
+          }
+        }
+      }
+      tiResult.candidateRecall = (float) recalled / expected.getResults().size();
+    } finally {
+      Config.candidateGenerator = Config.ARG_CANDIDATES_LSH;
+    }
+  }
+  
+  private static void printCandidateComparison() {
+    System.out.println("Candidate Generator Results (lsh, window=" + Config.lshWindowSize 
+        + ", bands=" + Config.lshBands + ", rows=" + Config.lshRows + "; vs. ngram): ");
+    System.out.println("tag \tstag-inst                    \tlsh(ms) \tngram(ms) \trecall");
+    long lshTime = 0;
+    long nGramTime = 0;
+    float recallSum = 0.0f;
+    int recallCount = 0;
+    for (TagInstanceResult tiResult : tagInstanceResults) {
+      System.out.printf("%s \t%-30s \t%d \t%d \t%.2f\n", tiResult.tagGroupName, 
+          tiResult.tagInstanceName, tiResult.searchTime, tiResult.nGramSearchTime, 
+          tiResult.candidateRecall);
+      lshTime += tiResult.searchTime;
+      nGramTime += tiResult.nGramSearchTime;
+      if (!Float.isNaN(tiResult.candidateRecall)) {
+        recallSum += tiResult.candidateRecall;
+        recallCount++;
+      }
+    }
+    System.out.printf("total \t%-30s \t%d \t%d \t%.2f\n", "", lshTime, nGramTime, 
+        recallCount > 0 ? recallSum / recallCount : Float.NaN);
+  }
+  
   public static void loadLabeledLogs(String logDirName, 
       List<Snippet> logList, Map<Snippet, 
       List<LabeledRegion>> snippetToRegionMap,
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.research.ic.ferret.data.FilterPredicate;
+import com.google.research.ic.ferret.data.FilterSpec;
+import com.google.research.ic.ferret.data.Snippet;
+import com.google.research.ic.ferret.data.SubSequence;
+import com.google.research.ic.ferret.data.attributes.CategoricalAttribute;
+import com.google.research.ic.ferret.data.attributes.DateTimeAttribute;
+import com.google.research.ic.ferret.data.attributes.NumericalAttribute;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cross-checks the predicates FilterSpec compiles to, one result at a time
+ * and over columns, against the way FilterSpec used to filter results
+ */
+public class FilterSpecTest {
+
+  private static final String[] OPERATORS = {FilterSpec.EQUALS, FilterSpec.NOT_EQUALS, 
+      FilterSpec.GREATER_THAN, FilterSpec.LESS_THAN, FilterSpec.BETWEEN};
+
+  private Random random = new Random(42);
+  private List<Snippet> snippets;
+
+  @Before
+  public void setUp() {
+    snippets = new ArrayList<Snippet>();
+    for (int i = 0; i < 30; i++) {
+      Snippet s = new Snippet();
+      s.setAttribute(new NumericalAttribute("num", randomNumber()));
+      s.setAttribute(new DateTimeAttribute("date", randomDate()));
+      s.setAttribute(new CategoricalAttribute("cat", randomCategory()));
+      snippets.add(s);
+    }
+  }
+
+  @Test
+  public void testNumericClauses() {
+    for (String operator : OPERATORS) {
+      crossCheck("num", operator, randomNumber(), randomNumber());
+    }
+  }
+
+  @Test
+  public void testDateClauses() {
+    for (String operator : OPERATORS) {
+      crossCheck("date", operator, randomDate(), randomDate());
+    }
+  }
+
+  @Test
+  public void testCategoryClauses() {
+    crossCheck("cat", FilterSpec.EQUALS, randomCategory(), null);
+    crossCheck("cat", FilterSpec.NOT_EQUALS, randomCategory(), null);
+    crossCheck("cat", FilterSpec.EQUALS, "no such category", null);
+    crossCheck("cat", FilterSpec.NOT_EQUALS, "no such category", null);
+  }
+
+  @Test
+  public void testObjectClauses() {
+    // categories compared by order, and numbers compared with another type
+    for (String operator : OPERATORS) {
+      crossCheck("cat", operator, randomCategory(), randomCategory());
+    }
+    crossCheck("num", FilterSpec.EQUALS, Integer.valueOf(2), null);
+    crossCheck("num", FilterSpec.NOT_EQUALS, Integer.valueOf(2), null);
+  }
+
+  @Test
+  public void testMissingAttribute() {
+    List<SubSequence> results = new ArrayList<SubSequence>();
+    results.add(new SubSequence(0, 3, new Snippet(), 0.5));
+    Object[][] clauses = {{"num", randomNumber()}, {"date", randomDate()}, 
+        {"cat", randomCategory()}};
+    for (Object[] clause : clauses) {
+      for (String operator : OPERATORS) {
+        if (clause[0].equals("cat") && !operator.equals(FilterSpec.EQUALS) 
+            && !operator.equals(FilterSpec.NOT_EQUALS)) {
+          continue;
+        }
+        FilterPredicate p = FilterPredicate.attribute((String) clause[0], operator, clause[1], 
+            operator.equals(FilterSpec.BETWEEN) ? clause[1] : null);
+        boolean expected = operator.equals(FilterSpec.NOT_EQUALS); // the negation of false
+        boolean[] accepted = new boolean[1];
+        p.evaluate(results, 0, 1, accepted);
+        assertEquals(p.toString(), expected, p.accepts(results.get(0)));
+        assertEquals(p.toString(), expected, accepted[0]);
+      }
+    }
+  }
+
+  @Test
+  public void testSettersResetPredicate() {
+    FilterSpec spec = new FilterSpec(0.0, 10.0, -1, "num", FilterSpec.BETWEEN, 1.0, 3.0);
+    FilterPredicate predicate = spec.getPredicate();
+    assertSame(predicate, spec.getPredicate());
+    spec.setLimit(5); // not part of the predicate
+    assertSame(predicate, spec.getPredicate());
+
+    Snippet s = new Snippet();
+    s.setAttribute(new NumericalAttribute("num", 2.0));
+    SubSequence result = new SubSequence(0, 4, s, 1.0);
+    assertTrue(spec.filter(result));
+
+    spec.setMinDist(2.0);
+    predicate = assertReset(spec, predicate, result, false);
+    spec.setMinDist(0.0);
+    predicate = assertReset(spec, predicate, result, true);
+    spec.setMaxDist(0.5);
+    predicate = assertReset(spec, predicate, result, false);
+    spec.setMaxDist(10.0);
+    predicate = assertReset(spec, predicate, result, true);
+    spec.setMinSubSequenceSize(4);
+    predicate = assertReset(spec, predicate, result, false);
+    spec.setMinSubSequenceSize(-1);
+    predicate = assertReset(spec, predicate, result, true);
+    spec.setMaxSubSequenceSize(2);
+    predicate = assertReset(spec, predicate, result, false);
+    spec.setMaxSubSequenceSize(-1);
+    predicate = assertReset(spec, predicate, result, true);
+    spec.setValue2(1.5);
+    predicate = assertReset(spec, predicate, result, false);
+    spec.setValue(0.0);
+    predicate = assertReset(spec, predicate, result, false);
+    spec.setOperator(FilterSpec.GREATER_THAN);
+    spec.setValue2(null);
+    predicate = assertReset(spec, predicate, result, true);
+    spec.setAttributeKey("other");
+    predicate = assertReset(spec, predicate, result, false);
+    spec.setAttributeKey("num");
+    predicate = assertReset(spec, predicate, result, true);
+    spec.setCondition(FilterPredicate.not(FilterPredicate.attribute("num", FilterSpec.EQUALS, 2.0)));
+    predicate = assertReset(spec, predicate, result, false);
+    spec.setCondition(null);
+    assertReset(spec, predicate, result, true);
+  }
+
+  /**
+   * @return the spec's new predicate, after checking that it replaced the 
+   * old one and what it says about the result
+   */
+  private FilterPredicate assertReset(FilterSpec spec, FilterPredicate old, SubSequence result,
+      boolean expected) {
+    FilterPredicate predicate = spec.getPredicate();
+    assertNotSame(spec.toString(), old, predicate);
+    assertEquals(spec.toString(), expected, spec.filter(result));
+    return predicate;
+  }
+
+  private void crossCheck(String key, String operator, Object value, Object value2) {
+    for (int trial = 0; trial < 20; trial++) {
+      double minDist = random.nextBoolean() ? -1.0 : random.nextInt(4) * 0.5;
+      double maxDist = random.nextBoolean() ? -1.0 : random.nextInt(8) * 0.5;
+      FilterSpec spec = operator.equals(FilterSpec.BETWEEN) 
+          ? new FilterSpec(minDist, maxDist, -1, key, operator, value, value2)
+          : new FilterSpec(minDist, maxDist, -1, key, operator, value);
+      if (random.nextBoolean()) {
+        spec.setMinSubSequenceSize(random.nextInt(6));
+      }
+      if (random.nextBoolean()) {
+        spec.setMaxSubSequenceSize(random.nextInt(10));
+      }
+      List<SubSequence> results = new ArrayList<SubSequence>();
+      for (int i = 0; i < 40; i++) {
+        int start = random.nextInt(10);
+        results.add(new SubSequence(start, start + random.nextInt(10), 
+            snippets.get(random.nextInt(snippets.size())), random.nextInt(8) * 0.5));
+      }
+      boolean[] accepted = new boolean[results.size()];
+      int split = random.nextInt(results.size());
+      spec.filter(results, 0, split, accepted);
+      spec.filter(results, split, results.size(), accepted);
+      for (int i = 0; i < results.size(); i++) {
+        boolean expected = oldFilter(spec, results.get(i));
+        String msg = spec + " on result " + i;
+        assertEquals(msg, expected, spec.filter(results.get(i)));
+        assertEquals(msg, expected, accepted[i]);
+      }
+    }
+  }
+
+  /**
+   * How FilterSpec.filter worked before it compiled itself into a predicate
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private boolean oldFilter(FilterSpec spec, SubSequence subS) {
+    double distance = subS.getDistance();
+    if ((spec.getMinDist() != -1.0 && distance < spec.getMinDist()) 
+        || (spec.getMaxDist() != -1.0 && distance > spec.getMaxDist())) {
+      return false;
+    }
+    if ((spec.getMinSubSequenceSize() != -1 && subS.getLength() < spec.getMinSubSequenceSize())
+        || (spec.getMaxSubSequenceSize() != -1 
+        && subS.getLength() > spec.getMaxSubSequenceSize())) {
+      return false;
+    }
+    Object value = subS.getSnippet().getAttribute(spec.getAttributeKey()).getValue();
+    String operator = spec.getOperator();
+    if (operator.equals(FilterSpec.EQUALS)) {
+      return value.equals(spec.getValue());
+    } else if (operator.equals(FilterSpec.NOT_EQUALS)) {
+      return !value.equals(spec.getValue());
+    } else if (operator.equals(FilterSpec.GREATER_THAN)) {
+      return ((Comparable) value).compareTo(spec.getValue()) > 0;
+    } else if (operator.equals(FilterSpec.LESS_THAN)) {
+      return ((Comparable) value).compareTo(spec.getValue()) < 0;
+    } else {
+      return ((Comparable) value).compareTo(spec.getValue()) >= 0 
+          && ((Comparable) value).compareTo(spec.getValue2()) <= 0;
+    }
+  }
+
+  private Double randomNumber() {
+    return Double.valueOf(random.nextInt(5));
+  }
+
+  private Date randomDate() {
+    return new Date(random.nextInt(5) * 1000L);
+  }
+
+  private String randomCategory() {
+    return "category" + random.nextInt(4);
+  }
+}
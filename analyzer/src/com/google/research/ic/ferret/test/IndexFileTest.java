@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.research.ic.ferret.Config;
+import com.google.research.ic.ferret.data.IndexFile;
+import com.google.research.ic.ferret.data.SearchEngine;
+import com.google.research.ic.ferret.data.Snippet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes an index file and loads it back, and checks the cases where load() 
+ * has to refuse it
+ */
+public class IndexFileTest {
+
+  private static final int NGRAM_LENGTH = 3;
+
+  private Random random = new Random(42);
+  private SearchEngine se = SearchEngine.getSearchEngine();
+  private File logDir;
+  /* logDir relative to the working directory, as the parsers take it */
+  private String logDirName;
+  private File indexFile;
+
+  @Before
+  public void setUp() throws IOException {
+    logDir = Files.createTempDirectory("IndexFileTest").toFile();
+    logDir.deleteOnExit();
+    logDirName = Paths.get(System.getProperty("user.dir")).relativize(logDir.toPath()).toString();
+    File logFile = new File(logDir, "a.log");
+    logFile.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(logFile);
+    try {
+      out.write("not parsed by this test\n".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    indexFile = new File(logDir, IndexFile.DEFAULT_INDEX_FILE_NAME);
+    indexFile.deleteOnExit();
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    List<Snippet> logs = writeRandomIndex();
+    byte[] written = Files.readAllBytes(indexFile.toPath());
+
+    se.clearIndex();
+    List<Snippet> loaded = IndexFile.load(indexFile, logDirName, se, NGRAM_LENGTH);
+    assertNotNull(loaded);
+    assertEquals(logs.size(), loaded.size());
+    for (int i = 0; i < logs.size(); i++) {
+      Snippet expected = logs.get(i);
+      Snippet actual = loaded.get(i);
+      assertEquals(expected.getUserId(), actual.getUserId());
+      assertEquals(expected.getDeviceId(), actual.getDeviceId());
+      assertEquals(expected.getSourceFilename(), actual.getSourceFilename());
+      assertArrayEquals(expected.getIdentifierIds(), actual.getIdentifierIds());
+      assertTrue(Arrays.equals(expected.getTimeStamps(), actual.getTimeStamps()));
+      assertArrayEquals(expected.getEventTypeCodes(), actual.getEventTypeCodes());
+    }
+
+    // the loaded index, postings included, writes out the same file
+    IndexFile.write(indexFile, logDirName, se, NGRAM_LENGTH);
+    assertTrue(Arrays.equals(written, Files.readAllBytes(indexFile.toPath())));
+    se.clearIndex();
+  }
+
+  @Test
+  public void testRefusedIndexFiles() throws IOException {
+    writeRandomIndex();
+    se.clearIndex();
+    assertNull(IndexFile.load(indexFile, logDirName, se, NGRAM_LENGTH + 1));
+
+    boolean weighted = Config.useWeightedEditDistance;
+    Config.useWeightedEditDistance = true; // the file has no representative events
+    try {
+      assertNull(IndexFile.load(indexFile, logDirName, se, NGRAM_LENGTH));
+    } finally {
+      Config.useWeightedEditDistance = weighted;
+    }
+
+    RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+    try {
+      file.seek(4);
+      file.writeInt(IndexFile.VERSION + 1);
+    } finally {
+      file.close();
+    }
+    assertNull(IndexFile.load(indexFile, logDirName, se, NGRAM_LENGTH));
+
+    writeRandomIndex();
+    se.clearIndex();
+    File newLogFile = new File(logDir, "b.log");
+    newLogFile.deleteOnExit();
+    assertTrue(newLogFile.createNewFile());
+    assertNull(IndexFile.load(indexFile, logDirName, se, NGRAM_LENGTH)); // stale
+    assertTrue(newLogFile.delete());
+    assertNotNull(IndexFile.load(indexFile, logDirName, se, NGRAM_LENGTH));
+    se.clearIndex();
+  }
+
+  @Test
+  public void testShardSuffixedPath() throws IOException {
+    int shardCount = Config.shardCount;
+    int shardIndex = Config.shardIndex;
+    try {
+      Config.shardCount = 1;
+      Config.shardIndex = 0;
+      assertEquals(indexFile.getCanonicalFile(), 
+          IndexFile.getDefaultIndexFile(logDirName).getCanonicalFile());
+      Config.shardCount = 3;
+      Config.shardIndex = 1;
+      File shardFile = new File(logDir, IndexFile.DEFAULT_INDEX_FILE_NAME + ".1of3");
+      assertEquals(shardFile.getCanonicalFile(), 
+          IndexFile.getDefaultIndexFile(logDirName).getCanonicalFile());
+    } finally {
+      Config.shardCount = shardCount;
+      Config.shardIndex = shardIndex;
+    }
+  }
+
+  /**
+   * Indexes a few random logs, from scratch, and writes them to indexFile
+   */
+  private List<Snippet> writeRandomIndex() throws IOException {
+    int[] alphabet = new int[6];
+    for (int i = 0; i < alphabet.length; i++) {
+      alphabet[i] = se.retrieveOrRegisterIdentifier("IndexFileTest$" + i);
+    }
+    int[] types = {Snippet.getEventTypeCode("IndexFileTest$click"), 
+        Snippet.getEventTypeCode("IndexFileTest$focus")};
+    List<Snippet> logs = new ArrayList<Snippet>();
+    for (int k = 0; k < 4; k++) {
+      int size = 20 + random.nextInt(50);
+      int[] ids = new int[size];
+      long[] timeStamps = new long[size];
+      int[] codes = new int[size];
+      for (int i = 0; i < size; i++) {
+        ids[i] = alphabet[random.nextInt(alphabet.length)];
+        timeStamps[i] = 1000L * k + 10L * i;
+        codes[i] = types[random.nextInt(types.length)];
+      }
+      logs.add(new Snippet("user" + k, "device" + k, "a.log", ids, timeStamps, codes, null));
+    }
+    se.clearIndex();
+    se.indexLogs(logs, NGRAM_LENGTH);
+    IndexFile.write(indexFile, logDirName, se, NGRAM_LENGTH);
+    return logs;
+  }
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.research.ic.ferret.data.QueryResultCache;
+import com.google.research.ic.ferret.data.ResultSet;
+import com.google.research.ic.ferret.data.SearchEngine;
+import com.google.research.ic.ferret.data.Snippet;
+import com.google.research.ic.ferret.data.SubSequence;
+import com.google.research.ic.ferret.data.UberResultSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks that repeated searches are answered from the result cache, and
+ * that the cache is dropped when the index changes
+ */
+public class QueryResultCacheTest {
+
+  private static final int NGRAM_LENGTH = 3;
+
+  private Random random = new Random(42);
+  private SearchEngine se = SearchEngine.getSearchEngine();
+  private List<Snippet> logs;
+  private Snippet query;
+
+  @Before
+  public void setUp() {
+    int[] alphabet = new int[6];
+    for (int i = 0; i < alphabet.length; i++) {
+      alphabet[i] = se.retrieveOrRegisterIdentifier("QueryResultCacheTest$" + i);
+    }
+    logs = new ArrayList<Snippet>();
+    for (int k = 0; k < 4; k++) {
+      int size = 2000;
+      int[] ids = new int[size];
+      long[] timeStamps = new long[size];
+      for (int i = 0; i < size; i++) {
+        ids[i] = alphabet[random.nextInt(alphabet.length)];
+        timeStamps[i] = 10L * i;
+      }
+      logs.add(new Snippet("user" + k, "device" + k, "a.log", ids, timeStamps, new int[size], 
+          null));
+    }
+    se.clearIndex();
+    se.indexLogs(logs, NGRAM_LENGTH);
+    query = querySnippet(Arrays.copyOfRange(logs.get(1).getIdentifierIds(), 100, 108));
+  }
+
+  @Test
+  public void testHit() {
+    QueryResultCache cache = se.getResultCache();
+    int hits = cache.getHits();
+    int misses = cache.getMisses();
+
+    UberResultSet first = se.findMatches(query);
+    assertEquals(misses + 1, cache.getMisses());
+    assertEquals(1, cache.size());
+    assertTrue(first.getStrongMatches().getResults().size() > 0);
+
+    UberResultSet second = se.findMatches(query);
+    assertEquals(hits + 1, cache.getHits());
+    assertEquals(misses + 1, cache.getMisses());
+    assertSameResults(first, second);
+
+    // an equal query from another snippet is the same search
+    se.findMatches(querySnippet(query.getIdentifierIds()));
+    assertEquals(hits + 2, cache.getHits());
+  }
+
+  @Test
+  public void testInvalidatedWhenIndexChanges() {
+    QueryResultCache cache = se.getResultCache();
+    UberResultSet before = se.findMatches(query);
+    long version = se.getIndexVersion();
+    assertEquals(1, cache.size());
+
+    se.distancesChanged();
+    assertTrue(se.getIndexVersion() > version);
+    assertEquals(0, cache.size());
+    int misses = cache.getMisses();
+    assertSameResults(before, se.findMatches(query));
+    assertEquals(misses + 1, cache.getMisses());
+
+    version = se.getIndexVersion();
+    se.indexLogs(logs, NGRAM_LENGTH);
+    assertTrue(se.getIndexVersion() > version);
+    assertEquals(0, cache.size());
+    se.findMatches(query);
+    assertEquals(misses + 2, cache.getMisses());
+  }
+
+  @Test
+  public void testConcurrentSearchesShareOneResult() throws InterruptedException {
+    final int numCallers = 4;
+    final UberResultSet[] results = new UberResultSet[numCallers];
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] callers = new Thread[numCallers];
+    for (int i = 0; i < numCallers; i++) {
+      final int caller = i;
+      callers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          results[caller] = se.findMatches(query);
+        }
+      });
+      callers[i].start();
+    }
+    QueryResultCache cache = se.getResultCache();
+    int hits = cache.getHits();
+    int deduplicated = se.getDeduplicatedSearchCount();
+    start.countDown();
+    for (Thread caller : callers) {
+      caller.join();
+    }
+
+    // all but one of the callers got the result of another's search
+    assertEquals(numCallers - 1, 
+        cache.getHits() - hits + se.getDeduplicatedSearchCount() - deduplicated);
+    for (int i = 1; i < numCallers; i++) {
+      for (int j = 0; j < i; j++) {
+        assertSameResults(results[j], results[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testKeyIncludesIndexVersion() {
+    QueryResultCache cache = new QueryResultCache();
+    int[] ids = query.getIdentifierIds();
+    cache.put(new QueryResultCache.Key(ids, 7), new UberResultSet(query));
+    assertTrue(cache.get(new QueryResultCache.Key(ids, 7)) != null);
+    assertNull(cache.get(new QueryResultCache.Key(ids, 8)));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  private Snippet querySnippet(int[] ids) {
+    return new Snippet(null, null, null, ids, new long[ids.length], new int[ids.length], null);
+  }
+
+  /**
+   * Checks that expected and actual hold the same results in lists of their own
+   */
+  static void assertSameResults(UberResultSet expected, UberResultSet actual) {
+    assertNotSame(expected, actual);
+    ResultSet[] expectedSets = {expected.getStrongMatches(), expected.getWeakMatches(), 
+        expected.getElongatedMatches(), expected.getAltEndingMatches()};
+    ResultSet[] actualSets = {actual.getStrongMatches(), actual.getWeakMatches(), 
+        actual.getElongatedMatches(), actual.getAltEndingMatches()};
+    for (int i = 0; i < expectedSets.length; i++) {
+      if (expectedSets[i] == null || expectedSets[i].getResults() == null) {
+        assertTrue(actualSets[i] == null || actualSets[i].getResults() == null);
+        continue;
+      }
+      assertNotSame(expectedSets[i].getResults(), actualSets[i].getResults());
+      assertEquals(expectedSets[i].getResults().size(), actualSets[i].getResults().size());
+      for (int j = 0; j < expectedSets[i].getResults().size(); j++) {
+        SubSequence expectedResult = expectedSets[i].getResults().get(j);
+        SubSequence actualResult = actualSets[i].getResults().get(j);
+        assertSame(expectedResult.getSnippet(), actualResult.getSnippet());
+        assertEquals(expectedResult.toString(), actualResult.toString());
+      }
+    }
+  }
+}
@@ -21,6 +21,7 @@ import com.google.research.ic.ferret.SessionListener;
 import com.google.research.ic.ferret.comm.DeviceEventReceiver;
 import com.google.research.ic.ferret.data.Event;
 import com.google.research.ic.ferret.data.LogLoader;
+import com.google.research.ic.ferret.data.NGramTable;
 import com.google.research.ic.ferret.data.ResultSet;
 import com.google.research.ic.ferret.data.SearchEngine;
 import com.google.research.ic.ferret.data.Snippet;
@@ -33,6 +34,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -552,9 +554,12 @@ public class Shell {
   
   private static void printNGramTables(List<Snippet> snippets) {
     for(Snippet s : snippets) {
-      Map <String, List<Integer>> map = s.getNGramTable(NGRAM_LENGTH);
-      for (String k : map.keySet()) {
-        System.out.println(k + ":" + map.get(k));
+      NGramTable table = s.getNGramTable(NGRAM_LENGTH);
+      for (int slot = 0; slot < table.capacity(); slot++) {
+        if (table.isOccupied(slot)) {
+          System.out.println(table.getKey(slot) + ":" + Arrays.toString(
+              Arrays.copyOf(table.getPostings(slot), table.getPostingCount(slot))));
+        }
       }
     }
   }
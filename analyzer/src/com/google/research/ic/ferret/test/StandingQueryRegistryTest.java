@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.research.ic.ferret.StandingQueryListener;
+import com.google.research.ic.ferret.StandingQueryRegistry;
+import com.google.research.ic.ferret.StandingQueryRegistry.StandingQuery;
+import com.google.research.ic.ferret.data.Event;
+import com.google.research.ic.ferret.data.SearchEngine;
+import com.google.research.ic.ferret.data.Snippet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Streams events from devices through the standing query registry and 
+ * checks the matches it reports, including ones that started before the 
+ * query was registered, against a plain approximate string matcher
+ */
+public class StandingQueryRegistryTest {
+
+  /**
+   * An event that only has an identifier id and a device
+   */
+  static class StreamEvent extends Event {
+
+    StreamEvent(String deviceId, int identifierId) {
+      setDeviceId(deviceId);
+      setIdentifierId(identifierId);
+      this.identifier = "StreamEvent$" + identifierId;
+    }
+
+    @Override
+    public void init() {}
+
+    @Override
+    public String getDisplayTitle() {
+      return identifier;
+    }
+
+    @Override
+    public String getDisplayEvent() {
+      return identifier;
+    }
+
+    @Override
+    public String getDisplayExtra() {
+      return "";
+    }
+  }
+
+  /**
+   * Records what the registry reports
+   */
+  private static class Recorder implements StandingQueryListener {
+    final List<StandingQuery> queries = new ArrayList<StandingQuery>();
+    final List<Event> events = new ArrayList<Event>();
+    final List<Double> distances = new ArrayList<Double>();
+
+    @Override
+    public void onStandingQueryMatched(StandingQuery query, Event event, double distance) {
+      queries.add(query);
+      events.add(event);
+      distances.add(distance);
+    }
+  }
+
+  private static int nextDevice = 0;
+
+  private Random random = new Random(42);
+  private StandingQueryRegistry registry = StandingQueryRegistry.getRegistry();
+  private Recorder recorder;
+  private int[] alphabet;
+
+  @Before
+  public void setUp() {
+    for (StandingQuery sq : registry.getQueries()) {
+      registry.unregister(sq);
+    }
+    recorder = new Recorder();
+    alphabet = new int[8];
+    for (int i = 0; i < alphabet.length; i++) {
+      alphabet[i] = SearchEngine.getSearchEngine().retrieveOrRegisterIdentifier(
+          "StandingQueryRegistryTest$" + i);
+    }
+  }
+
+  @Test
+  public void testMatches() {
+    int[] pattern = {alphabet[0], alphabet[1], alphabet[2], alphabet[3], alphabet[4], alphabet[5]};
+    StandingQuery exact = registry.register("exact", querySnippet(pattern), 0.0);
+    StandingQuery loose = registry.register("loose", querySnippet(pattern), 0.2);
+    registry.addListener(recorder);
+    try {
+      String device = newDevice();
+      send(device, alphabet[6], alphabet[7], alphabet[6]);
+      assertEquals(0, recorder.events.size());
+
+      // the loose query allows one edit, so it matches before the last event
+      Event last = send(device, pattern[0], pattern[1], pattern[2], pattern[3], pattern[4]);
+      assertEquals(1, recorder.events.size());
+      assertSame(loose, recorder.queries.get(0));
+      assertSame(last, recorder.events.get(0));
+      assertEquals(1.0 / pattern.length, recorder.distances.get(0), 1e-9);
+
+      // and isn't reported again while it keeps matching
+      last = send(device, pattern[5]);
+      assertEquals(2, recorder.events.size());
+      assertSame(exact, recorder.queries.get(1));
+      assertSame(last, recorder.events.get(1));
+      assertEquals(0.0, recorder.distances.get(1), 1e-9);
+
+      // one substitution is within the loose query only
+      send(device, alphabet[7], alphabet[7]);
+      last = send(device, alphabet[0], alphabet[1], alphabet[6], alphabet[3], alphabet[4], 
+          alphabet[5]);
+      assertEquals(3, recorder.events.size());
+      assertSame(loose, recorder.queries.get(2));
+      assertSame(last, recorder.events.get(2));
+      assertEquals(1.0 / pattern.length, recorder.distances.get(2), 1e-9);
+
+      // another device's events don't complete this device's pattern
+      String other = newDevice();
+      send(device, alphabet[0], alphabet[1], alphabet[2]);
+      send(other, alphabet[3], alphabet[4], alphabet[5]);
+      assertEquals(3, recorder.events.size());
+    } finally {
+      registry.removeListener(recorder);
+    }
+  }
+
+  @Test
+  public void testCatchUpOnEventsBeforeRegistration() {
+    int[] pattern = {alphabet[2], alphabet[4], alphabet[6], alphabet[1], alphabet[3], alphabet[5]};
+    // devices only keep their events while some query is registered
+    StandingQuery dummy = registry.register("dummy", querySnippet(new int[] {alphabet[7]}), 0.0);
+    registry.addListener(recorder);
+    try {
+      // the first half of the pattern arrives before the query is registered
+      String device = newDevice();
+      send(device, alphabet[0], alphabet[0], pattern[0], pattern[1], pattern[2]);
+      StandingQuery sq = registry.register("late", querySnippet(pattern), 0.0);
+      Event last = send(device, pattern[3], pattern[4], pattern[5]);
+      assertEquals(1, recorder.events.size());
+      assertSame(sq, recorder.queries.get(0));
+      assertSame(last, recorder.events.get(0));
+      registry.unregister(dummy);
+    } finally {
+      registry.removeListener(recorder);
+    }
+  }
+
+  @Test
+  public void testAgainstApproximateMatcher() {
+    double[] thresholds = {0.0, 0.15, 0.25, 0.4};
+    int[][] patterns = new int[thresholds.length][];
+    StandingQuery[] queries = new StandingQuery[thresholds.length];
+    for (int q = 0; q < queries.length; q++) {
+      patterns[q] = randomIds(4 + random.nextInt(8), 4);
+      queries[q] = registry.register("random" + q, querySnippet(patterns[q]), thresholds[q]);
+    }
+    // devices stream over a small alphabet so that patterns keep coming and going
+    String[] devices = {newDevice(), newDevice(), newDevice()};
+    List<List<Integer>> streams = new ArrayList<List<Integer>>();
+    for (int d = 0; d < devices.length; d++) {
+      streams.add(new ArrayList<Integer>());
+    }
+    List<Event> events = new ArrayList<Event>();
+    List<Integer> eventDevices = new ArrayList<Integer>();
+    registry.addListener(recorder);
+    try {
+      for (int i = 0; i < 3000; i++) {
+        int d = random.nextInt(devices.length);
+        int id = random.nextInt(10) == 0 
+            ? patterns[random.nextInt(patterns.length)][0] : alphabet[random.nextInt(4)];
+        streams.get(d).add(id);
+        events.add(send(devices[d], id));
+        eventDevices.add(d);
+      }
+    } finally {
+      registry.removeListener(recorder);
+    }
+
+    List<String> expected = new ArrayList<String>();
+    int[] positions = new int[devices.length];
+    boolean[][] matching = new boolean[devices.length][queries.length];
+    int[][][] columns = new int[devices.length][queries.length][];
+    for (int i = 0; i < events.size(); i++) {
+      int d = eventDevices.get(i);
+      int id = streams.get(d).get(positions[d]++);
+      for (int q = 0; q < queries.length; q++) {
+        if (columns[d][q] == null) {
+          columns[d][q] = new int[patterns[q].length + 1];
+          for (int j = 0; j <= patterns[q].length; j++) {
+            columns[d][q][j] = j;
+          }
+        }
+        int dist = nextColumn(columns[d][q], patterns[q], id);
+        int maxDistance = Math.min(SearchEngine.maxDistanceAtMost(thresholds[q], 
+            patterns[q].length), patterns[q].length);
+        if (dist <= maxDistance && !matching[d][q]) {
+          expected.add(i + ":" + q + ":" + dist);
+        }
+        matching[d][q] = dist <= maxDistance;
+      }
+    }
+    List<String> actual = new ArrayList<String>();
+    for (int i = 0; i < recorder.events.size(); i++) {
+      int q = 0;
+      while (queries[q] != recorder.queries.get(i)) {
+        q++;
+      }
+      actual.add(events.indexOf(recorder.events.get(i)) + ":" + q + ":" 
+          + Math.round(recorder.distances.get(i) * patterns[q].length));
+    }
+    Collections.sort(expected);
+    Collections.sort(actual);
+    assertTrue(expected.size() > 10);
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Advances column, the edit distances of the pattern's prefixes to the 
+   * best substring ending at the previous event, by one event
+   * @return the distance of the whole pattern
+   */
+  private int nextColumn(int[] column, int[] pattern, int id) {
+    int diagonal = column[0]; // a match can start anywhere, so column[0] stays 0
+    column[0] = 0;
+    for (int j = 1; j <= pattern.length; j++) {
+      int up = column[j];
+      column[j] = Math.min(Math.min(up + 1, column[j - 1] + 1), 
+          diagonal + (pattern[j - 1] == id ? 0 : 1));
+      diagonal = up;
+    }
+    return column[pattern.length];
+  }
+
+  private Event send(String device, int... ids) {
+    Event event = null;
+    for (int id : ids) {
+      event = new StreamEvent(device, id);
+      registry.onEventReceived(event);
+    }
+    return event;
+  }
+
+  private int[] randomIds(int size, int alphabetSize) {
+    int[] ids = new int[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = alphabet[random.nextInt(alphabetSize)];
+    }
+    return ids;
+  }
+
+  private String newDevice() {
+    return "StandingQueryRegistryTest$device" + (nextDevice++);
+  }
+
+  private Snippet querySnippet(int[] ids) {
+    return new Snippet(null, null, null, ids, new long[ids.length], new int[ids.length], null);
+  }
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.research.ic.ferret.data.Event;
+import com.google.research.ic.ferret.data.IdentifierTable;
+import com.google.research.ic.ferret.data.SubstitutionCostMatrix;
+
+import org.junit.Test;
+
+/**
+ * Checks that extending a SubstitutionCostMatrix keeps the costs computed so 
+ * far and fills in the rows of new identifiers
+ */
+public class SubstitutionCostMatrixTest {
+
+  private static int nextEvent = 0;
+
+  @Test
+  public void testExtend() {
+    IdentifierTable table = IdentifierTable.getTable();
+    int a = table.getId(new PositionEvent(0.0f));
+    int b = table.getId(new PositionEvent(1.0f));
+    SubstitutionCostMatrix matrix = SubstitutionCostMatrix.empty(4.0f).extend(table);
+    assertEquals(table.size(), matrix.size());
+    assertEquals(0.0, matrix.cost(a, a), 0.0);
+    assertEquals(0.25, matrix.cost(a, b), 1e-6);
+    assertEquals(0.25, matrix.cost(b, a), 1e-6);
+    assertSame(matrix, matrix.extend(table));
+
+    int c = table.getId(new PositionEvent(3.0f));
+    SubstitutionCostMatrix extended = matrix.extend(table);
+    assertEquals(table.size(), extended.size());
+    assertEquals(0.25, extended.cost(a, b), 1e-6);
+    assertEquals(0.75, extended.cost(a, c), 1e-6);
+    assertEquals(0.5, extended.cost(c, b), 1e-6);
+    assertEquals(0.0, extended.cost(c, c), 0.0);
+    // the old matrix doesn't change
+    assertEquals(matrix.size(), c);
+  }
+
+  @Test
+  public void testUncomparablePairs() {
+    IdentifierTable table = IdentifierTable.getTable();
+    int a = table.getId(new PositionEvent(0.0f));
+    int far = table.getId(new PositionEvent(2.0f));
+    int unknown = table.getId("SubstitutionCostMatrixTest$no representative");
+    SubstitutionCostMatrix matrix = SubstitutionCostMatrix.empty(2.0f).extend(table);
+    assertEquals(1.0, matrix.cost(a, far), 0.0); // capped at the cost of an insertion
+    assertEquals(1.0, matrix.cost(a, unknown), 0.0);
+    assertEquals(1.0, matrix.cost(unknown, far), 0.0);
+    assertEquals(0.0, matrix.cost(unknown, unknown), 0.0);
+  }
+
+  /**
+   * An event whose distance to another is the difference of their positions
+   */
+  static class PositionEvent extends Event {
+
+    private final float position;
+
+    PositionEvent(float position) {
+      this.position = position;
+      this.identifier = "PositionEvent$" + (nextEvent++);
+    }
+
+    @Override
+    public float calculateDistance(Event event) {
+      if (!(event instanceof PositionEvent)) {
+        return -1.0f;
+      }
+      return Math.abs(position - ((PositionEvent) event).position);
+    }
+
+    @Override
+    public void init() {}
+
+    @Override
+    public String getDisplayTitle() {
+      return identifier;
+    }
+
+    @Override
+    public String getDisplayEvent() {
+      return identifier;
+    }
+
+    @Override
+    public String getDisplayExtra() {
+      return "";
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.test;
+
+import static org.junit.Assert.assertTrue;
+
+import com.google.research.ic.ferret.data.SuffixArrayIndex;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Cross-checks the hit runs from the suffix array against a scan of every
+ * location for the query's n-grams
+ */
+public class SuffixArrayIndexTest {
+
+  private Random random = new Random(42);
+
+  @Test
+  public void testRandomLogs() {
+    for (int alphabetSize : new int[] {2, 4, 30}) {
+      for (int nGramLength = 1; nGramLength <= 4; nGramLength++) {
+        List<int[]> logs = new ArrayList<int[]>();
+        for (int k = 0; k < 6; k++) {
+          logs.add(randomIds(random.nextInt(200), alphabetSize));
+        }
+        crossCheck(logs, randomIds(40, alphabetSize), nGramLength);
+      }
+    }
+  }
+
+  @Test
+  public void testRepeatedQuery() {
+    int[] query = randomIds(50, 8);
+    int[] log = new int[300];
+    for (int i = 0; i < log.length; i++) {
+      log[i] = i % 70 < 50 ? query[i % 70] : 100 + i;
+    }
+    List<int[]> logs = new ArrayList<int[]>();
+    logs.add(new int[0]);
+    logs.add(log);
+    logs.add(Arrays.copyOfRange(query, 10, 30));
+    crossCheck(logs, query, 3);
+  }
+
+  private void crossCheck(List<int[]> logs, int[] query, int nGramLength) {
+    Map<Integer, int[]> hitRuns = new SuffixArrayIndex(logs).findHitRuns(query, nGramLength);
+    for (int ordinal = 0; ordinal < logs.size(); ordinal++) {
+      int[] log = logs.get(ordinal);
+      boolean[] expected = new boolean[log.length];
+      int expectedCount = 0;
+      for (int i = 0; i + nGramLength <= log.length; i++) {
+        for (int q = 0; q + nGramLength <= query.length && !expected[i]; q++) {
+          expected[i] = Arrays.equals(Arrays.copyOfRange(log, i, i + nGramLength),
+              Arrays.copyOfRange(query, q, q + nGramLength));
+        }
+        if (expected[i]) {
+          expectedCount++;
+        }
+      }
+      int[] runs = hitRuns.get(ordinal);
+      if (expectedCount == 0) {
+        assertTrue(runs == null);
+        continue;
+      }
+      boolean[] found = new boolean[log.length];
+      for (int k = 0; k < runs.length; k += 2) {
+        if (k > 0) {
+          assertTrue(runs[k] > runs[k - 1]); // disjoint and not adjacent
+        }
+        for (int i = runs[k]; i < runs[k + 1]; i++) {
+          found[i] = true;
+        }
+      }
+      assertTrue("log " + ordinal + ", ngram length " + nGramLength, 
+          Arrays.equals(expected, found));
+    }
+  }
+
+  private int[] randomIds(int length, int alphabetSize) {
+    int[] ids = new int[length];
+    for (int i = 0; i < length; i++) {
+      ids[i] = random.nextInt(alphabetSize);
+    }
+    return ids;
+  }
+}
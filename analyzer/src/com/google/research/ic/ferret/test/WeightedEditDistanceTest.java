@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.research.ic.ferret.data.IdentifierTable;
+import com.google.research.ic.ferret.data.SubstitutionCostMatrix;
+import com.google.research.ic.ferret.data.WeightedEditDistance;
+import com.google.research.ic.ferret.test.SubstitutionCostMatrixTest.PositionEvent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Cross-checks the weighted edit distance, with its cutoffs and its lower 
+ * bounds by start, against a plain DP over the same substitution costs
+ */
+public class WeightedEditDistanceTest {
+
+  private Random random = new Random(42);
+  private SubstitutionCostMatrix matrix;
+  /* ids covered by the matrix, then ids registered after it was built */
+  private int[] alphabet;
+
+  @Before
+  public void setUp() {
+    IdentifierTable table = IdentifierTable.getTable();
+    alphabet = new int[8];
+    for (int i = 0; i < 6; i++) {
+      alphabet[i] = table.getId(new PositionEvent(random.nextInt(4)));
+    }
+    matrix = SubstitutionCostMatrix.empty(3.0f).extend(table);
+    for (int i = 6; i < alphabet.length; i++) {
+      alphabet[i] = table.getId(new PositionEvent(random.nextInt(4)));
+    }
+  }
+
+  @Test
+  public void testDistance() {
+    int[] lengths = {0, 1, 5, 30, 70};
+    for (int patternLength : lengths) {
+      int[] query = randomIds(patternLength);
+      int[] log = randomIds(patternLength * 3 + 10);
+      WeightedEditDistance weighted = new WeightedEditDistance(query, matrix);
+      for (int trial = 0; trial < 50; trial++) {
+        int start = random.nextInt(log.length);
+        int end = Math.min(log.length, start + random.nextInt(patternLength * 2 + 2));
+        float maxDistance = random.nextFloat() * (patternLength + 2);
+        float expected = plainDistance(query, log, start, end);
+        String msg = "pattern length " + patternLength + ", range " + start + "-" + end 
+            + ", cutoff " + maxDistance;
+        assertEquals(msg, expected, weighted.distance(log, start, end, Float.MAX_VALUE), 1e-4);
+        float cut = weighted.distance(log, start, end, maxDistance);
+        if (expected <= maxDistance - 1e-4) {
+          assertEquals(msg, expected, cut, 1e-4);
+        } else if (expected > maxDistance + 1e-4) {
+          assertEquals(msg, Float.POSITIVE_INFINITY, cut, 0.0);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBestDistancesByStart() {
+    int[] lengths = {1, 7, 40};
+    for (int patternLength : lengths) {
+      int[] query = randomIds(patternLength);
+      int[] log = randomIds(patternLength * 2 + 15);
+      WeightedEditDistance weighted = new WeightedEditDistance(query, matrix);
+      int start = random.nextInt(log.length / 2);
+      int end = start + 1 + random.nextInt(log.length - start);
+      float[] bounds = new float[end - start];
+      weighted.bestDistancesByStart(log, start, end, bounds);
+      for (int i = start; i < end; i++) {
+        float expected = Float.MAX_VALUE;
+        for (int e = i; e <= end; e++) {
+          expected = Math.min(expected, plainDistance(query, log, i, e));
+        }
+        String msg = "pattern length " + patternLength + ", start " + i;
+        assertEquals(msg, expected, bounds[i - start], 1e-4);
+        // a lower bound for the window the search then measures exactly
+        int windowEnd = Math.min(end, i + patternLength);
+        assertTrue(msg, bounds[i - start] 
+            <= weighted.distance(log, i, windowEnd, Float.MAX_VALUE) + 1e-4);
+      }
+    }
+  }
+
+  @Test
+  public void testIdenticalRange() {
+    int[] log = randomIds(200);
+    int[] query = new int[80];
+    System.arraycopy(log, 50, query, 0, query.length);
+    WeightedEditDistance weighted = new WeightedEditDistance(query, matrix);
+    assertEquals(0.0, weighted.distance(log, 50, 50 + query.length, 0.0f), 0.0);
+  }
+
+  /**
+   * Textbook weighted Levenshtein over the whole table, with unit costs for 
+   * pairs the matrix doesn't cover
+   */
+  private float plainDistance(int[] query, int[] log, int start, int end) {
+    float[][] d = new float[query.length + 1][end - start + 1];
+    for (int i = 0; i <= query.length; i++) {
+      d[i][0] = i;
+    }
+    for (int j = 0; j <= end - start; j++) {
+      d[0][j] = j;
+    }
+    for (int i = 1; i <= query.length; i++) {
+      for (int j = 1; j <= end - start; j++) {
+        d[i][j] = Math.min(d[i - 1][j - 1] + cost(query[i - 1], log[start + j - 1]), 
+            Math.min(d[i - 1][j], d[i][j - 1]) + 1.0f);
+      }
+    }
+    return d[query.length][end - start];
+  }
+
+  private float cost(int a, int b) {
+    if (a == b) {
+      return 0.0f;
+    }
+    if (a < matrix.size() && b < matrix.size()) {
+      return matrix.cost(a, b);
+    }
+    return 1.0f;
+  }
+
+  private int[] randomIds(int length) {
+    int[] ids = new int[length];
+    for (int i = 0; i < length; i++) {
+      ids[i] = alphabet[random.nextInt(alphabet.length)];
+    }
+    return ids;
+  }
+}
@@ -15,6 +15,7 @@
  *******************************************************************************/
 package com.google.research.ic.ferret.uiserver;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -61,6 +62,28 @@ public class RESTHandler {
     }
     return gson;
   }
+
+  /* searches go to the shards when this process is coordinating them */
+  private UberResultSet findMatches(Snippet query) {
+    if (Config.shardUrls != null) {
+      return ShardCoordinator.getCoordinator().findMatches(query);
+    }
+    return SearchEngine.getSearchEngine().findMatches(query);
+  }
+
+  private UberResultSet findMatches(Snippet query, FilterSpec fSpec) {
+    if (Config.shardUrls != null) {
+      return ShardCoordinator.getCoordinator().findMatches(query, fSpec);
+    }
+    return SearchEngine.getSearchEngine().findMatches(query, fSpec);
+  }
+
+  private Snippet getLogById(String logId) {
+    if (Config.shardUrls != null) {
+      return ShardCoordinator.getCoordinator().getLogById(logId);
+    }
+    return SearchEngine.getSearchEngine().getLogById(logId);
+  }
   
   @GET
   @Path("pollForEvents")
@@ -117,9 +140,11 @@ public class RESTHandler {
     if (currentQuery != null) {
       long t = System.currentTimeMillis();
       Debug.log("Started searching...");
-      ResultSet resultSet = SearchEngine.getSearchEngine().findMatches(currentQuery).getStrongMatches();
+      FilterSpec fSpec = new FilterSpec(0.0, 5.0, 20);
+      ResultSet resultSet = 
+          findMatches(currentQuery, fSpec).getStrongMatches();
       Debug.log("Finished searching after " + ((System.currentTimeMillis() - t)/1000.0) + " secs");
-      ResultSet trimmedResultSet = resultSet.filter(new FilterSpec(0.0, 5.0, 20));
+      ResultSet trimmedResultSet = resultSet.filter(fSpec);
 
       t = System.currentTimeMillis();
       String gsonString = getGson().toJson(trimmedResultSet);   
@@ -131,6 +156,29 @@ public class RESTHandler {
     }
   }
 
+  /**
+   * Searches the logs of this shard for a ShardCoordinator. If filtered is
+   * set, only results within [minDist, maxDist] are returned, at most limit
+   * of each kind.
+   */
+  @POST
+  @Path("searchShard")
+  @Produces(MediaType.APPLICATION_JSON)
+  public String searchShard(@FormParam("q") String querySpec,
+      @FormParam("filtered") boolean filtered,
+      @FormParam("minDist") double minDist,
+      @FormParam("maxDist") double maxDist,
+      @FormParam("limit") int limit) {
+    Snippet query = getGson().fromJson(querySpec, Snippet.class);
+    UberResultSet urs = null;
+    if (filtered) {
+      urs = SearchEngine.getSearchEngine().findMatches(query, new FilterSpec(minDist, maxDist, limit));
+    } else {
+      urs = SearchEngine.getSearchEngine().findMatches(query);
+    }
+    return getGson().toJson(ShardResults.fromResults(urs));
+  }
+
   @POST
   @Path("getSubSequence")
   @Produces(MediaType.APPLICATION_JSON)
@@ -138,7 +186,7 @@ public class RESTHandler {
       @FormParam("startIndex") int startIndex,
       @FormParam("endIndex") int endIndex) {
     
-    Snippet log = SearchEngine.getSearchEngine().getLogById(logId);
+    Snippet log = getLogById(logId);
     SubSequence subS = new SubSequence(startIndex, endIndex, log, -1.0); // uh oh, might be overloading SubSequence here
     String gsonString = getGson().toJson(subS);
     return gsonString;
@@ -161,7 +209,7 @@ public class RESTHandler {
     if (currentQuery != null && !currentQuery.equals("")) {
 
       long t = System.currentTimeMillis();
-      UberResultSet urs = SearchEngine.getSearchEngine().findMatches(currentQuery);
+      UberResultSet urs = findMatches(currentQuery);
       Session.getCurrentSession().setCurrentResultSet(urs);
       Debug.log("Finished searching after " + ((System.currentTimeMillis() - t)/1000.0) + " secs");
 
@@ -169,6 +217,7 @@ public class RESTHandler {
       if (Config.debug) Shell.printEvents(currentQuery, 0, currentQuery.size());
             
       FilteredResultSummary[] summaries = new FilteredResultSummary[4];
+      FilteredResultSet[] filtered = new FilteredResultSet[4]; // summarized together below
 
       ResultSet strongMatches = urs.getStrongMatches();
       
@@ -177,12 +226,11 @@ public class RESTHandler {
       
       if (strongMatches != null) {
         t = System.currentTimeMillis();
-        frs = strongMatches.filter(new FilterSpec(-1.0, -1.0, -1));
+        frs = strongMatches.filter(new FilterSpec(-1.0, -1.0, -1), false);
         resultSize = 0;
         if (frs.getResults() != null) {
           resultSize = frs.getResults().size();
-          summaries[0] = frs.getSummary();
-          summaries[0].setDisplayName("Strong Matches");
+          filtered[0] = frs;
         } 
         Debug.log("found " + resultSize + " strong matches after " + ((System.currentTimeMillis() - t)/1000.0) + " secs");        
       }
@@ -191,12 +239,11 @@ public class RESTHandler {
 
       if (elongations != null) {
         t = System.currentTimeMillis();  
-        frs = elongations.filter(new FilterSpec(-1.0, -1.0, -1));
+        frs = elongations.filter(new FilterSpec(-1.0, -1.0, -1), false);
         resultSize = 0;
         if (frs.getResults() != null) {
           resultSize = frs.getResults().size();
-          summaries[1] = frs.getSummary();
-          summaries[1].setDisplayName("Elongations");
+          filtered[1] = frs;
         }
         Debug.log("found " + resultSize + " elongated matches after " + ((System.currentTimeMillis() - t)/1000.0) + " secs");
       }
@@ -205,12 +252,11 @@ public class RESTHandler {
 
       if (altEndMatches != null) {
         t = System.currentTimeMillis();
-        frs = altEndMatches.filter(new FilterSpec(-1.0, -1.0, -1));
+        frs = altEndMatches.filter(new FilterSpec(-1.0, -1.0, -1), false);
         resultSize = 0;
         if (frs.getResults() != null) {    
           resultSize = frs.getResults().size();
-          summaries[2] = frs.getSummary();
-          summaries[2].setDisplayName("Alternate Endings");
+          filtered[2] = frs;
         }
         Debug.log("found " + resultSize + " altEnd matches after " + ((System.currentTimeMillis() - t)/1000.0) + " secs");
       }
@@ -219,15 +265,30 @@ public class RESTHandler {
 
       if (weakMatches != null) {
         t = System.currentTimeMillis();
-        frs = weakMatches.filter(new FilterSpec(-1.0, -1.0, -1));
+        frs = weakMatches.filter(new FilterSpec(-1.0, -1.0, -1), false);
         if (frs.getResults() != null) {    
           resultSize = frs.getResults().size();
-          summaries[3] = frs.getSummary();
-          summaries[3].setDisplayName("Weak Matches");
+          filtered[3] = frs;
         }
         Debug.log("found " + resultSize + " weak matches after " + ((System.currentTimeMillis() - t)/1000.0) + " secs");
       }
 
+      t = System.currentTimeMillis();
+      List<FilteredResultSet> toSummarize = new ArrayList<FilteredResultSet>();
+      for (FilteredResultSet f : filtered) {
+        if (f != null) {
+          toSummarize.add(f);
+        }
+      }
+      FilteredResultSet.computeSummaries(toSummarize);
+      String[] displayNames = {"Strong Matches", "Elongations", "Alternate Endings", "Weak Matches"};
+      for (int i = 0; i < filtered.length; i++) {
+        if (filtered[i] != null) {
+          summaries[i] = filtered[i].getSummary();
+          summaries[i].setDisplayName(displayNames[i]);
+        }
+      }
+      Debug.log("Summarized attributes after " + ((System.currentTimeMillis() - t)/1000.0) + " secs");
       
       t = System.currentTimeMillis();
       String gsonString = getGson().toJson(summaries);   
@@ -379,9 +440,11 @@ public class RESTHandler {
     if (currentQuery != null) {
       long t = System.currentTimeMillis();
       Debug.log("Started searching...");
-      ResultSet resultSet = SearchEngine.getSearchEngine().findMatches(currentQuery).getStrongMatches();
+      FilterSpec fSpec = new FilterSpec(0.0, 5.0, 20);
+      ResultSet resultSet = 
+          findMatches(currentQuery, fSpec).getStrongMatches();
       Debug.log("Finished searching after " + ((System.currentTimeMillis() - t)/1000.0) + " secs");
-      ResultSet trimmedResultSet = resultSet.filter(new FilterSpec(0.0, 5.0, 20));
+      ResultSet trimmedResultSet = resultSet.filter(fSpec);
 
       t = System.currentTimeMillis();
       String gsonString = getGson().toJson(trimmedResultSet);   
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.uiserver;
+
+import com.google.gson.Gson;
+import com.google.research.ic.ferret.Config;
+import com.google.research.ic.ferret.data.FilterSpec;
+import com.google.research.ic.ferret.data.LogLoader;
+import com.google.research.ic.ferret.data.SearchEngine;
+import com.google.research.ic.ferret.data.Snippet;
+import com.google.research.ic.ferret.data.TopKResultAccumulator;
+import com.google.research.ic.ferret.data.UberResultSet;
+import com.google.research.ic.ferret.test.Debug;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs searches over several analyzer processes, each started with
+ * --shard=i/n so it indexes its own part of the log directory. Each query is
+ * sent to every shard's searchShard endpoint at once, and their results are
+ * merged: overlaps are pruned as in SearchEngine.pruneResults, and when there
+ * is a FilterSpec, only the best of all shards are kept.
+ *
+ * Shards are given as base urls in Config.shardUrls, e.g.
+ * --shards=http://localhost:8081,http://localhost:8082
+ *
+ * The requests run on threads of their own rather than on the 
+ * ParallelTaskExecutor, which is for CPU-bound work: a slow shard would 
+ * otherwise hold it, and the local searches waiting for it, for up to the
+ * request timeout.
+ */
+public class ShardCoordinator {
+
+  public static final String SEARCH_PATH = "/entry-point/searchShard";
+
+  private static final int TIMEOUT_MS = 60000;
+  private static final int MAX_KNOWN_LOGS = 10000;
+  private static final String CHARSET = "UTF-8";
+
+  private static ShardCoordinator theCoordinator = null;
+
+  private final List<String> shardUrls = new ArrayList<String>();
+  private final ExecutorService requestExecutor;
+
+  /* logs of recent results, by id, so getLogById works without asking the shards */
+  private final Map<String, Snippet> knownLogs =
+      new LinkedHashMap<String, Snippet>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Snippet> eldest) {
+          return size() > MAX_KNOWN_LOGS;
+        }
+      };
+
+  private ShardCoordinator(String urls) {
+    for (String url : urls.split(",")) {
+      url = url.trim();
+      while (url.endsWith("/")) {
+        url = url.substring(0, url.length() - 1);
+      }
+      if (!url.isEmpty()) {
+        shardUrls.add(url);
+      }
+    }
+    if (shardUrls.isEmpty()) {
+      throw new IllegalArgumentException("No shard urls in " + urls);
+    }
+    // one request per shard per query at a time; idle threads go away
+    requestExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "shard-request");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  public static synchronized ShardCoordinator getCoordinator() {
+    if (theCoordinator == null) {
+      if (Config.shardUrls == null) {
+        throw new IllegalStateException("Not coordinating shards, use " + Config.ARG_SHARDS);
+      }
+      theCoordinator = new ShardCoordinator(Config.shardUrls);
+    }
+    return theCoordinator;
+  }
+
+  public UberResultSet findMatches(Snippet query) {
+    return findMatches(query, null);
+  }
+
+  /**
+   * @param filterSpec if not null, only the results it accepts are kept, and
+   * at most filterSpec.getLimit() of each kind (see SearchEngine)
+   */
+  public UberResultSet findMatches(final Snippet query, FilterSpec filterSpec) {
+    final Gson gson = LogLoader.getLogLoader().getGson();
+    final String request = buildRequest(gson, query, filterSpec);
+    final int numShards = shardUrls.size();
+    final ShardResults[] responses = new ShardResults[numShards];
+    final String[] errors = new String[numShards];
+
+    List<Future<?>> requests = new ArrayList<Future<?>>();
+    for (int i = 0; i < numShards; i++) {
+      final int shard = i;
+      requests.add(requestExecutor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          try {
+            String response = post(shardUrls.get(shard) + SEARCH_PATH, request);
+            responses[shard] = gson.fromJson(response, ShardResults.class);
+          } catch (Exception e) {
+            errors[shard] = e.toString();
+          }
+          return null;
+        }
+      }));
+    }
+    for (int shard = 0; shard < numShards; shard++) {
+      try {
+        requests.get(shard).get(); // each request times out on its own
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the shards", e);
+      } catch (ExecutionException e) {
+        errors[shard] = e.getCause().toString();
+      }
+    }
+
+    UberResultSet urs = new UberResultSet(query);
+    TopKResultAccumulator accumulator = null;
+    if (filterSpec != null) {
+      accumulator = new TopKResultAccumulator(query, filterSpec);
+    }
+    for (int shard = 0; shard < numShards; shard++) {
+      if (responses[shard] == null) {
+        throw new IllegalStateException("Search failed on shard " + shardUrls.get(shard)
+            + ": " + errors[shard]);
+      }
+      synchronized (knownLogs) {
+        for (Snippet log : responses[shard].getLogs()) {
+          log.updateAttributes(); // the json dates lose their milliseconds
+          knownLogs.put(log.getId(), log);
+        }
+      }
+      UberResultSet shardResults = responses[shard].toResults(query);
+      if (shardResults.getStrongMatches() == null) {
+        continue; // the shard has no logs
+      }
+      SearchEngine.getSearchEngine().pruneResults(shardResults);
+      if (accumulator != null) {
+        accumulator.addLogResults(shardResults);
+      } else {
+        urs.mergeResults(shardResults);
+      }
+    }
+    Debug.log("Merged results from " + numShards + " shards");
+    return accumulator != null ? accumulator.getResults() : urs;
+  }
+
+  /**
+   * @return a log that was part of a recent result, or null
+   */
+  public Snippet getLogById(String id) {
+    synchronized (knownLogs) {
+      return knownLogs.get(id);
+    }
+  }
+
+  /**
+   * Shards can only apply the distance range and the limit of a FilterSpec;
+   * other filters are left to the accumulator here, over all of each shard's
+   * results.
+   */
+  private String buildRequest(Gson gson, Snippet query, FilterSpec filterSpec) {
+    try {
+      StringBuilder sb = new StringBuilder();
+      sb.append("q=").append(URLEncoder.encode(gson.toJson(query, Snippet.class), CHARSET));
+      if (filterSpec != null && !filterSpec.hasClausesBeyondDistance()) {
+        sb.append("&filtered=true");
+        sb.append("&minDist=").append(filterSpec.getMinDist());
+        sb.append("&maxDist=").append(filterSpec.getMaxDist());
+        sb.append("&limit=").append(filterSpec.getLimit());
+      }
+      return sb.toString();
+    } catch (IOException e) {
+      throw new IllegalStateException("Can't encode query", e);
+    }
+  }
+
+  private static String post(String url, String body) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      conn.setRequestMethod("POST");
+      conn.setDoOutput(true);
+      conn.setConnectTimeout(TIMEOUT_MS);
+      conn.setReadTimeout(TIMEOUT_MS);
+      conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=" + CHARSET);
+      OutputStream out = conn.getOutputStream();
+      try {
+        out.write(body.getBytes(CHARSET));
+      } finally {
+        out.close();
+      }
+      if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        throw new IOException("HTTP " + conn.getResponseCode() + " from " + url);
+      }
+      InputStream in = conn.getInputStream();
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[1 << 14];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+          bytes.write(buf, 0, n);
+        }
+        return new String(bytes.toByteArray(), CHARSET);
+      } finally {
+        in.close();
+      }
+    } finally {
+      conn.disconnect();
+    }
+  }
+}
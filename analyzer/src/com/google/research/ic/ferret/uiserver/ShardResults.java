@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.google.research.ic.ferret.uiserver;
+
+import com.google.research.ic.ferret.data.ResultSet;
+import com.google.research.ic.ferret.data.Snippet;
+import com.google.research.ic.ferret.data.SubSequence;
+import com.google.research.ic.ferret.data.UberResultSet;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a shard sends back to the ShardCoordinator for a search: every log
+ * that has a result, once, and the results as references into that list.
+ * Serializing an UberResultSet directly would repeat a log for each of its
+ * results.
+ */
+public class ShardResults {
+
+  private static final class ResultRef {
+    int log;
+    int start;
+    int end;
+    double distance;
+  }
+
+  private List<Snippet> logs = new ArrayList<Snippet>();
+  private List<ResultRef> strongMatches = null;
+  private List<ResultRef> weakMatches = null;
+  private List<ResultRef> elongatedMatches = null;
+  private List<ResultRef> altEndingMatches = null;
+
+  public static ShardResults fromResults(UberResultSet urs) {
+    ShardResults sr = new ShardResults();
+    Map<Snippet, Integer> logIndexes = new IdentityHashMap<Snippet, Integer>();
+    sr.strongMatches = sr.toRefs(urs.getStrongMatches(), logIndexes);
+    sr.weakMatches = sr.toRefs(urs.getWeakMatches(), logIndexes);
+    sr.elongatedMatches = sr.toRefs(urs.getElongatedMatches(), logIndexes);
+    sr.altEndingMatches = sr.toRefs(urs.getAltEndingMatches(), logIndexes);
+    return sr;
+  }
+
+  public List<Snippet> getLogs() {
+    return logs;
+  }
+
+  public UberResultSet toResults(Snippet query) {
+    UberResultSet urs = new UberResultSet(query);
+    urs.setStrongMatches(toResultSet(strongMatches, query));
+    urs.setWeakMatches(toResultSet(weakMatches, query));
+    urs.setElongatedMatches(toResultSet(elongatedMatches, query));
+    urs.setAltEndingMatches(toResultSet(altEndingMatches, query));
+    return urs;
+  }
+
+  private List<ResultRef> toRefs(ResultSet rs, Map<Snippet, Integer> logIndexes) {
+    if (rs == null || rs.getResults() == null) {
+      return null;
+    }
+    List<ResultRef> refs = new ArrayList<ResultRef>();
+    for (SubSequence subS : rs.getResults()) {
+      Integer index = logIndexes.get(subS.getSnippet());
+      if (index == null) {
+        index = logs.size();
+        logs.add(subS.getSnippet());
+        logIndexes.put(subS.getSnippet(), index);
+      }
+      ResultRef ref = new ResultRef();
+      ref.log = index;
+      ref.start = subS.getStartIndex();
+      ref.end = subS.getEndIndex();
+      ref.distance = subS.getDistance();
+      refs.add(ref);
+    }
+    return refs;
+  }
+
+  private ResultSet toResultSet(List<ResultRef> refs, Snippet query) {
+    if (refs == null) {
+      return null;
+    }
+    List<SubSequence> results = new ArrayList<SubSequence>(refs.size());
+    for (ResultRef ref : refs) {
+      results.add(new SubSequence(ref.start, ref.end, logs.get(ref.log), ref.distance));
+    }
+    return new ResultSet(results, query);
+  }
+}
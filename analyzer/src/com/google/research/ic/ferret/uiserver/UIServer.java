@@ -15,6 +15,7 @@
  *******************************************************************************/
 package com.google.research.ic.ferret.uiserver;
 
+import com.google.research.ic.ferret.Config;
 import com.google.research.ic.ferret.test.Debug;
 
 import org.eclipse.jetty.server.Server;
@@ -39,7 +40,7 @@ public class UIServer {
             ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
             context.setContextPath("/");
             
-            Server server = new Server(8080);
+            Server server = new Server(Config.uiPort);
             server.setHandler(context);
   
             ServletHolder jerseyServlet = context.addServlet(ServletContainer.class, "/*");